@@ -0,0 +1,85 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The adaptive timeouts of a {@link RestClient}: the latencies of the calls to each endpoint (as defined by the
+ * {@link EndpointClassifier} of the client, one endpoint for the whole client without it) are tracked in a
+ * {@link LatencyHistogram}, and each call gets as timeout a multiple of their percentile, between a floor and a
+ * ceiling. Until an endpoint has {@link #MIN_SAMPLES} samples its calls get the ceiling.
+ * <p>
+ * At most 'maxEndpoints' histograms are kept, the ones not used for 'maxIdleTime' ms are dropped when a new endpoint
+ * shows up: the endpoints that find no room share a single one.
+ */
+final class AdaptiveTimeouts {
+
+    static final int MIN_SAMPLES = 20;
+    // samples after which the counters are halved
+    private static final long WINDOW = 2000;
+
+    private final double quantile;
+    private final double multiplier;
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    // Used without a classifier, and for the endpoints that find no room
+    private final LatencyHistogram sharedHistogram;
+    // null without a classifier
+    private final EndpointMap<LatencyHistogram> histograms;
+
+    /**
+     * @param maxEndpoints 0 for a single histogram, see {@link RestClient#getMaxEndpoints()}
+     */
+    AdaptiveTimeouts(double quantile, double multiplier, int minTimeout, int maxTimeout, int maxEndpoints,
+                     long maxIdleTime) {
+        this.quantile = quantile;
+        this.multiplier = multiplier;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.sharedHistogram = newHistogram();
+        this.histograms = maxEndpoints <= 0 ? null :
+                new EndpointMap<LatencyHistogram>(maxEndpoints, maxIdleTime, false) {
+            @Override
+            LatencyHistogram create() {
+                return newHistogram();
+            }
+        };
+    }
+
+    // Same timeouts, for a new classifier: the latencies start again from scratch
+    AdaptiveTimeouts withEndpoints(int maxEndpoints, long maxIdleTime) {
+        return new AdaptiveTimeouts(quantile, multiplier, (int)minTimeout, (int)maxTimeout, maxEndpoints,
+                                    maxIdleTime);
+    }
+
+    /**
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}; null without a classifier
+     */
+    LatencyHistogram histogram(String endpoint) {
+        if (histograms == null || endpoint == null)
+            return sharedHistogram;
+
+        LatencyHistogram histogram = histograms.get(endpoint);
+        return histogram != null ? histogram : sharedHistogram;
+    }
+
+    private LatencyHistogram newHistogram() {
+        return new LatencyHistogram(quantile, WINDOW);
+    }
+
+    /**
+     * @return the timeout in ms for the next call to the endpoint of the histogram
+     */
+    long timeout(LatencyHistogram histogram) {
+        long percentile = histogram.getPercentile();
+        if (percentile < 0 || histogram.getCount() < MIN_SAMPLES)
+            return maxTimeout;
+        long timeout = (long)Math.ceil(percentile * multiplier / 1000);
+        return Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    // A call cancelled by its timeout counts with the timeout: if the endpoint slows down, the timeout follows it
+    static void recordTimeout(LatencyHistogram histogram, long timeout) {
+        histogram.recordMicros(TimeUnit.MILLISECONDS.toMicros(timeout));
+    }
+}
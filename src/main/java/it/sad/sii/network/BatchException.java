@@ -0,0 +1,30 @@
+package it.sad.sii.network;
+
+/**
+ * A fail-fast batch stopped at the first request that did not succeed, see
+ * {@link RestClient#doRequests(java.util.Collection, int, boolean)}.
+ */
+public class BatchException extends Exception {
+    private final int index;
+    private final RestResponse response;
+
+    public BatchException(int index, RestResponse response) {
+        super("Request " + index + " of the batch failed: " + response.getCode() + " " + response.getData());
+        this.index = index;
+        this.response = response;
+    }
+
+    /**
+     * @return position in the batch of the request that failed
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the response of the request that failed
+     */
+    public RestResponse getResponse() {
+        return response;
+    }
+}
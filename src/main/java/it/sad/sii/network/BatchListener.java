@@ -0,0 +1,18 @@
+package it.sad.sii.network;
+
+/**
+ * Notified of each response of a batch as soon as it arrives, see
+ * {@link RestClient#doRequests(java.util.Collection, int, boolean, BatchListener)}.
+ * <p>
+ * It is invoked on an OkHttp dispatcher (or timer) thread, possibly by many threads at the same time: it has to be
+ * thread safe and it should not block. An exception it throws is logged and does not stop the batch.
+ */
+public interface BatchListener {
+
+    /**
+     * @param index    position of the request in the batch
+     * @param request  the request
+     * @param response its response; errors are reported inside it, as in Smart Mode
+     */
+    void onResponse(int index, RestRequest request, RestResponse response);
+}
@@ -0,0 +1,139 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link RestClient} runs the steps of a request: the same pipeline serves {@link RestClient#doRequest} and
+ * {@link RestClient#doRequestAsync}, only the calls and the waits differ.
+ * <p>
+ * BLOCKING executes the calls and waits in the calling thread, so that blocking callers are not bound by the limits
+ * of the dispatcher: by the time the pipeline returns, the request is complete. ASYNC enqueues the calls on the
+ * OkHttp dispatcher and schedules the waits on the shared timer, so no thread is blocked.
+ */
+enum CallMode {
+
+    BLOCKING {
+        @Override
+        void execute(Call call, CallHandler handler) {
+            Response response;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                handler.onFailure(call, e);
+                return;
+            } catch (RuntimeException e) {
+                handler.onError(e);
+                return;
+            }
+            handler.onResponse(call, response);
+        }
+
+        @Override
+        boolean runAfter(long delay, TimeUnit unit, boolean interruptible, Runnable task) {
+            if (!interruptible) {
+                Uninterruptibles.sleepUninterruptibly(delay, unit);
+            } else {
+                try {
+                    unit.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            task.run();
+            return true;
+        }
+
+        @Override
+        <T> void deliver(ListenableFuture<T> future, FutureCallback<T> callback) {
+            T value;
+            try {
+                value = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                callback.onFailure(e.getCause());
+                return;
+            } catch (CancellationException e) {
+                callback.onFailure(e);
+                return;
+            }
+            callback.onSuccess(value);
+        }
+    },
+
+    ASYNC {
+        @Override
+        void execute(Call call, CallHandler handler) {
+            call.enqueue(handler);
+        }
+
+        @Override
+        boolean runAfter(long delay, TimeUnit unit, boolean interruptible, Runnable task) {
+            Timers.schedule(task, delay, unit);
+            return true;
+        }
+
+        @Override
+        <T> void deliver(ListenableFuture<T> future, FutureCallback<T> callback) {
+            Futures.addCallback(future, callback);
+        }
+    };
+
+    /**
+     * The outcome of a call: a response, an IOException, or (only in the calling thread) a RuntimeException.
+     */
+    interface CallHandler extends Callback {
+        // reads the response itself: a failure to read it is an IOException of the call
+        @Override
+        void onResponse(Call call, Response response);
+
+        void onError(RuntimeException e);
+    }
+
+    // Sends the call, reporting its outcome to the handler
+    abstract void execute(Call call, CallHandler handler);
+
+    /**
+     * Runs the task after the delay.
+     *
+     * @param interruptible true if an interrupt of the calling thread stops the wait: then the task is not run
+     * @return false if the wait was interrupted
+     */
+    abstract boolean runAfter(long delay, TimeUnit unit, boolean interruptible, Runnable task);
+
+    // Reports the outcome of the future to the callback: BLOCKING waits for it in the calling thread
+    abstract <T> void deliver(ListenableFuture<T> future, FutureCallback<T> callback);
+
+    // Waits for the response of a request, throwing what the pipeline failed with as doRequest throws it
+    static RestResponse await(ListenableFuture<RestResponse> future) throws IOException, URISyntaxException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof URISyntaxException)
+                throw (URISyntaxException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+}
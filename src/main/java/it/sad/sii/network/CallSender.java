@@ -0,0 +1,554 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a single attempt of a request of a {@link RestClient}: hedged if the client hedges it, then through the
+ * response cache, the deadline, the rate limit, the concurrency limit, the replica chosen by the load balancer and
+ * the adaptive timeout. Each step either answers the attempt (e.g. with a fresh cached response) or hands it to the
+ * next one; the steps that wait do it as the {@link CallMode} says.
+ * <p>
+ * The outcome goes to a callback: the response, or the exception of the call. Cancelling the 'owner' future of the
+ * attempt cancels its calls in flight.
+ */
+final class CallSender {
+
+    private final RestClient client;
+
+    CallSender(RestClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}
+     * @param deadline absolute deadline of the request, see {@link Timers}
+     * @param replica  the replica to call, null with a single server url
+     * @param chosen   when the replica was chosen, see {@link RestClient#replicaFor}
+     * @param probe    true for the probe of a circuit breaker: it has to reach the server, so a fresh cached
+     *                 response does not answer it (it is still revalidated)
+     */
+    void send(RestRequest restRequest, String endpoint, ListenableFuture<?> owner, long deadline,
+              LoadBalancer.Replica replica, long chosen, CallMode mode, boolean probe,
+              FutureCallback<RestResponse> callback) {
+        Hedging hedging = client.hedgingFor(restRequest);
+        if (hedging != null)
+            sendHedged(restRequest, endpoint, owner, deadline, hedging, replica, chosen, mode, probe, callback);
+        else
+            sendCall(restRequest, endpoint, owner, deadline, replica, chosen, mode, probe, false, null, callback);
+    }
+
+    // A call, and an identical one if the first has no response after the hedge delay (and the budget allows it):
+    // the first response wins and the other call is cancelled. A failure only counts if no call is left.
+    // With several replicas, the hedge goes to another one. The first call is made as the mode says, the hedge is
+    // always enqueued.
+    private void sendHedged(RestRequest restRequest, String endpoint, ListenableFuture<?> owner, long deadline,
+                            Hedging hedging, LoadBalancer.Replica replica, long chosen, CallMode mode, boolean probe,
+                            FutureCallback<RestResponse> callback) {
+        final SettableFuture<RestResponse> race = SettableFuture.create();
+        // Cancelling the owner cancels both calls, completing the race cancels the loser
+        owner.addListener(new Runnable() {
+            @Override
+            public void run() {
+                race.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicBoolean decided = new AtomicBoolean();
+        LatencyHistogram latencies = hedging.latencies(endpoint);
+
+        hedging.onRequest();
+        // Scheduled first: a blocking call only returns with its response
+        scheduleHedge(restRequest, endpoint, race, deadline, hedging, replica, probe, decided, pending, latencies);
+        sendCall(restRequest, endpoint, race, deadline, replica, chosen, mode, probe, false, null,
+                 racer(race, decided, pending, latencies, null));
+        mode.deliver(race, callback);
+    }
+
+    // Enqueues the hedge of a call after the hedge delay, unless the race is over by then. With calls already
+    // queued in the dispatcher the hedge would only queue behind them (the call it hedges may be one of them), so
+    // it is not sent.
+    private void scheduleHedge(final RestRequest restRequest, final String endpoint,
+                               final SettableFuture<RestResponse> race, final long deadline, final Hedging hedging,
+                               final LoadBalancer.Replica replica, final boolean probe,
+                               final AtomicBoolean decided, final AtomicInteger pending,
+                               final LatencyHistogram latencies) {
+        final ScheduledFuture<?> timer = Timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (race.isDone() || client.getOkHttpClient().dispatcher().queuedCallsCount() > 0 ||
+                    !hedging.tryHedge())
+                    return;
+                pending.incrementAndGet();
+                long chosen = System.nanoTime();
+                sendCall(restRequest, endpoint, race, deadline, client.replicaFor(replica, chosen), chosen,
+                         CallMode.ASYNC, probe, false, null, racer(race, decided, pending, latencies, hedging));
+            }
+        }, hedging.delay(latencies), TimeUnit.MILLISECONDS);
+        race.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    // One of the calls of a hedged request; 'hedging' is null for the first one
+    // The winner is decided before completing the race: its listeners may run at once, in the same thread
+    private static FutureCallback<RestResponse> racer(final SettableFuture<RestResponse> race,
+                                                      final AtomicBoolean decided, final AtomicInteger pending,
+                                                      final LatencyHistogram latencies, final Hedging hedging) {
+        final long start = System.nanoTime();
+        return new FutureCallback<RestResponse>() {
+            @Override
+            public void onSuccess(RestResponse restResponse) {
+                Hedging.record(latencies, start);
+                if (!decided.compareAndSet(false, true))
+                    return;
+                if (hedging != null)
+                    hedging.onHedgeWin();
+                race.set(restResponse);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (pending.decrementAndGet() == 0 && decided.compareAndSet(false, true))
+                    race.setException(t);
+            }
+        };
+    }
+
+    // A single call, without hedging. 'permitted' if the call already has the permit of the rate limit, 'slot' the
+    // concurrency limiter of which it already holds a slot (null to take one if needed). Each exit before the call is
+    // made gives back the probe of the replica and the slot it holds.
+    private void sendCall(final RestRequest restRequest, final String endpoint, final ListenableFuture<?> owner,
+                          final long deadline, final LoadBalancer.Replica replica, final long chosen,
+                          final CallMode mode, final boolean probe, boolean permitted, ConcurrencyLimiter slot,
+                          final FutureCallback<RestResponse> callback) {
+        Request request;
+        try {
+            request = client.buildRequest(restRequest);
+        } catch (URISyntaxException e) {
+            giveBack(replica, chosen, slot);
+            callback.onFailure(e);
+            return;
+        }
+
+        ResponseCache cache = client.cacheFor(restRequest);
+        StaleResponseStore stale = client.staleFor(restRequest);
+        String key = cache != null || stale != null ? RestClient.keyOf(restRequest, request) : null;
+        ResponseCache.Entry cached = null;
+        if (cache != null) {
+            cached = cache.get(key);
+            if (cached != null && cached.isFresh() && !probe) {
+                giveBack(replica, chosen, slot);
+                callback.onSuccess(RestClient.remember(stale, key, cache.hit(cached)));
+                return;
+            }
+            request = cache.conditional(request, cached);
+        }
+
+        if (Timers.expired(deadline)) {
+            giveBack(replica, chosen, slot);
+            callback.onFailure(new DeadlineExceededException(client.deadlineMillis(restRequest)));
+            return;
+        }
+
+        // First the permit of the rate limit, then the slot of the concurrency limit: no slot is held while waiting
+        RateLimits rates = client.getRateLimits();
+        if (!permitted && rates != null) {
+            long wait;
+            try {
+                wait = rates.reserve(endpoint, Timers.maxWait(rates.getMaxWait(), deadline));
+            } catch (RateLimitException e) {
+                giveBack(replica, chosen, null);
+                callback.onFailure(e);
+                return;
+            }
+            if (wait > 0) {
+                mode.runAfter(wait, TimeUnit.NANOSECONDS, false, new Runnable() {
+                    @Override
+                    public void run() {
+                        // the callback always hears back, e.g. a probe of the circuit breaker has to
+                        if (owner.isDone()) {
+                            giveBack(replica, chosen, null);
+                            callback.onFailure(new CancellationException("Cancelled while waiting for a permit"));
+                        } else {
+                            sendCall(restRequest, endpoint, owner, deadline, replica, chosen, mode, probe, true,
+                                     null, callback);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+
+        ConcurrencyLimits limits = client.getConcurrencyLimits();
+        if (slot == null && limits != null) {
+            ConcurrencyLimiter limiter = limits.limiter(endpoint);
+            if (!limiter.tryAcquire()) {
+                long wait = Timers.maxWait(limits.getMaxWait(), deadline);
+                if (wait > 0) {
+                    sendWhenFree(restRequest, endpoint, owner, deadline, replica, chosen, mode, probe, limiter,
+                                 wait, callback);
+                } else {
+                    limiter.onRejected();
+                    giveBack(replica, chosen, null);
+                    callback.onFailure(new ConcurrencyLimitException(limiter.getLimit()));
+                }
+                return;
+            }
+            slot = limiter;
+        }
+
+        // Sent to the chosen replica, cached and remembered under the url of the server
+        if (replica != null) {
+            request = client.getLoadBalancer().rewrite(request, replica);
+            client.getLoadBalancer().onStart(replica);
+        }
+
+        final Call call = client.getOkHttpClient().newCall(request);
+        Exchange exchange = new Exchange(restRequest, endpoint, deadline, replica, chosen, slot, rates, key, cache,
+                                         cached, stale, call, callback);
+        owner.addListener(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        mode.execute(call, exchange);
+    }
+
+    // Waits for a slot of the limiter, then sends the call holding it; if no slot frees up within 'wait' ns, or the
+    // owner is cancelled meanwhile, the call fails with a ConcurrencyLimitException
+    private void sendWhenFree(final RestRequest restRequest, final String endpoint, final ListenableFuture<?> owner,
+                              final long deadline, final LoadBalancer.Replica replica, final long chosen,
+                              final CallMode mode, final boolean probe, final ConcurrencyLimiter limiter, long wait,
+                              final FutureCallback<RestResponse> callback) {
+        final SettableFuture<Boolean> waiter = limiter.enqueue();
+        final ScheduledFuture<?> timer = Timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                limiter.withdraw(waiter);
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+        owner.addListener(new Runnable() {
+            @Override
+            public void run() {
+                limiter.withdraw(waiter);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        mode.deliver(waiter, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean acquired) {
+                timer.cancel(false);
+                if (acquired) {
+                    sendCall(restRequest, endpoint, owner, deadline, replica, chosen, mode, probe, true, limiter,
+                             callback);
+                    return;
+                }
+                // counted before the failure is reported: a withdrawal by the owner is no rejection
+                if (!owner.isDone())
+                    limiter.onRejected();
+                giveBack(replica, chosen, null);
+                callback.onFailure(new ConcurrencyLimitException(limiter.getLimit()));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // the waiter is only ever set, never failed
+                timer.cancel(false);
+                giveBack(replica, chosen, null);
+                callback.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * Sends a streamed call (see {@link RestClient#stream}, {@link RestClient#download}) in the calling thread, with
+     * the permit of the rate limit and the slot of the concurrency limit of its endpoint, waited for as the other
+     * calls do. The reading of the body is part of such a call, so the slot is held until the body is closed.
+     * <p>
+     * Only the limits apply: no cache, replica, deadline or adaptive timeout, as the call cannot be answered by
+     * anyone else, nor cut once its body is being read.
+     *
+     * @throws RateLimitException        if no permit is available within the max wait of the rate limit
+     * @throws ConcurrencyLimitException if no slot frees up within the max wait of the concurrency limit
+     */
+    Response execute(RestRequest restRequest, Request request) throws IOException {
+        String endpoint = client.endpointOf(restRequest);
+
+        RateLimits rates = client.getRateLimits();
+        if (rates != null) {
+            long wait = rates.reserve(endpoint, Timers.maxWait(rates.getMaxWait(), Timers.NO_DEADLINE));
+            if (wait > 0)
+                sleep(wait);
+        }
+
+        ConcurrencyLimits limits = client.getConcurrencyLimits();
+        final ConcurrencyLimiter slot = limits != null ? limits.limiter(endpoint) : null;
+        if (slot != null)
+            acquire(slot, Timers.maxWait(limits.getMaxWait(), Timers.NO_DEADLINE));
+
+        Response response;
+        try {
+            response = client.getOkHttpClient().newCall(request).execute();
+        } catch (IOException e) {
+            if (slot != null)
+                slot.onFailure(false);
+            throw e;
+        } catch (RuntimeException e) {
+            if (slot != null)
+                slot.onCancel();
+            throw e;
+        }
+        if (response.code() == 429)
+            onThrottled(rates, endpoint, response);
+        if (slot == null)
+            return response;
+
+        if (response.code() == 429 || response.code() == 503) {
+            // the limit backs off at once; the short error body is read by the caller
+            slot.onComplete(0, true);
+            return response;
+        }
+        // Given back without a latency sample: how long the body takes to read depends on its size and on the
+        // caller, not only on the server
+        final ResponseBody body = response.body();
+        final AtomicBoolean held = new AtomicBoolean(true);
+        Source source = new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (held.compareAndSet(true, false))
+                        slot.onCancel();
+                }
+            }
+        };
+        return response.newBuilder()
+                       .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(source)))
+                       .build();
+    }
+
+    // Waits in the calling thread for the permit reserved
+    private static void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a permit");
+        }
+    }
+
+    // Takes a slot of the limiter, waiting for it in the calling thread up to 'wait' ns
+    private static void acquire(ConcurrencyLimiter limiter, long wait) throws IOException {
+        if (limiter.tryAcquire())
+            return;
+        if (wait <= 0) {
+            limiter.onRejected();
+            throw new ConcurrencyLimitException(limiter.getLimit());
+        }
+        SettableFuture<Boolean> waiter = limiter.enqueue();
+        boolean acquired;
+        try {
+            acquired = waiter.get(wait, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // the slot may have been handed over meanwhile
+            acquired = !limiter.withdraw(waiter);
+        } catch (InterruptedException e) {
+            if (!limiter.withdraw(waiter))
+                limiter.onCancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a slot");
+        } catch (ExecutionException e) {
+            // the waiter is only ever set, never failed
+            throw new IllegalStateException(e.getCause());
+        }
+        if (!acquired) {
+            limiter.onRejected();
+            throw new ConcurrencyLimitException(limiter.getLimit());
+        }
+    }
+
+    // The call ends before reaching the replica: gives back its probe of the replica (see LoadBalancer#onSkipped)
+    // and the slot of the concurrency limit it holds, if any
+    private void giveBack(LoadBalancer.Replica replica, long chosen, ConcurrencyLimiter slot) {
+        if (replica != null)
+            client.getLoadBalancer().onSkipped(replica, chosen);
+        if (slot != null)
+            slot.onCancel();
+    }
+
+    // A 429 empties the rate limit buckets of the request (if limited), for as long as its Retry-After (in seconds)
+    // asks if longer; returns the Retry-After in ms for the retries, -1 without one or for an HTTP date
+    private static long onThrottled(RateLimits rates, String endpoint, Response response) {
+        long retryAfter = -1;
+        String header = response.header("Retry-After");
+        if (header != null) {
+            try {
+                retryAfter = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(header.trim())));
+            } catch (NumberFormatException ignored) {
+                // an HTTP date: the bucket is just emptied
+            }
+        }
+        if (rates != null)
+            rates.onThrottled(endpoint, TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryAfter)));
+        return retryAfter;
+    }
+
+    // Whether a call counts as a failure of its replica
+    private static boolean isReplicaFailure(RestResponse restResponse) {
+        return !restResponse.isOk() && restResponse.isTransientErrorCode();
+    }
+
+    // Whether the server says it is overloaded: the concurrency limit backs off
+    private static boolean isOverloaded(RestResponse restResponse) {
+        return restResponse.getCode() == 429 || restResponse.getCode() == 503;
+    }
+
+    /**
+     * A call on its way: when it completes, reads the response and reports the outcome to the latencies, the
+     * replica, the concurrency limit and the callback, whether it was executed or enqueued.
+     */
+    private final class Exchange implements CallMode.CallHandler {
+        private final RestRequest restRequest;
+        private final String endpoint;
+        private final long deadline;
+        // null with a single server url
+        private final LoadBalancer.Replica replica;
+        private final long chosen;
+        // null if the calls are not limited
+        private final ConcurrencyLimiter limiter;
+        // null if the rate is not limited
+        private final RateLimits rates;
+        // the key of the response in the cache and in the stale fallback, null if neither keeps it
+        private final String key;
+        private final ResponseCache cache;
+        private final ResponseCache.Entry cached;
+        private final StaleResponseStore stale;
+        // The stale fallback keeps the String
+        private final JsonDecoder decoder;
+        private final FutureCallback<RestResponse> callback;
+        // null if the calls only have the fixed timeouts of the OkHttpClient
+        private final LatencyHistogram latencies;
+        private final long timeout;
+        private final long start;
+        private final long expiry;
+        private final ScheduledFuture<?> watchdog;
+
+        Exchange(RestRequest restRequest, String endpoint, long deadline, LoadBalancer.Replica replica,
+                 long chosen, ConcurrencyLimiter limiter, RateLimits rates, String key, ResponseCache cache,
+                 ResponseCache.Entry cached, StaleResponseStore stale, Call call,
+                 FutureCallback<RestResponse> callback) {
+            this.restRequest = restRequest;
+            this.endpoint = endpoint;
+            this.deadline = deadline;
+            this.replica = replica;
+            this.chosen = chosen;
+            this.limiter = limiter;
+            this.rates = rates;
+            this.key = key;
+            this.cache = cache;
+            this.cached = cached;
+            this.stale = stale;
+            this.decoder = stale == null ? restRequest.getDecoder() : null;
+            this.callback = callback;
+
+            AdaptiveTimeouts timeouts = client.getAdaptiveTimeouts();
+            this.latencies = timeouts != null ? timeouts.histogram(endpoint) : null;
+            this.timeout = latencies != null ? timeouts.timeout(latencies) : 0;
+            this.start = System.nanoTime();
+            this.expiry = Timers.expiry(start, deadline, timeout);
+            this.watchdog = Timers.watchdog(call, expiry);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            long retryAfter = response.code() == 429 ? onThrottled(rates, endpoint, response) : -1;
+            RestResponse restResponse;
+            try {
+                restResponse = RestClient.remember(stale, key,
+                                                   ResponseReader.read(response, key, cache, cached, decoder));
+                restResponse.setRetryAfter(retryAfter);
+            } catch (IOException e) {
+                onFailure(call, e);
+                return;
+            } catch (RuntimeException e) {
+                onError(e);
+                return;
+            }
+            Timers.cancel(watchdog);
+
+            long nanos = System.nanoTime() - start;
+            if (latencies != null)
+                latencies.record(nanos);
+            if (replica != null)
+                client.getLoadBalancer().onComplete(replica, chosen, isReplicaFailure(restResponse), false, nanos);
+            if (limiter != null)
+                limiter.onComplete(nanos, isOverloaded(restResponse));
+            callback.onSuccess(restResponse);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            Timers.cancel(watchdog);
+            boolean cancelled = call.isCanceled() && !Timers.expired(expiry);
+            if (replica != null)
+                client.getLoadBalancer().onComplete(replica, chosen, true, cancelled, 0);
+            if (limiter != null)
+                limiter.onFailure(cancelled);
+            callback.onFailure(timeoutOr(e));
+        }
+
+        @Override
+        public void onError(RuntimeException e) {
+            Timers.cancel(watchdog);
+            if (replica != null)
+                client.getLoadBalancer().onComplete(replica, chosen, true, false, 0);
+            if (limiter != null)
+                limiter.onCancel();
+            callback.onFailure(e);
+        }
+
+        // The failure of a call cancelled by its watchdog becomes a DeadlineExceededException, or a
+        // SocketTimeoutException if it was its adaptive timeout that expired
+        private IOException timeoutOr(IOException e) {
+            if (Timers.expired(deadline)) {
+                if (e instanceof DeadlineExceededException)
+                    return e;
+                return new DeadlineExceededException(client.deadlineMillis(restRequest), e);
+            }
+            if (latencies != null && Timers.expired(expiry)) {
+                AdaptiveTimeouts.recordTimeout(latencies, timeout);
+                SocketTimeoutException timedOut =
+                        new SocketTimeoutException("The adaptive timeout of " + timeout + " ms expired");
+                timedOut.initCause(e);
+                return timedOut;
+            }
+            return e;
+        }
+    }
+}
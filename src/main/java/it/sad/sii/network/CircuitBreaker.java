@@ -0,0 +1,153 @@
+package it.sad.sii.network;
+
+import it.sad.sii.network.RestClient.RetryCircuitBreakerState;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free circuit breaker used by {@link RestClient} in Smart Mode.
+ * <p>
+ * The whole state lives in an immutable snapshot swapped with compare-and-set, so the CLOSED fast path is a single
+ * volatile read. When the OPEN period expires the first thread that notices moves the breaker to HALF_OPEN, which
+ * lets through at most 'maxHalfOpenProbes' careful requests and rejects everything else: the first probe that
+ * succeeds closes the breaker, a probe that fails opens it again.
+ * <p>
+ * Besides a smart request running out of retries, the breaker can also be opened by a {@link SlidingWindowPolicy}
+ * fed with the outcome of every single attempt.
+ */
+final class CircuitBreaker {
+
+    enum Permission {
+        // Breaker closed: go ahead with retries
+        SMART,
+        // Breaker half-open: send a single careful request
+        PROBE,
+        // Breaker open, or half-open with all the probes already in flight
+        REJECTED
+    }
+
+    private static final class Snapshot {
+        final RetryCircuitBreakerState state;
+        // When the breaker entered the current state
+        final long since;
+        // Probes still available, only meaningful in HALF_OPEN
+        final AtomicInteger probes;
+
+        Snapshot(RetryCircuitBreakerState state, long since, int probes) {
+            this.state = state;
+            this.since = since;
+            this.probes = new AtomicInteger(probes);
+        }
+    }
+
+    private static final Snapshot CLOSED = new Snapshot(RetryCircuitBreakerState.CLOSED, 0, 0);
+
+    private final int maxOpenTime;
+    private final int maxHalfOpenProbes;
+    // null if the breaker is only opened by retrySend
+    private final SlidingWindowPolicy.Window window;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(CLOSED);
+
+    CircuitBreaker(int maxOpenTime, int maxHalfOpenProbes) {
+        this(maxOpenTime, maxHalfOpenProbes, null);
+    }
+
+    CircuitBreaker(int maxOpenTime, int maxHalfOpenProbes, SlidingWindowPolicy policy) {
+        this.maxOpenTime = maxOpenTime;
+        this.maxHalfOpenProbes = maxHalfOpenProbes;
+        this.window = policy != null ? policy.newWindow() : null;
+    }
+
+    RetryCircuitBreakerState getState() {
+        return snapshot.get().state;
+    }
+
+    Permission acquirePermission() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            switch (current.state) {
+                case CLOSED:
+                    return Permission.SMART;
+
+                case OPEN:
+                    if (System.currentTimeMillis() - current.since < maxOpenTime)
+                        return Permission.REJECTED;
+                    // Open period expired: only one thread wins the CAS, everybody then competes for the probes
+                    snapshot.compareAndSet(current, halfOpen());
+                    break;
+
+                case HALF_OPEN:
+                    // Every probe reports back with onProbeSuccess, onProbeFailure or onProbeCancelled
+                    return tryTakeProbe(current.probes) ? Permission.PROBE : Permission.REJECTED;
+
+                default:
+                    return Permission.REJECTED;
+            }
+        }
+    }
+
+    /**
+     * Milliseconds left before the breaker lets some request through again (0 if it already does).
+     */
+    long getRemainingOpenTime() {
+        Snapshot current = snapshot.get();
+        if (current.state == RetryCircuitBreakerState.CLOSED)
+            return 0;
+        return Math.max(0, maxOpenTime - (System.currentTimeMillis() - current.since));
+    }
+
+    void onProbeSuccess() {
+        Snapshot current = snapshot.get();
+        if (current.state == RetryCircuitBreakerState.HALF_OPEN && snapshot.compareAndSet(current, CLOSED)) {
+            // Start again from a clean window, or the old failures would open the breaker straight away
+            if (window != null)
+                window.reset();
+        }
+    }
+
+    void onProbeFailure() {
+        Snapshot current = snapshot.get();
+        if (current.state == RetryCircuitBreakerState.HALF_OPEN)
+            snapshot.compareAndSet(current, open());
+    }
+
+    // A probe that did not reach the server (cancelled, or rejected before being sent): it is given back, so that
+    // another request can probe. Nothing to give back if the breaker left the HALF_OPEN state meanwhile.
+    void onProbeCancelled() {
+        Snapshot current = snapshot.get();
+        if (current.state == RetryCircuitBreakerState.HALF_OPEN)
+            current.probes.incrementAndGet();
+    }
+
+    // Outcome of a single attempt of a smart request
+    void onAttempt(boolean failure, long durationNanos) {
+        if (window != null && window.record(failure, durationNanos))
+            onFailure();
+    }
+
+    // A smart request ran out of retries
+    void onFailure() {
+        Snapshot current = snapshot.get();
+        if (current.state == RetryCircuitBreakerState.CLOSED)
+            snapshot.compareAndSet(current, open());
+    }
+
+    private Snapshot open() {
+        return new Snapshot(RetryCircuitBreakerState.OPEN, System.currentTimeMillis(), 0);
+    }
+
+    private Snapshot halfOpen() {
+        return new Snapshot(RetryCircuitBreakerState.HALF_OPEN, System.currentTimeMillis(), maxHalfOpenProbes);
+    }
+
+    private static boolean tryTakeProbe(AtomicInteger probes) {
+        while (true) {
+            int available = probes.get();
+            if (available <= 0)
+                return false;
+            if (probes.compareAndSet(available, available - 1))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package it.sad.sii.network;
+
+import it.sad.sii.network.RestClient.RetryCircuitBreakerState;
+
+/**
+ * The circuit breakers of a {@link RestClient}, one per endpoint as defined by an {@link EndpointClassifier}.
+ * <p>
+ * Without a classifier there is a single circuit breaker for the whole client and the lookup costs nothing.
+ * Otherwise the breakers live in an {@link EndpointMap} holding at most 'maxBreakers' entries: when a new endpoint
+ * shows up, the breakers not used for 'maxIdleTime' ms are dropped and, if the map is still full, the least recently
+ * used one goes too.
+ */
+final class CircuitBreakerRegistry {
+
+    private final int maxOpenTime;
+    private final int maxHalfOpenProbes;
+    private final SlidingWindowPolicy policy;
+
+    // Used without a classifier, i.e. for the requests without an endpoint
+    private final CircuitBreaker singleBreaker;
+    // null without a classifier
+    private final EndpointMap<CircuitBreaker> breakers;
+
+    CircuitBreakerRegistry(int maxOpenTime, int maxHalfOpenProbes, SlidingWindowPolicy policy) {
+        this(maxOpenTime, maxHalfOpenProbes, policy, 0, 0);
+    }
+
+    /**
+     * @param maxBreakers 0 for a single circuit breaker
+     */
+    CircuitBreakerRegistry(int maxOpenTime, int maxHalfOpenProbes, SlidingWindowPolicy policy, int maxBreakers,
+                           long maxIdleTime) {
+        this.maxOpenTime = maxOpenTime;
+        this.maxHalfOpenProbes = maxHalfOpenProbes;
+        this.policy = policy;
+        this.singleBreaker = newBreaker();
+        this.breakers = maxBreakers <= 0 ? null : new EndpointMap<CircuitBreaker>(maxBreakers, maxIdleTime, true) {
+            @Override
+            CircuitBreaker create() {
+                return newBreaker();
+            }
+        };
+    }
+
+    /**
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}; null without a classifier
+     */
+    CircuitBreaker get(String endpoint) {
+        if (breakers == null || endpoint == null)
+            return singleBreaker;
+
+        CircuitBreaker breaker = breakers.get(endpoint);
+        return breaker != null ? breaker : singleBreaker;
+    }
+
+    /**
+     * The state of the single circuit breaker or, with per-endpoint breakers, the "worst" one: OPEN if at least one
+     * endpoint is open, HALF_OPEN if at least one is half-open, CLOSED otherwise.
+     */
+    RetryCircuitBreakerState getState() {
+        if (breakers == null)
+            return singleBreaker.getState();
+
+        RetryCircuitBreakerState state = RetryCircuitBreakerState.CLOSED;
+        for (CircuitBreaker breaker : breakers.values()) {
+            RetryCircuitBreakerState current = breaker.getState();
+            if (current == RetryCircuitBreakerState.OPEN)
+                return current;
+            if (current == RetryCircuitBreakerState.HALF_OPEN)
+                state = current;
+        }
+        return state;
+    }
+
+    int size() {
+        return breakers == null ? 1 : breakers.size();
+    }
+
+    private CircuitBreaker newBreaker() {
+        return new CircuitBreaker(maxOpenTime, maxHalfOpenProbes, policy);
+    }
+}
@@ -0,0 +1,54 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the request bodies gzip-compressed by a {@link RestClient}, see
+ * {@link RestClient#enableRequestCompression(int)}: the ratio and the time spent tell whether the threshold is
+ * worth lowering or raising.
+ */
+public final class CompressionStats {
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+
+    void record(long uncompressed, long compressed, long nanos) {
+        requestCount.incrementAndGet();
+        uncompressedBytes.addAndGet(uncompressed);
+        compressedBytes.addAndGet(compressed);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of bodies compressed and sent, retries included
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return compressed size / uncompressed size of all the bodies (e.g. 0.2 = 80% saved), 1 if none was compressed
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1 : (double)compressedBytes.get() / uncompressed;
+    }
+
+    /**
+     * @return the time in ms spent compressing, without the time spent writing to the connection
+     */
+    public long getCompressionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionNanos.get());
+    }
+}
@@ -0,0 +1,23 @@
+package it.sad.sii.network;
+
+import java.io.IOException;
+
+/**
+ * A call was not sent because its endpoint had as many calls in flight as its concurrency limit allows (see
+ * {@link RestClient#enableConcurrencyLimit(int, int, int, int)}), and no slot freed up in time.
+ */
+public class ConcurrencyLimitException extends IOException {
+    private final int limit;
+
+    public ConcurrencyLimitException(int limit) {
+        super("The concurrency limit of " + limit + " calls in flight was reached");
+        this.limit = limit;
+    }
+
+    /**
+     * @return the concurrency limit when the call was rejected
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,170 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The adaptive concurrency limit of one endpoint (see {@link ConcurrencyLimits}): how many calls may be in flight at
+ * the same time, adjusted after each call as TCP Vegas adjusts its window.
+ * <p>
+ * The lowest latency seen is taken as the latency without queueing; from the latency of a call the limiter
+ * estimates how many calls are queueing in the server, limit * (1 - minLatency / latency). Below {@link #ALPHA} the
+ * limit grows by one, if it is actually used; above {@link #BETA} it shrinks by one. A timeout, a connection
+ * failure or an overloaded server (429, 503) cuts it by {@link #BACKOFF} at once. The minimum latency slowly forgets
+ * the old samples, so that it follows the server when its latency without load changes.
+ * <p>
+ * Taking and giving back a slot is a compare-and-set; the limit and the minimum latency are updated without locks,
+ * a lost update does not matter. The calls waiting for a slot get them in FIFO order.
+ */
+final class ConcurrencyLimiter {
+
+    // estimated queued calls below which the limit grows, and above which it shrinks
+    static final int ALPHA = 3;
+    static final int BETA = 6;
+    // factor applied to the limit at each drop
+    static final double BACKOFF = 0.9;
+    // share of the difference by which the minimum latency moves up at each sample
+    private static final int MIN_LATENCY_DRIFT_SHIFT = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicLong rejections;
+
+    private volatile double limit;
+    // µs, 0 until the first sample
+    private volatile long minLatency;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // set to true for a slot handed over, to false when withdrawn
+    private final Queue<SettableFuture<Boolean>> waiters = new ConcurrentLinkedQueue<SettableFuture<Boolean>>();
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, AtomicLong rejections) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rejections = rejections;
+    }
+
+    int getLimit() {
+        return (int)limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    // No call holds or waits for a slot
+    boolean isIdle() {
+        return inFlight.get() == 0 && waiters.isEmpty();
+    }
+
+    // A slot for a call, if the limit is not reached; waiting calls come first
+    boolean tryAcquire() {
+        return waiters.isEmpty() && take();
+    }
+
+    private boolean take() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int)limit)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Waits for a slot: the returned future is set to true when a call gives it back (then the slot is taken), or to
+     * false by {@link #withdraw}.
+     */
+    SettableFuture<Boolean> enqueue() {
+        SettableFuture<Boolean> waiter = SettableFuture.create();
+        waiters.add(waiter);
+        // a slot may have been given back while queueing
+        drain();
+        return waiter;
+    }
+
+    /**
+     * Stops waiting for a slot.
+     *
+     * @return false if the waiter got a slot in the meantime
+     */
+    boolean withdraw(SettableFuture<Boolean> waiter) {
+        if (!waiter.set(false))
+            return false;
+        waiters.remove(waiter);
+        return true;
+    }
+
+    void onRejected() {
+        rejections.incrementAndGet();
+    }
+
+    // Hands the free slots to the waiting calls
+    private void drain() {
+        while (!waiters.isEmpty() && take()) {
+            SettableFuture<Boolean> waiter = waiters.poll();
+            if (waiter == null || !waiter.set(true))
+                inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * The call gave back its slot.
+     *
+     * @param nanos   its latency, for a call that got a response
+     * @param dropped true for a timeout, a connection failure or an overloaded server
+     */
+    void onComplete(long nanos, boolean dropped) {
+        int used = inFlight.getAndDecrement();
+        if (dropped)
+            setLimit(limit * BACKOFF);
+        else
+            sample(TimeUnit.NANOSECONDS.toMicros(nanos), used);
+        drain();
+    }
+
+    /**
+     * The call failed without a response.
+     *
+     * @param cancelled true if it was cancelled by the client, which tells nothing about the server
+     */
+    void onFailure(boolean cancelled) {
+        if (cancelled)
+            onCancel();
+        else
+            onComplete(0, true);
+    }
+
+    // The slot was not used, or the call was cancelled by the client
+    void onCancel() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void sample(long latency, int used) {
+        latency = Math.max(1, latency);
+        long min = minLatency;
+        if (min == 0 || latency < min)
+            minLatency = min = latency;
+        else
+            minLatency = min + ((latency - min) >> MIN_LATENCY_DRIFT_SHIFT);
+
+        double current = limit;
+        double queued = current * (1 - (double)min / latency);
+        // an application sending few calls says nothing about how many the server can take
+        if (queued < ALPHA && used * 2 >= (int)current)
+            setLimit(current + 1);
+        else if (queued > BETA)
+            setLimit(current - 1);
+    }
+
+    private void setLimit(double value) {
+        limit = Math.max(minLimit, Math.min(maxLimit, value));
+    }
+}
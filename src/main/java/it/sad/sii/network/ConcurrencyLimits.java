@@ -0,0 +1,109 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The adaptive concurrency limits of a {@link RestClient}: a {@link ConcurrencyLimiter} for each endpoint, as
+ * defined by the {@link EndpointClassifier} of the client, or one for the whole client without it.
+ * <p>
+ * At most 'maxEndpoints' limiters are kept, the ones not used for 'maxIdleTime' ms are dropped when a new endpoint
+ * shows up, unless calls still hold or wait for their slots (they would be lost): the endpoints that find no room
+ * share a single one.
+ */
+final class ConcurrencyLimits {
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWait;
+    private final int maxEndpoints;
+    private final AtomicLong rejections;
+
+    // Used without a classifier, and for the endpoints that find no room
+    private final ConcurrencyLimiter sharedLimiter;
+    // null without a classifier
+    private final EndpointMap<ConcurrencyLimiter> limiters;
+
+    /**
+     * @param maxEndpoints 0 for a single limiter, see {@link RestClient#getMaxEndpoints()}
+     */
+    ConcurrencyLimits(int initialLimit, int minLimit, int maxLimit, long maxWait, int maxEndpoints,
+                      long maxIdleTime) {
+        this(initialLimit, minLimit, maxLimit, maxWait, maxEndpoints, maxIdleTime, new AtomicLong());
+    }
+
+    private ConcurrencyLimits(int initialLimit, int minLimit, int maxLimit, long maxWait, int maxEndpoints,
+                              long maxIdleTime, AtomicLong rejections) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWait = maxWait;
+        this.maxEndpoints = maxEndpoints;
+        this.rejections = rejections;
+        this.sharedLimiter = newLimiter();
+        this.limiters = maxEndpoints <= 0 ? null :
+                new EndpointMap<ConcurrencyLimiter>(maxEndpoints, maxIdleTime, false) {
+            @Override
+            ConcurrencyLimiter create() {
+                return newLimiter();
+            }
+
+            @Override
+            boolean canDrop(ConcurrencyLimiter limiter) {
+                return limiter.isIdle();
+            }
+        };
+    }
+
+    // Same limits and counter, for a new classifier: the limits start again from the initial one
+    ConcurrencyLimits withEndpoints(int maxEndpoints, long maxIdleTime) {
+        return new ConcurrencyLimits(initialLimit, minLimit, maxLimit, maxWait, maxEndpoints, maxIdleTime,
+                                     rejections);
+    }
+
+    /**
+     * @return the max time in ms a call waits for a slot, 0 to reject it at once
+     */
+    long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}; null without a classifier
+     */
+    ConcurrencyLimiter limiter(String endpoint) {
+        if (limiters == null || endpoint == null)
+            return sharedLimiter;
+
+        ConcurrencyLimiter limiter = limiters.get(endpoint);
+        return limiter != null ? limiter : sharedLimiter;
+    }
+
+    private ConcurrencyLimiter newLimiter() {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, rejections);
+    }
+
+    // The sum of the limits of all the endpoints; the shared limiter counts once it is used
+    int getLimit() {
+        if (limiters == null)
+            return sharedLimiter.getLimit();
+
+        int limit = limiters.size() >= maxEndpoints ? sharedLimiter.getLimit() : 0;
+        for (ConcurrencyLimiter limiter : limiters.values())
+            limit += limiter.getLimit();
+        return limit;
+    }
+
+    int getInFlight() {
+        int inFlight = sharedLimiter.getInFlight();
+        if (limiters != null) {
+            for (ConcurrencyLimiter limiter : limiters.values())
+                inFlight += limiter.getInFlight();
+        }
+        return inFlight;
+    }
+
+    long getRejectedCount() {
+        return rejections.get();
+    }
+}
@@ -10,6 +10,8 @@ import java.lang.reflect.Type;
  * Created by ldematte on 2/17/15.
  * <p/>
  * A helper to serialize/deserialize Joda DateTime with GSON
+ * <p/>
+ * {@link DateTimeTypeAdapter} does the same reading and writing the JSON stream directly, which is much faster.
  */
 
 public final class DateTimeDeserializer implements JsonDeserializer<DateTime>, JsonSerializer<DateTime> {
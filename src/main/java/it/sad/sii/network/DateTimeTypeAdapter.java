@@ -0,0 +1,113 @@
+package it.sad.sii.network;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes Joda DateTime as "yyyy-MM-dd HH:mm:ss" in the default time zone, like
+ * {@link DateTimeDeserializer}, but straight from the JSON stream:
+ * <pre>
+ * new GsonBuilder().registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter()).create()
+ * </pre>
+ * No JsonElement is built for each value, and the fixed-width text is parsed and printed by hand instead of going
+ * through a Joda DateTimeFormatter, which matters with hundreds of thousands of timestamps per response. Values
+ * that are not exactly in that form (e.g. without leading zeros) are still handed to the Joda formatter, so that the
+ * same strings are accepted. As with DateTimeDeserializer, an empty string is read as null.
+ * <p>
+ * Unlike DateTimeDeserializer, a value that cannot be parsed is reported as a {@link JsonSyntaxException}.
+ */
+public final class DateTimeTypeAdapter extends TypeAdapter<DateTime> {
+
+    // "yyyy-MM-dd HH:mm:ss"
+    private static final int LENGTH = 19;
+
+    @Override
+    public DateTime read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        String value = in.nextString();
+        if (value.length() == 0)
+            return null;
+
+        try {
+            DateTime dateTime = parseFixedWidth(value);
+            return dateTime != null ? dateTime : DateTimeDeserializer.DATE_TIME_FORMATTER.parseDateTime(value);
+        } catch (IllegalArgumentException e) {
+            throw new JsonSyntaxException("Invalid date '" + value + "' at " + in.getPath(), e);
+        }
+    }
+
+    @Override
+    public void write(JsonWriter out, DateTime value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+
+        int year = value.getYear();
+        if (year < 0 || year > 9999) {
+            out.value(DateTimeDeserializer.DATE_TIME_FORMATTER.print(value));
+            return;
+        }
+
+        char[] chars = new char[LENGTH];
+        put(chars, 0, year, 4);
+        chars[4] = '-';
+        put(chars, 5, value.getMonthOfYear(), 2);
+        chars[7] = '-';
+        put(chars, 8, value.getDayOfMonth(), 2);
+        chars[10] = ' ';
+        put(chars, 11, value.getHourOfDay(), 2);
+        chars[13] = ':';
+        put(chars, 14, value.getMinuteOfHour(), 2);
+        chars[16] = ':';
+        put(chars, 17, value.getSecondOfMinute(), 2);
+        out.value(new String(chars));
+    }
+
+    // null if the value is not exactly "yyyy-MM-dd HH:mm:ss"; out of range fields throw IllegalArgumentException
+    static DateTime parseFixedWidth(String value) {
+        if (value.length() != LENGTH || value.charAt(4) != '-' || value.charAt(7) != '-' ||
+            value.charAt(10) != ' ' || value.charAt(13) != ':' || value.charAt(16) != ':')
+            return null;
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        if ((year | month | day | hour | minute | second) < 0)
+            return null;
+
+        return new DateTime(year, month, day, hour, minute, second, 0);
+    }
+
+    // -1 if one of the chars is not a digit
+    private static int digits(String value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; ++i) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static void put(char[] chars, int start, int number, int count) {
+        for (int i = start + count - 1; i >= start; --i) {
+            chars[i] = (char)('0' + number % 10);
+            number /= 10;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package it.sad.sii.network;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The deadline of a request (see {@link RestClient#setRequestDeadline(int)}) expired before it completed, including
+ * its retries: the call in flight, if any, was cancelled.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+    private final long deadline;
+
+    public DeadlineExceededException(long deadline) {
+        super("The deadline of " + deadline + " ms expired");
+        this.deadline = deadline;
+    }
+
+    public DeadlineExceededException(long deadline, Throwable cause) {
+        this(deadline);
+        initCause(cause);
+    }
+
+    /**
+     * @return the deadline in ms
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+}
@@ -0,0 +1,18 @@
+package it.sad.sii.network;
+
+import java.net.URI;
+
+/**
+ * Maps a request to the endpoint it belongs to: requests with the same key share the same circuit breaker.
+ * <p>
+ * See {@link EndpointClassifiers} for the common classifiers.
+ */
+public interface EndpointClassifier {
+
+    /**
+     * @param verb HTTP verb of the request
+     * @param uri  request URI, already resolved against the server URI (without query parameters)
+     * @return the endpoint key, never null
+     */
+    String classify(RestRequest.HTTPVerb verb, URI uri);
+}
@@ -0,0 +1,80 @@
+package it.sad.sii.network;
+
+import java.net.URI;
+
+/**
+ * The common {@link EndpointClassifier}s.
+ */
+public final class EndpointClassifiers {
+
+    private EndpointClassifiers() {
+    }
+
+    /**
+     * One endpoint per host (and port).
+     */
+    public static EndpointClassifier byHost() {
+        return new EndpointClassifier() {
+            @Override
+            public String classify(RestRequest.HTTPVerb verb, URI uri) {
+                return uri.getPort() < 0 ? String.valueOf(uri.getHost()) : uri.getHost() + ":" + uri.getPort();
+            }
+        };
+    }
+
+    /**
+     * One endpoint per HTTP verb.
+     */
+    public static EndpointClassifier byVerb() {
+        return new EndpointClassifier() {
+            @Override
+            public String classify(RestRequest.HTTPVerb verb, URI uri) {
+                return verb.name();
+            }
+        };
+    }
+
+    /**
+     * One endpoint per host and first 'segments' segments of the path: with 2 segments
+     * "/reports/export/2017?id=3" and "/reports/export/2018" are the same endpoint, "/reports/list" is another one.
+     */
+    public static EndpointClassifier byPathPrefix(final int segments) {
+        if (segments <= 0)
+            throw new IllegalArgumentException("The number of path segments has to be greater than zero");
+
+        return new EndpointClassifier() {
+            @Override
+            public String classify(RestRequest.HTTPVerb verb, URI uri) {
+                return uri.getHost() + pathPrefix(uri.getRawPath(), segments);
+            }
+        };
+    }
+
+    /**
+     * One endpoint per HTTP verb, host and first 'segments' segments of the path.
+     */
+    public static EndpointClassifier byVerbAndPathPrefix(final int segments) {
+        final EndpointClassifier byPathPrefix = byPathPrefix(segments);
+        return new EndpointClassifier() {
+            @Override
+            public String classify(RestRequest.HTTPVerb verb, URI uri) {
+                return verb.name() + " " + byPathPrefix.classify(verb, uri);
+            }
+        };
+    }
+
+    static String pathPrefix(String path, int segments) {
+        if (path == null || path.isEmpty())
+            return "/";
+
+        int end = 0;
+        for (int i = 0; i < segments; ++i) {
+            // skip the '/' that starts the segment
+            int next = path.indexOf('/', end + 1);
+            if (next < 0)
+                return path;
+            end = next;
+        }
+        return path.substring(0, end);
+    }
+}
@@ -0,0 +1,114 @@
+package it.sad.sii.network;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Collections2;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The state a {@link RestClient} keeps for each endpoint (a circuit breaker, the latencies, a limiter...), by the
+ * key of the endpoint as defined by its {@link EndpointClassifier}.
+ * <p>
+ * A concurrent map holding at most 'maxEndpoints' entries: when a new endpoint shows up, the entries not used for
+ * 'maxIdleTime' ms (and that {@link #canDrop}) are dropped and, if the map is still full, either the least recently
+ * used one goes too or the new endpoint gets no entry of its own (the owner then uses a shared one).
+ */
+abstract class EndpointMap<V> {
+
+    private static final class Entry<V> {
+        final V value;
+        volatile long lastAccess;
+
+        Entry(V value, long now) {
+            this.value = value;
+            this.lastAccess = now;
+        }
+    }
+
+    // Do not write lastAccess on every request, once per second is precise enough
+    private static final long ACCESS_RESOLUTION = 1000;
+
+    private final int maxEndpoints;
+    private final long maxIdleTime;
+    private final boolean dropLeastRecentlyUsed;
+
+    private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * @param dropLeastRecentlyUsed true to make room for a new endpoint dropping the least recently used one, false
+     *                              to leave it without an entry
+     */
+    EndpointMap(int maxEndpoints, long maxIdleTime, boolean dropLeastRecentlyUsed) {
+        this.maxEndpoints = maxEndpoints;
+        this.maxIdleTime = maxIdleTime;
+        this.dropLeastRecentlyUsed = dropLeastRecentlyUsed;
+    }
+
+    abstract V create();
+
+    // Whether an entry not used for maxIdleTime ms can be dropped, e.g. not while calls in flight hold it
+    boolean canDrop(V value) {
+        return true;
+    }
+
+    /**
+     * @return the entry of the endpoint, created if needed; null if the map is full and keeps its entries
+     */
+    V get(String endpoint) {
+        long now = System.currentTimeMillis();
+
+        Entry<V> entry = entries.get(endpoint);
+        if (entry == null) {
+            if (entries.size() >= maxEndpoints || now - lastSweep >= maxIdleTime)
+                evict(now);
+            if (entries.size() >= maxEndpoints)
+                return null;
+
+            Entry<V> created = new Entry<V>(create(), now);
+            entry = entries.putIfAbsent(endpoint, created);
+            if (entry == null)
+                entry = created;
+        } else if (now - entry.lastAccess >= ACCESS_RESOLUTION) {
+            entry.lastAccess = now;
+        }
+        return entry.value;
+    }
+
+    Collection<V> values() {
+        return Collections2.transform(entries.values(), new Function<Entry<V>, V>() {
+            @Override
+            public V apply(Entry<V> entry) {
+                return entry.value;
+            }
+        });
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evict(long now) {
+        lastSweep = now;
+
+        Map.Entry<String, Entry<V>> leastRecentlyUsed = null;
+        for (Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry<V>> current = it.next();
+            if (!canDrop(current.getValue().value))
+                continue;
+            if (now - current.getValue().lastAccess >= maxIdleTime) {
+                it.remove();
+            } else if (leastRecentlyUsed == null ||
+                       current.getValue().lastAccess < leastRecentlyUsed.getValue().lastAccess) {
+                leastRecentlyUsed = current;
+            }
+        }
+
+        if (dropLeastRecentlyUsed && entries.size() >= maxEndpoints && leastRecentlyUsed != null)
+            entries.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+    }
+}
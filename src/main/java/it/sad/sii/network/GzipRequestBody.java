@@ -0,0 +1,91 @@
+package it.sad.sii.network;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.internal.http.UnrepeatableRequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+import java.io.IOException;
+
+/**
+ * A request body gzip-compressed while it is written to the connection: neither the plain nor the compressed body
+ * is ever held in memory as a whole. Its length is unknown in advance, so it is sent chunked.
+ */
+class GzipRequestBody extends RequestBody {
+
+    private final RequestBody body;
+    private final CompressionStats stats;
+
+    private GzipRequestBody(RequestBody body, CompressionStats stats) {
+        this.body = body;
+        this.stats = stats;
+    }
+
+    static RequestBody create(RequestBody body, CompressionStats stats) {
+        // OkHttp must still know whether it can send the body again
+        return body instanceof UnrepeatableRequestBody ? new Unrepeatable(body, stats)
+                                                       : new GzipRequestBody(body, stats);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        long start = System.nanoTime();
+        // The connection is not ours to close: closing the gzip stream only writes its trailer
+        CountingSink compressed = new CountingSink(sink, false);
+        CountingSink uncompressed = new CountingSink(new GzipSink(compressed), true);
+        BufferedSink gzip = Okio.buffer(uncompressed);
+        body.writeTo(gzip);
+        gzip.close();
+
+        stats.record(uncompressed.bytes, compressed.bytes, System.nanoTime() - start - compressed.nanos);
+    }
+
+    private static final class Unrepeatable extends GzipRequestBody implements UnrepeatableRequestBody {
+        Unrepeatable(RequestBody body, CompressionStats stats) {
+            super(body, stats);
+        }
+    }
+
+    // Counts the bytes written through it, and the time spent writing them
+    private static final class CountingSink extends ForwardingSink {
+        private final boolean propagateClose;
+        long bytes = 0;
+        long nanos = 0;
+
+        CountingSink(Sink delegate, boolean propagateClose) {
+            super(delegate);
+            this.propagateClose = propagateClose;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            long start = System.nanoTime();
+            super.write(source, byteCount);
+            nanos += System.nanoTime() - start;
+            bytes += byteCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (propagateClose)
+                super.close();
+            else
+                flush();
+        }
+    }
+}
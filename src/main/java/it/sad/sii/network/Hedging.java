@@ -0,0 +1,88 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The request hedging of a {@link RestClient}: when the call of an idempotent request has no response after the
+ * hedge delay, an identical call goes out and the first response wins.
+ * <p>
+ * The delay is either fixed or a percentile of the latencies of the endpoint (e.g. the p95, so that only about
+ * 5% of the calls are hedged), kept as the adaptive timeouts do. Every hedge is paid for with a token of the
+ * {@link RetryBudget}: once the budget is empty the slow calls are left alone, so hedging cannot double the load.
+ */
+final class Hedging {
+
+    // fixed delay in ms, 0 if the delay follows the latencies
+    private final long delay;
+    // null with a fixed delay
+    private final AdaptiveTimeouts delays;
+    private final RetryBudget budget;
+    private final AtomicLong hedges;
+    private final AtomicLong hedgeWins;
+
+    Hedging(long delay, RetryBudget budget) {
+        this(delay, null, budget, new AtomicLong(), new AtomicLong());
+    }
+
+    Hedging(AdaptiveTimeouts delays, RetryBudget budget) {
+        this(0, delays, budget, new AtomicLong(), new AtomicLong());
+    }
+
+    private Hedging(long delay, AdaptiveTimeouts delays, RetryBudget budget, AtomicLong hedges,
+                    AtomicLong hedgeWins) {
+        this.delay = delay;
+        this.delays = delays;
+        this.budget = budget;
+        this.hedges = hedges;
+        this.hedgeWins = hedgeWins;
+    }
+
+    // null with a fixed delay
+    LatencyHistogram latencies(String endpoint) {
+        return delays != null ? delays.histogram(endpoint) : null;
+    }
+
+    /**
+     * @return the delay in ms after which a call with the given latencies is hedged
+     */
+    long delay(LatencyHistogram latencies) {
+        return latencies != null ? delays.timeout(latencies) : delay;
+    }
+
+    // Called once per hedgeable request
+    void onRequest() {
+        budget.onRequest();
+    }
+
+    // Called before each hedge: false if the budget does not allow it
+    boolean tryHedge() {
+        if (!budget.tryRetry())
+            return false;
+        hedges.incrementAndGet();
+        return true;
+    }
+
+    void onHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    static void record(LatencyHistogram latencies, long start) {
+        if (latencies != null)
+            latencies.record(System.nanoTime() - start);
+    }
+
+    long getHedgeCount() {
+        return hedges.get();
+    }
+
+    long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    // Same hedging and counters, for a new classifier: the latencies start again from scratch
+    Hedging withEndpoints(int maxEndpoints, long maxIdleTime) {
+        if (delays == null)
+            return this;
+        return new Hedging(0, delays.withEndpoints(maxEndpoints, maxIdleTime), budget, hedges, hedgeWins);
+    }
+}
@@ -0,0 +1,57 @@
+package it.sad.sii.network;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+
+/**
+ * Decodes the body of a successful response straight into an object of the requested type, see
+ * {@link RestClient#get(String, java.util.Map, Type)}.
+ * <p>
+ * The body is read from the stream of the response as it arrives: the JSON text is never held in memory as a whole
+ * String next to the decoded object.
+ */
+final class JsonDecoder {
+
+    /**
+     * The Gson used by default by all the clients and by {@link RestResponse#as(Type)}: thread safe, with
+     * {@link DateTimeTypeAdapter} already registered.
+     */
+    static final Gson DEFAULT_GSON = new GsonBuilder()
+            .registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter())
+            .create();
+
+    private final Gson gson;
+    private final Type type;
+
+    JsonDecoder(Gson gson, Type type) {
+        this.gson = gson;
+        this.type = type;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    // Decodes a whole JSON document; a body that does not match the type is a JsonParseException
+    Object decode(Reader body) throws IOException {
+        JsonReader reader = gson.newJsonReader(body);
+        try {
+            return gson.fromJson(reader, type);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static <T> T decode(Gson gson, String json, Type type) {
+        if (json == null)
+            throw new JsonParseException("The response has no body");
+        return gson.fromJson(json, type);
+    }
+}
@@ -0,0 +1,130 @@
+package it.sad.sii.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The elements of a JSON response, decoded one at a time while the body is read from the connection, see
+ * {@link RestClient#stream(String, java.util.Map, Type)}: memory stays constant whatever the size of the response.
+ * <p>
+ * The body is either a JSON array, whose elements are returned in order, or newline-delimited JSON (a sequence of
+ * values, one per line). It is recognized as the latter by its Content-Type (application/x-ndjson,
+ * application/ndjson, application/jsonl, application/x-jsonlines, application/stream+json) or because it does not
+ * start with an array.
+ * <p>
+ * The connection is released when the last element is read, or when the iterator is closed: always close it if
+ * the iteration may stop earlier, e.g. with try-with-resources. Errors while reading are thrown as the unchecked
+ * {@link JsonIOException} (the connection) and {@link JsonSyntaxException} (the content). Not thread safe.
+ */
+public final class JsonIterator<T> implements Iterator<T>, Closeable {
+
+    private final ResponseBody body;
+    private final JsonReader reader;
+    private final TypeAdapter<T> adapter;
+    private final boolean array;
+    private boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    JsonIterator(ResponseBody body, Gson gson, Type elementType) throws IOException {
+        this.body = body;
+        this.reader = gson.newJsonReader(body.charStream());
+        // Looked up once, not for each element
+        this.adapter = (TypeAdapter<T>)gson.getAdapter(TypeToken.get(elementType));
+
+        try {
+            if (!isNdjson(body.contentType()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                array = true;
+            } else {
+                // Many top-level values
+                reader.setLenient(true);
+                array = false;
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static boolean isNdjson(MediaType contentType) {
+        if (contentType == null)
+            return false;
+        String subtype = contentType.subtype();
+        return subtype.equals("x-ndjson") || subtype.equals("ndjson") || subtype.equals("jsonl") ||
+               subtype.equals("x-jsonlines") || subtype.equals("stream+json");
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed)
+            return false;
+
+        try {
+            boolean hasNext = array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT;
+            if (!hasNext)
+                close();
+            return hasNext;
+        } catch (IOException e) {
+            throw readFailed(e);
+        }
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        try {
+            return adapter.read(reader);
+        } catch (IOException e) {
+            throw readFailed(e);
+        } catch (IllegalStateException e) {
+            // JsonReader reports a value of the wrong kind this way
+            closeQuietly();
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The elements of a response cannot be removed");
+    }
+
+    /**
+     * Releases the connection; the elements not read yet are discarded.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        body.close();
+    }
+
+    private RuntimeException readFailed(IOException e) {
+        closeQuietly();
+        if (e instanceof MalformedJsonException)
+            return new JsonSyntaxException(e);
+        return new JsonIOException(e);
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (RuntimeException ignored) {}
+    }
+}
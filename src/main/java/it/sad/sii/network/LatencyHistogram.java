@@ -0,0 +1,104 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Streaming histogram of the call latencies of an endpoint, for {@link AdaptiveTimeouts}.
+ * <p>
+ * Latencies are counted in log-linear buckets of microseconds (8 buckets per power of two, so a percentile is
+ * known within 12.5%), from 0 to about 12 days. Recording is lock-free and allocation-free. Every 'window' samples
+ * all the counters are halved, so that the old latencies weigh less and less; the percentile is computed again
+ * every {@link #REFRESH} samples, reading it costs a volatile read.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    static final int REFRESH = 16;
+
+    private final double quantile;
+    private final long window;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    // samples in the buckets, about
+    private final AtomicLong count = new AtomicLong();
+    // the quantile in µs as of the last refresh, -1 until there are 'REFRESH' samples
+    private volatile long percentile = -1;
+
+    LatencyHistogram(double quantile, long window) {
+        this.quantile = quantile;
+        this.window = window;
+    }
+
+    void record(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordMicros(long micros) {
+        buckets.incrementAndGet(bucket(Math.max(0, micros)));
+        long samples = count.incrementAndGet();
+        if (samples >= window)
+            decay();
+        if (samples % REFRESH == 0)
+            percentile = computePercentile();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the quantile of the latencies in µs (the upper bound of its bucket), -1 if there are too few samples
+     */
+    long getPercentile() {
+        return percentile;
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int)micros;
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int)(micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value in the bucket, plus one
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket + 1;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+    }
+
+    private long computePercentile() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+            total += buckets.get(i);
+        long rank = (long)Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0)
+                return upperBound(i);
+        }
+        return -1;
+    }
+
+    // Halves all the counters; a few samples recorded meanwhile by other threads may be counted twice or lost
+    private synchronized void decay() {
+        if (count.get() < window)
+            return;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            long value = buckets.get(i);
+            long halved = value / 2;
+            buckets.addAndGet(i, halved - value);
+            total += halved;
+        }
+        count.set(total);
+    }
+}
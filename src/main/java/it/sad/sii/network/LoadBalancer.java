@@ -0,0 +1,247 @@
+package it.sad.sii.network;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the calls of a {@link RestClient} over the replicas of the server, see
+ * {@link RestClient#RestClient(List, String, String, int)}.
+ * <p>
+ * Each call goes to the better of two replicas picked at random ("power of two choices"): the one with the lowest
+ * (outstanding calls + 1) * average latency, while the average of the other one slowly decays. A replica failing
+ * 'maxFailures' calls in a row is ejected for 'ejectionTime' ms, doubled at each new ejection (up to 16 times); once
+ * that time has passed, a single call at a time probes it, and the first success brings it back. If all the replicas
+ * are ejected, the calls go to all of them anyway: a failing server is better than none.
+ * <p>
+ * Choosing a replica is lock-free and allocates nothing.
+ */
+final class LoadBalancer {
+
+    // weight of a new latency sample in the moving average
+    private static final int EWMA_SHIFT = 3;
+    // share of its average latency a replica forgets each time it is not chosen
+    private static final int AGING_SHIFT = 4;
+    private static final int MAX_EJECTION_SHIFT = 4;
+
+    static final class Replica {
+        private final HttpUrl base;
+        private final String baseUrl;
+        private final boolean primary;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        // the choice (see choose) of the probe in flight, 0 if none
+        private final AtomicLong probing = new AtomicLong();
+        // µs, 0 until the first success
+        private volatile long averageLatency;
+        // System.nanoTime() at the end of the ejection, valid if ejections > 0
+        private volatile long ejectedUntil;
+        private volatile int ejections;
+
+        Replica(URI uri, boolean primary) {
+            // normalized as the urls of the requests are (lower-case host, no default port), to match their prefix
+            this.base = HttpUrl.get(uri);
+            this.baseUrl = base.toString();
+            this.primary = primary;
+        }
+
+        private long score() {
+            return (outstanding.get() + 1) * Math.max(1, averageLatency);
+        }
+
+        private boolean isEjected() {
+            return ejections > 0;
+        }
+
+        String getUrl() {
+            return baseUrl;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+
+    private final Replica[] replicas;
+    private final String primaryUrl;
+    private volatile int maxFailures = 5;
+    private volatile long ejectionTime = TimeUnit.SECONDS.toNanos(10);
+
+    LoadBalancer(List<String> serverUrls) throws URISyntaxException {
+        replicas = new Replica[serverUrls.size()];
+        for (int i = 0; i < replicas.length; ++i) {
+            URI uri = new URI(serverUrls.get(i));
+            if (HttpUrl.parse(uri.toString()) == null)
+                throw new URISyntaxException(uri.toString(), "Not an http or https url");
+            replicas[i] = new Replica(uri, i == 0);
+        }
+        primaryUrl = replicas[0].baseUrl;
+    }
+
+    void setEjection(int maxFailures, int ejectionTime) {
+        this.maxFailures = maxFailures;
+        this.ejectionTime = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+    }
+
+    /**
+     * @param avoid the replica of the previous attempt, not chosen again if there is any other; null for none
+     * @param now   System.nanoTime() when the call is made: it identifies the call in onComplete, if it is the
+     *              probe of an ejected replica
+     * @return the replica for the next call
+     */
+    Replica choose(Replica avoid, long now) {
+        int length = replicas.length;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // An ejected replica whose time is over gets a single probe at a time (a probe that never reported back is
+        // given up after the ejection time)
+        for (Replica replica : replicas) {
+            if (replica.isEjected() && replica != avoid && now - replica.ejectedUntil >= 0) {
+                long probe = replica.probing.get();
+                if ((probe == 0 || now - probe > ejectionTime) && replica.probing.compareAndSet(probe, now))
+                    return replica;
+            }
+        }
+
+        // Two distinct replicas at random, or the first eligible ones after them
+        int a = random.nextInt(length);
+        int b = length > 1 ? (a + 1 + random.nextInt(length - 1)) % length : a;
+        Replica first = isEligible(replicas[a], avoid) ? replicas[a] : null;
+        Replica second = b != a && isEligible(replicas[b], avoid) ? replicas[b] : null;
+        if (first == null) {
+            first = second;
+            second = null;
+        }
+        for (int i = 0; i < length && (first == null || second == null); ++i) {
+            Replica replica = replicas[(a + i) % length];
+            if (!isEligible(replica, avoid) || replica == first || replica == second)
+                continue;
+            if (first == null)
+                first = replica;
+            else
+                second = replica;
+        }
+
+        if (first == null) {
+            // all ejected (or avoided): any other replica is better than the same one
+            for (int i = 0; i < length; ++i) {
+                Replica replica = replicas[(a + i) % length];
+                if (replica != avoid || length == 1)
+                    return replica;
+            }
+        }
+        if (second == null)
+            return first;
+        Replica chosen = second.score() < first.score() ? second : first;
+        age(chosen == first ? second : first);
+        return chosen;
+    }
+
+    // The average of a replica changes only when it is chosen: the loser forgets a bit of it, so that a few slow
+    // calls (e.g. the first one, opening the connection) cannot keep it out forever
+    private static void age(Replica replica) {
+        long average = replica.averageLatency;
+        if (average > 1)
+            replica.averageLatency = average - (average >> AGING_SHIFT);
+    }
+
+    private static boolean isEligible(Replica replica, Replica avoid) {
+        return replica != avoid && !replica.isEjected();
+    }
+
+    Request rewrite(Request request, Replica replica) {
+        if (replica.primary)
+            return request;
+        String url = request.url().toString();
+        HttpUrl target;
+        if (url.startsWith(primaryUrl)) {
+            target = HttpUrl.parse(replica.baseUrl + url.substring(primaryUrl.length()));
+        } else {
+            target = request.url().newBuilder().scheme(replica.base.scheme()).host(replica.base.host())
+                            .port(replica.base.port()).build();
+        }
+        return request.newBuilder().url(target).build();
+    }
+
+    void onStart(Replica replica) {
+        replica.outstanding.incrementAndGet();
+    }
+
+    /**
+     * @param chosen    the 'now' of the choice of the call: while the replica is ejected only the probe counts, the
+     *                  calls still in flight when it was ejected (or sent to it because all the replicas are ejected)
+     *                  neither escalate nor clear the ejection, nor clear the probe in flight
+     * @param failed    true for a failure of the replica: connection error or transient error code
+     * @param cancelled true if the call was cancelled by the client: it does not count
+     */
+    void onComplete(Replica replica, long chosen, boolean failed, boolean cancelled, long nanos) {
+        replica.outstanding.decrementAndGet();
+        if (replica.isEjected() && replica.probing.get() != chosen)
+            return;
+        if (cancelled) {
+            endProbe(replica, chosen);
+            return;
+        }
+
+        if (failed) {
+            if (replica.consecutiveFailures.incrementAndGet() >= maxFailures || replica.isEjected())
+                eject(replica);
+            endProbe(replica, chosen);
+            return;
+        }
+
+        replica.consecutiveFailures.set(0);
+        if (replica.isEjected())
+            replica.ejections = 0;
+        endProbe(replica, chosen);
+        // a racy moving average: a lost sample does not matter
+        long latency = TimeUnit.NANOSECONDS.toMicros(nanos);
+        long average = replica.averageLatency;
+        replica.averageLatency = average == 0 ? Math.max(1, latency) : average + ((latency - average) >> EWMA_SHIFT);
+    }
+
+    // The call chosen at 'chosen' ended without reaching the replica (answered by the cache, rejected by a limit, past
+    // its deadline): if it was the probe, another call can probe
+    void onSkipped(Replica replica, long chosen) {
+        endProbe(replica, chosen);
+    }
+
+    // Clears the probe in flight, if it is the call chosen at 'chosen'
+    private static void endProbe(Replica replica, long chosen) {
+        replica.probing.compareAndSet(chosen, 0);
+    }
+
+    private void eject(Replica replica) {
+        int ejections = Math.min(replica.ejections, MAX_EJECTION_SHIFT);
+        replica.ejectedUntil = System.nanoTime() + (ejectionTime << ejections);
+        replica.ejections = ejections + 1;
+        replica.consecutiveFailures.set(0);
+    }
+
+    List<String> getEjected() {
+        List<String> ejected = new ArrayList<String>();
+        for (Replica replica : replicas) {
+            if (replica.isEjected())
+                ejected.add(replica.baseUrl);
+        }
+        return Collections.unmodifiableList(ejected);
+    }
+
+    int size() {
+        return replicas.length;
+    }
+}
@@ -0,0 +1,218 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import it.sad.sii.network.RestRequest.HTTPVerb;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A request compiled once from a path template like "vehicles/{id}/position", for endpoints called at a high rate.
+ * <p>
+ * The template is resolved against the server url, and the headers (User-Agent, Accept, the given ones and the basic
+ * auth) are built, when the prepared request is created: each call only fills in the variables of the path and the
+ * query parameters. Variables can be used only in the path, and their values are always encoded as a single path
+ * segment (e.g. a "/" in a value becomes "%2F").
+ * <p>
+ * A prepared request is immutable and can be shared by any number of threads.
+ */
+public final class PreparedRestRequest {
+
+    private static final Pattern VARIABLE = Pattern.compile("\\{([^/{}]+)\\}");
+    private static final Map<String, String> NO_PARAMS = Collections.emptyMap();
+
+    private final RestClient restClient;
+    private final HTTPVerb verb;
+    private final String template;
+    private final Map<String, String> headers;
+    private final Headers preparedHeaders;
+    // the url of the template, the variables replaced by placeholders
+    private final HttpUrl url;
+    // names of the variables, in order of appearance
+    private final List<String> variables;
+    // index of the path segments containing variables, and their parts
+    private final int[] segments;
+    private final Object[][] segmentParts;
+
+    public PreparedRestRequest(RestClient restClient, HTTPVerb verb, String pathTemplate) throws URISyntaxException {
+        this(restClient, verb, pathTemplate, NO_PARAMS);
+    }
+
+    /**
+     * @param pathTemplate path relative to the server url, with variables in braces: "vehicles/{id}/position"
+     * @param headers      headers added to every request
+     */
+    public PreparedRestRequest(RestClient restClient, HTTPVerb verb, String pathTemplate,
+                               Map<String, String> headers) throws URISyntaxException {
+        this.restClient = restClient;
+        this.verb = verb;
+        this.template = pathTemplate;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+
+        // Replaces each variable by a placeholder that survives the resolution of the url as it is
+        List<String> names = new ArrayList<String>();
+        Matcher matcher = VARIABLE.matcher(pathTemplate);
+        StringBuffer path = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(path, placeholder(names.size()));
+            names.add(matcher.group(1));
+        }
+        matcher.appendTail(path);
+        this.variables = Collections.unmodifiableList(names);
+
+        URI resolved = restClient.serverUri.resolve(new URI(path.toString()));
+        this.url = HttpUrl.parse(resolved.toString());
+        if (url == null)
+            throw new URISyntaxException(resolved.toString(), "Not an http or https url");
+        if (url.encodedQuery() != null && url.encodedQuery().contains("__rcvar"))
+            throw new IllegalArgumentException("Variables can be used only in the path: " + pathTemplate);
+
+        // Splits the segments with placeholders in literal strings and indexes of variables
+        List<Integer> indexes = new ArrayList<Integer>();
+        List<Object[]> parts = new ArrayList<Object[]>();
+        List<String> pathSegments = url.pathSegments();
+        for (int i = 0; i < pathSegments.size(); ++i) {
+            Object[] segmentParts = split(pathSegments.get(i), names.size());
+            if (segmentParts != null) {
+                indexes.add(i);
+                parts.add(segmentParts);
+            }
+        }
+        this.segments = new int[indexes.size()];
+        for (int i = 0; i < segments.length; ++i)
+            segments[i] = indexes.get(i);
+        this.segmentParts = parts.toArray(new Object[parts.size()][]);
+
+        // The same headers the client would add to each request, built once
+        Headers.Builder headersBuilder = restClient.getDefaultHeaders().newBuilder();
+        for (Map.Entry<String, String> header : this.headers.entrySet())
+            headersBuilder.add(header.getKey(), header.getValue());
+        if (restClient.getAuthorization() != null)
+            headersBuilder.set("Authorization", restClient.getAuthorization());
+        this.preparedHeaders = headersBuilder.build();
+    }
+
+    private static String placeholder(int index) {
+        return "__rcvar" + index + "__";
+    }
+
+    // null if the segment has no variables
+    private static Object[] split(String segment, int variableCount) {
+        List<Object> parts = new ArrayList<Object>();
+        int start = 0;
+        for (int i = segment.indexOf("__rcvar"); i >= 0; i = segment.indexOf("__rcvar", start)) {
+            int end = segment.indexOf("__", i + 7);
+            if (end < 0)
+                break;
+            int index;
+            try {
+                index = Integer.parseInt(segment.substring(i + 7, end));
+            } catch (NumberFormatException e) {
+                break;
+            }
+            if (index >= variableCount)
+                break;
+            if (i > start)
+                parts.add(segment.substring(start, i));
+            parts.add(index);
+            start = end + 2;
+        }
+        if (parts.isEmpty())
+            return null;
+        if (start < segment.length())
+            parts.add(segment.substring(start));
+        return parts.toArray();
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the names of the variables of the template, in order of appearance
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @param values the values of the variables, in order of appearance in the template
+     */
+    public RestRequest request(String... values) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException(
+                    "The template " + template + " has " + variables.size() + " variables, not " + values.length);
+        }
+        return request(values, NO_PARAMS, null);
+    }
+
+    /**
+     * @param variables the values of the variables, by name
+     * @param params    the query parameters
+     */
+    public RestRequest request(Map<String, String> variables, Map<String, String> params) {
+        return request(variables, params, null);
+    }
+
+    /**
+     * @param variables the values of the variables, by name
+     * @param params    the query parameters
+     * @param body      the body of a PUT or POST, null if none
+     */
+    public RestRequest request(Map<String, String> variables, Map<String, String> params, RestBody body) {
+        String[] values = new String[this.variables.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = variables.get(this.variables.get(i));
+            if (values[i] == null)
+                throw new IllegalArgumentException("Missing value of the variable " + this.variables.get(i));
+        }
+        return request(values, params, body);
+    }
+
+    private RestRequest request(String[] values, Map<String, String> params, RestBody body) {
+        HttpUrl.Builder urlBuilder = url.newBuilder();
+        for (int i = 0; i < segments.length; ++i)
+            urlBuilder.setPathSegment(segments[i], fill(segmentParts[i], values));
+        for (Map.Entry<String, String> param : params.entrySet())
+            urlBuilder.addQueryParameter(param.getKey(), param.getValue());
+        return new RestRequest(restClient, verb, urlBuilder.build(), headers, preparedHeaders, body);
+    }
+
+    private static String fill(Object[] parts, String[] values) {
+        if (parts.length == 1)
+            return values[(Integer)parts[0]];
+        StringBuilder segment = new StringBuilder();
+        for (Object part : parts)
+            segment.append(part instanceof Integer ? values[(Integer)part] : (String)part);
+        return segment.toString();
+    }
+
+    /**
+     * @param values the values of the variables, in order of appearance in the template
+     */
+    public RestResponse doRequest(String... values) throws URISyntaxException, IOException {
+        return restClient.doRequest(request(values));
+    }
+
+    /**
+     * @param values the values of the variables, in order of appearance in the template
+     */
+    public ListenableFuture<RestResponse> doRequestAsync(String... values) {
+        return restClient.doRequestAsync(request(values));
+    }
+
+    @Override
+    public String toString() {
+        return verb + " " + template;
+    }
+}
@@ -0,0 +1,23 @@
+package it.sad.sii.network;
+
+import java.io.IOException;
+
+/**
+ * A call was not sent because its rate limit (see {@link RestClient#enableRateLimit(RateLimiter, int)}) would not
+ * give it a permit within the max wait. It is not retried: retrying would only take more permits.
+ */
+public class RateLimitException extends IOException {
+    private final double permitsPerSecond;
+
+    public RateLimitException(double permitsPerSecond) {
+        super("The rate limit of " + permitsPerSecond + " calls per second was reached");
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * @return the rate of the limit that rejected the call
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+}
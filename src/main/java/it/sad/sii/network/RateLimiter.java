@@ -0,0 +1,145 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that keeps the calls of one or more {@link RestClient} under a rate, see
+ * {@link RestClient#enableRateLimit(RateLimiter, int)}.
+ * <p>
+ * The bucket holds at most 'burst' permits and starts full; it refills at 'permitsPerSecond'. A call takes a permit,
+ * waiting for the next one if the bucket is empty. When the server answers 429 anyway (the quota is shared with
+ * someone else, or counted differently), the bucket is emptied, for as long as the Retry-After asks if longer.
+ * <p>
+ * The bucket is kept as a single theoretical arrival time (GCRA): taking a permit, or reserving the next one, is a
+ * compare-and-set with no locks and no allocation.
+ */
+public final class RateLimiter {
+
+    private final double permitsPerSecond;
+    private final int burst;
+    // ns between two permits, and the time a full bucket is ahead
+    private final long interval;
+    private final long tolerance;
+    // System.nanoTime() at which the bucket would be full again, or earlier if it is full
+    private final AtomicLong arrival;
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param permitsPerSecond Calls allowed per second, on average (>0)
+     * @param burst            Calls allowed in a row, when the bucket is full (>0)
+     * @throws IllegalArgumentException if permitsPerSecond <= 0, burst <= 0
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("The permits per second have to be greater than zero");
+        if (burst <= 0)
+            throw new IllegalArgumentException("The burst has to be greater than zero");
+
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.interval = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.tolerance = interval * burst;
+        this.arrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit, now or at a later time.
+     *
+     * @param maxWait Max time in ns the permit may be ahead of now
+     * @return the time in ns to wait before the call (0 for none), or -1 if the permit is further than maxWait: then
+     *         nothing is taken
+     */
+    long reserve(long maxWait) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrival.get();
+            long next = (current - now > 0 ? current : now) + interval;
+            long wait = next - tolerance - now;
+            if (wait > maxWait) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                granted.incrementAndGet();
+                if (wait <= 0)
+                    return 0;
+                delayed.incrementAndGet();
+                return wait;
+            }
+        }
+    }
+
+    // Gives back a permit taken by reserve (approximately, if others were taken since), when the call was not made
+    void refund(long wait) {
+        arrival.addAndGet(-interval);
+        granted.decrementAndGet();
+        if (wait > 0)
+            delayed.decrementAndGet();
+    }
+
+    // The server answered 429: no permits for 'retryAfter' ns, or at least until the next one is due
+    void onThrottled(long retryAfter) {
+        throttled.incrementAndGet();
+        long target = System.nanoTime() + tolerance - interval + Math.max(interval, retryAfter);
+        while (true) {
+            long current = arrival.get();
+            if (current - target >= 0 || arrival.compareAndSet(current, target))
+                return;
+        }
+    }
+
+    // The bucket has refilled: dropping it is the same as starting a new one
+    boolean isFull() {
+        return arrival.get() - System.nanoTime() <= 0;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return the number of calls that could be made right now without waiting
+     */
+    public int getAvailablePermits() {
+        long now = System.nanoTime();
+        long current = arrival.get();
+        long ahead = current - now > 0 ? current - now : 0;
+        return (int)Math.max(0, (tolerance - ahead) / interval);
+    }
+
+    /**
+     * @return the number of permits taken since the creation of the limiter, including the delayed ones
+     */
+    public long getGrantedCount() {
+        return granted.get();
+    }
+
+    /**
+     * @return the number of permits taken that had to wait for the bucket to refill
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * @return the number of calls not made, because the next permit was further than the max wait
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of 429 responses, each of which emptied the bucket
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+}
@@ -0,0 +1,118 @@
+package it.sad.sii.network;
+
+/**
+ * The rate limits of a {@link RestClient}: a {@link RateLimiter} for the whole client (it may be shared with other
+ * clients), and one for each endpoint as defined by the {@link EndpointClassifier} of the client (one endpoint for
+ * the whole client without it). Either can be missing; a call takes a permit from both.
+ * <p>
+ * At most 'maxEndpoints' limiters are kept, the ones not used for 'maxIdleTime' ms are dropped when a new endpoint
+ * shows up once their buckets are full again (a throttled endpoint stays throttled): the endpoints that find no room
+ * share a single one.
+ */
+final class RateLimits {
+
+    // null without a limit for the whole client
+    private final RateLimiter clientLimiter;
+    // 0 without limits per endpoint
+    private final double endpointPermitsPerSecond;
+    private final int endpointBurst;
+    private final long maxWait;
+
+    // Used without a classifier, and for the endpoints that find no room; null without limits per endpoint
+    private final RateLimiter sharedLimiter;
+    // null without a classifier, or without limits per endpoint
+    private final EndpointMap<RateLimiter> limiters;
+
+    /**
+     * @param maxEndpoints 0 for a single endpoint, see {@link RestClient#getMaxEndpoints()}
+     */
+    RateLimits(RateLimiter clientLimiter, double endpointPermitsPerSecond, int endpointBurst, long maxWait,
+               int maxEndpoints, long maxIdleTime) {
+        this.clientLimiter = clientLimiter;
+        this.endpointPermitsPerSecond = endpointPermitsPerSecond;
+        this.endpointBurst = endpointBurst;
+        this.maxWait = maxWait;
+        this.sharedLimiter = endpointPermitsPerSecond > 0 ? newLimiter() : null;
+        this.limiters = sharedLimiter == null || maxEndpoints <= 0 ? null :
+                new EndpointMap<RateLimiter>(maxEndpoints, maxIdleTime, false) {
+            @Override
+            RateLimiter create() {
+                return newLimiter();
+            }
+
+            @Override
+            boolean canDrop(RateLimiter limiter) {
+                return limiter.isFull();
+            }
+        };
+    }
+
+    // Same limits, for a new classifier: the buckets of the endpoints start again full
+    RateLimits withEndpoints(int maxEndpoints, long maxIdleTime) {
+        return new RateLimits(clientLimiter, endpointPermitsPerSecond, endpointBurst, maxWait, maxEndpoints,
+                              maxIdleTime);
+    }
+
+    RateLimiter getClientLimiter() {
+        return clientLimiter;
+    }
+
+    /**
+     * @return the max time in ms a call waits for a permit, 0 to reject it at once
+     */
+    long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}; null without a classifier
+     * @return null without limits per endpoint
+     */
+    RateLimiter endpointLimiter(String endpoint) {
+        if (limiters == null || endpoint == null)
+            return sharedLimiter;
+
+        RateLimiter limiter = limiters.get(endpoint);
+        return limiter != null ? limiter : sharedLimiter;
+    }
+
+    private RateLimiter newLimiter() {
+        return new RateLimiter(endpointPermitsPerSecond, endpointBurst);
+    }
+
+    /**
+     * Takes a permit from the limit of the client and from the one of the endpoint.
+     *
+     * @param maxWait Max time in ns to wait for the permits
+     * @return the time in ns to wait before the call, 0 for none
+     * @throws RateLimitException if a permit is further than maxWait: then nothing is taken
+     */
+    long reserve(String endpoint, long maxWait) throws RateLimitException {
+        long wait = 0;
+        if (clientLimiter != null) {
+            wait = clientLimiter.reserve(maxWait);
+            if (wait < 0)
+                throw new RateLimitException(clientLimiter.getPermitsPerSecond());
+        }
+        RateLimiter endpointLimiter = endpointLimiter(endpoint);
+        if (endpointLimiter != null) {
+            long endpointWait = endpointLimiter.reserve(maxWait);
+            if (endpointWait < 0) {
+                if (clientLimiter != null)
+                    clientLimiter.refund(wait);
+                throw new RateLimitException(endpointLimiter.getPermitsPerSecond());
+            }
+            wait = Math.max(wait, endpointWait);
+        }
+        return wait;
+    }
+
+    // The server answered 429 to a call of the request: both its buckets are emptied
+    void onThrottled(String endpoint, long retryAfter) {
+        if (clientLimiter != null)
+            clientLimiter.onThrottled(retryAfter);
+        RateLimiter endpointLimiter = endpointLimiter(endpoint);
+        if (endpointLimiter != null)
+            endpointLimiter.onThrottled(retryAfter);
+    }
+}
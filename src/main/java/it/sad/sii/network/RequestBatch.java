@@ -0,0 +1,145 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Many requests of a {@link RestClient} sent with {@link RestClient#doRequestAsync(RestRequest)}, at most
+ * 'maxConcurrency' at a time: each completed request starts the next one, so no thread waits for the batch.
+ * <p>
+ * Requests are started from the completion of the previous ones, which may run on the calling thread (e.g. a
+ * response cache hit): the launches go through a drain loop, so that a long batch does not recurse.
+ */
+final class RequestBatch {
+
+    private static final Logger LOG = Logger.getLogger(RequestBatch.class);
+
+    private final RestClient client;
+    private final RestRequest[] requests;
+    private final RestResponse[] responses;
+    private final int maxConcurrency;
+    private final boolean failFast;
+    private final BatchListener listener;
+
+    private final SettableFuture<List<RestResponse>> result = SettableFuture.create();
+    private final AtomicReferenceArray<ListenableFuture<RestResponse>> inFlight;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    // Launch requests pending: only the thread that moves it from 0 runs the drain loop
+    private final AtomicInteger launches = new AtomicInteger();
+    // Only accessed inside the drain loop
+    private int next = 0;
+
+    RequestBatch(RestClient client, Collection<RestRequest> requests, int maxConcurrency, boolean failFast,
+                 BatchListener listener) {
+        this.client = client;
+        this.requests = requests.toArray(new RestRequest[requests.size()]);
+        for (RestRequest request : this.requests) {
+            if (request == null)
+                throw new IllegalArgumentException("The requests cannot contain null");
+        }
+        this.responses = new RestResponse[this.requests.length];
+        this.maxConcurrency = maxConcurrency;
+        this.failFast = failFast;
+        this.listener = listener;
+        this.inFlight = new AtomicReferenceArray<ListenableFuture<RestResponse>>(this.requests.length);
+
+        // Failing fast, or cancelled by the caller: stop what is still running
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < inFlight.length(); ++i) {
+                    ListenableFuture<RestResponse> future = inFlight.getAndSet(i, null);
+                    if (future != null)
+                        future.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    ListenableFuture<List<RestResponse>> start() {
+        if (requests.length == 0)
+            result.set(Arrays.asList(responses));
+        else
+            launch();
+        return result;
+    }
+
+    private void launch() {
+        if (launches.getAndIncrement() != 0)
+            return;
+        do {
+            while (!result.isDone() && next < requests.length && running.get() < maxConcurrency) {
+                running.incrementAndGet();
+                send(next++);
+            }
+        } while (launches.decrementAndGet() != 0);
+    }
+
+    private void send(final int index) {
+        ListenableFuture<RestResponse> future;
+        try {
+            future = client.doRequestAsync(requests[index]);
+        } catch (RuntimeException e) {
+            // e.g. a classifier that fails on the request: only this request fails, the batch goes on
+            onResponse(index, new RestResponse(e));
+            return;
+        }
+        inFlight.set(index, future);
+        // The batch completed (and cancelled everything) in the meantime
+        if (result.isDone() && inFlight.compareAndSet(index, future, null))
+            future.cancel(true);
+
+        Futures.addCallback(future, new FutureCallback<RestResponse>() {
+            @Override
+            public void onSuccess(RestResponse response) {
+                onResponse(index, response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Simple Mode exceptions are reported like the Smart Mode ones
+                onResponse(index, new RestResponse(t instanceof Exception ? (Exception)t : new Exception(t)));
+            }
+        });
+    }
+
+    private void onResponse(int index, RestResponse response) {
+        inFlight.set(index, null);
+        if (result.isDone())
+            return;
+
+        responses[index] = response;
+        if (listener != null) {
+            try {
+                listener.onResponse(index, requests[index], response);
+            } catch (RuntimeException e) {
+                // the batch goes on: the response is in the result all the same
+                LOG.warn("The batch listener failed on the response of request " + index, e);
+            }
+        }
+
+        if (failFast && !response.isOk()) {
+            result.setException(new BatchException(index, response));
+            return;
+        }
+
+        // Writing the response happens-before the increment, so the last one sees them all
+        if (completed.incrementAndGet() == requests.length) {
+            result.set(Arrays.asList(responses));
+            return;
+        }
+        running.decrementAndGet();
+        launch();
+    }
+}
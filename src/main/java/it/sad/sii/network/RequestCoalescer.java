@@ -0,0 +1,117 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight of the GET requests of a {@link RestClient}, see {@link RestClient#setRequestCoalescing(boolean)}.
+ * <p>
+ * The first caller of a request becomes its leader and makes the call; the callers of an identical request (same
+ * URL, same headers) arriving while the call is in flight wait for it and get the same RestResponse. As soon as the
+ * call completes, the next identical request starts a new one: nothing is cached.
+ */
+final class RequestCoalescer {
+
+    /**
+     * Identity of a request: its full URL, query parameters included, and its headers. Header names are
+     * case-insensitive and their order does not matter.
+     */
+    static final class Key {
+        private final String url;
+        private final Map<String, String> headers;
+        private final int hash;
+
+        Key(String url, Map<String, String> headers) {
+            this.url = url;
+            this.headers = normalize(headers);
+            this.hash = 31 * url.hashCode() + this.headers.hashCode();
+        }
+
+        private static Map<String, String> normalize(Map<String, String> headers) {
+            if (headers == null || headers.isEmpty())
+                return Collections.emptyMap();
+
+            Map<String, String> sorted = new TreeMap<String, String>();
+            for (Map.Entry<String, String> header : headers.entrySet())
+                sorted.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue());
+            return sorted;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return hash == other.hash && url.equals(other.url) && headers.equals(other.headers);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final ConcurrentMap<Key, SettableFuture<RestResponse>> inFlight =
+            new ConcurrentHashMap<Key, SettableFuture<RestResponse>>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @param flight the future of the call, if the caller becomes the leader
+     * @return the future of the identical call in flight, or null if the caller is the leader: then it has to make
+     * the call and report its outcome with {@link #complete} or {@link #fail}
+     */
+    SettableFuture<RestResponse> join(Key key, SettableFuture<RestResponse> flight) {
+        SettableFuture<RestResponse> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null)
+            coalescedCount.incrementAndGet();
+        return leader;
+    }
+
+    void complete(Key key, SettableFuture<RestResponse> flight, RestResponse response) {
+        // Removed first: a request arriving from now on makes a new call instead of getting this response
+        inFlight.remove(key, flight);
+        flight.set(response);
+    }
+
+    void fail(Key key, SettableFuture<RestResponse> flight, Throwable t) {
+        inFlight.remove(key, flight);
+        flight.setException(t);
+    }
+
+    // A future completed with the leader, that can be cancelled without cancelling the leader
+    static ListenableFuture<RestResponse> follow(ListenableFuture<RestResponse> leader) {
+        final SettableFuture<RestResponse> follower = SettableFuture.create();
+        Futures.addCallback(leader, new FutureCallback<RestResponse>() {
+            @Override
+            public void onSuccess(RestResponse response) {
+                follower.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                follower.setException(t);
+            }
+        });
+        return follower;
+    }
+}
@@ -0,0 +1,472 @@
+package it.sad.sii.network;
+
+import okhttp3.CacheControl;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the responses to GET requests of a {@link RestClient}, see {@link RestClient#setResponseCache}.
+ * <p>
+ * Responses are kept in an in-memory LRU bounded by size and, optionally, in a directory on disk. A response is
+ * served without contacting the server while it is fresh according to its Cache-Control (max-age) or Expires
+ * header; after that it is revalidated with If-None-Match / If-Modified-Since, so that an unchanged resource costs
+ * a 304 without body. Responses marked no-store or Vary: *, and responses without freshness information and
+ * without an ETag or Last-Modified header, are not cached. A response is only served to requests with the same url
+ * and the same headers.
+ */
+public final class ResponseCache {
+
+    private static final Logger LOG = Logger.getLogger(ResponseCache.class);
+
+    // Rough size of an entry besides its body
+    private static final int ENTRY_OVERHEAD = 128;
+    // Responses are written to a temp file, then renamed
+    private static final String TEMP_SUFFIX = ".tmp";
+    // A temp file older than this was left by a writer that died (e.g. a killed process): no write lasts that long
+    private static final long STALE_TEMP_FILE_AGE = TimeUnit.MINUTES.toMillis(10);
+
+    static final class Entry {
+        // see key(String, Map)
+        final String key;
+        final int code;
+        final String body;
+        final String etag;
+        final String lastModified;
+        // The Cache-Control and Expires headers of the response, null if it had none: a 304 updates them
+        final String cacheControl;
+        final String expires;
+        // 0 if the entry has always to be revalidated
+        final long expiresAt;
+
+        Entry(String key, int code, String body, String etag, String lastModified, String cacheControl,
+              String expires, long expiresAt) {
+            this.key = key;
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.expires = expires;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        long size() {
+            return ENTRY_OVERHEAD + 2L * (key.length() + body.length());
+        }
+    }
+
+    private final long maxMemorySize;
+    private final File directory;
+    private final long maxDiskSize;
+
+    // Access-ordered: the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memorySize = 0;
+    private final AtomicLong diskSize = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+
+    /**
+     * In-memory cache only.
+     *
+     * @param maxMemorySize Max size in bytes of the cached responses (>0)
+     */
+    public ResponseCache(long maxMemorySize) {
+        this(maxMemorySize, null, 0);
+    }
+
+    /**
+     * In-memory cache backed by a directory on disk, which survives the restart of the application.
+     *
+     * @param maxMemorySize Max size in bytes of the cached responses kept in memory (>0)
+     * @param directory     Directory for the cached responses, created if needed
+     * @param maxDiskSize   Max size in bytes of the cached responses on disk (>0)
+     * @throws IllegalArgumentException if maxMemorySize <= 0, maxDiskSize <= 0 or the directory cannot be created
+     */
+    public ResponseCache(long maxMemorySize, File directory, long maxDiskSize) {
+        if (maxMemorySize <= 0)
+            throw new IllegalArgumentException("The maximum memory size has to be greater than zero");
+        if (directory != null) {
+            if (maxDiskSize <= 0)
+                throw new IllegalArgumentException("The maximum disk size has to be greater than zero");
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IllegalArgumentException("Cannot create the cache directory " + directory);
+        }
+
+        this.maxMemorySize = maxMemorySize;
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+
+        if (directory != null) {
+            deleteStaleTempFiles();
+            for (File file : listFiles())
+                diskSize.addAndGet(file.length());
+        }
+    }
+
+    /**
+     * @return the number of responses served from the cache without contacting the server
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of requests answered by the server with a full response
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of cached responses revalidated by the server with a 304 Not Modified
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    public long getDiskSize() {
+        return diskSize.get();
+    }
+
+    /**
+     * Removes all the cached responses, from memory and from disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+            memorySize = 0;
+        }
+        if (directory != null) {
+            for (File file : listFiles()) {
+                long length = file.length();
+                if (file.delete())
+                    diskSize.addAndGet(-length);
+            }
+        }
+    }
+
+    /**
+     * The key of the response to a GET request: its url and, if the request has any, its own headers. The other
+     * headers are the ones of the client, the same for all its requests, so the response is never served to a
+     * request that could have got another one (see Vary). The headers are hashed, not to write them to disk.
+     */
+    static String key(String url, Map<String, String> headers) {
+        if (headers == null || headers.isEmpty())
+            return url;
+
+        // header names are case-insensitive, the order does not matter
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> header : headers.entrySet())
+            sorted.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue());
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> header : sorted.entrySet())
+            builder.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        // a url has no spaces
+        return url + ' ' + ByteString.encodeUtf8(builder.toString()).md5().hex();
+    }
+
+    Entry get(String key) {
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            if (entry != null)
+                return entry;
+        }
+
+        Entry entry = readFromDisk(key);
+        if (entry != null)
+            putInMemory(entry);
+        return entry;
+    }
+
+    RestResponse hit(Entry entry) {
+        hitCount.incrementAndGet();
+        return new RestResponse(entry.code, entry.body);
+    }
+
+    // Adds the validators of the cached entry, so that the server can answer 304
+    Request conditional(Request request, Entry entry) {
+        if (entry == null || (entry.etag == null && entry.lastModified == null))
+            return request;
+
+        Request.Builder builder = request.newBuilder();
+        if (entry.etag != null)
+            builder.header("If-None-Match", entry.etag);
+        if (entry.lastModified != null)
+            builder.header("If-Modified-Since", entry.lastModified);
+        return builder.build();
+    }
+
+    // The server answered 304: the cached body is still good. The headers of the 304 update the stored ones (RFC 7234
+    // 4.3.4): the freshness it does not give is the one of the stored response, counted from the Date of the 304
+    RestResponse revalidated(Entry entry, Response response) {
+        revalidationCount.incrementAndGet();
+
+        Headers.Builder merged = response.headers().newBuilder();
+        if (response.header("Cache-Control") == null && entry.cacheControl != null)
+            merged.set("Cache-Control", entry.cacheControl);
+        if (response.header("Expires") == null && entry.expires != null)
+            merged.set("Expires", entry.expires);
+        Headers headers = merged.build();
+
+        String etag = headers.get("ETag");
+        String lastModified = headers.get("Last-Modified");
+        Entry refreshed = new Entry(entry.key, entry.code, entry.body, etag != null ? etag : entry.etag,
+                                    lastModified != null ? lastModified : entry.lastModified,
+                                    cacheControl(headers), headers.get("Expires"), expiresAt(headers));
+        put(refreshed);
+        return new RestResponse(entry.code, entry.body);
+    }
+
+    // The server answered with a full response: keep it if allowed, under the key of the request (with the url of
+    // the server, not of the replica that answered)
+    void store(String key, Response response, RestResponse restResponse) {
+        missCount.incrementAndGet();
+        if (response.code() != 200)
+            return;
+
+        Headers headers = response.headers();
+        if (CacheControl.parse(headers).noStore() || varyAll(headers))
+            return;
+
+        String etag = headers.get("ETag");
+        String lastModified = headers.get("Last-Modified");
+        long expiresAt = expiresAt(headers);
+        if (expiresAt <= System.currentTimeMillis() && etag == null && lastModified == null)
+            return;
+
+        put(new Entry(key, response.code(), restResponse.getData(), etag, lastModified, cacheControl(headers),
+                      headers.get("Expires"), expiresAt));
+    }
+
+    // All the Cache-Control headers in one, null without any
+    private static String cacheControl(Headers headers) {
+        List<String> values = headers.values("Cache-Control");
+        if (values.isEmpty())
+            return null;
+        StringBuilder builder = new StringBuilder(values.get(0));
+        for (int i = 1; i < values.size(); ++i)
+            builder.append(", ").append(values.get(i));
+        return builder.toString();
+    }
+
+    // Vary: * (the response depends on more than the request), never to be served again
+    private static boolean varyAll(Headers headers) {
+        for (String vary : headers.values("Vary")) {
+            for (String name : vary.split(",")) {
+                if (name.trim().equals("*"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static long expiresAt(Headers headers) {
+        long now = System.currentTimeMillis();
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noCache())
+            return 0;
+
+        if (cacheControl.maxAgeSeconds() >= 0) {
+            long age = 0;
+            String ageHeader = headers.get("Age");
+            if (ageHeader != null) {
+                try {
+                    age = Long.parseLong(ageHeader.trim());
+                } catch (NumberFormatException ignored) {}
+            }
+            return now + TimeUnit.SECONDS.toMillis(Math.max(0, cacheControl.maxAgeSeconds() - age));
+        }
+
+        Date expires = headers.getDate("Expires");
+        if (expires != null) {
+            // Relative to the clock of the server
+            Date date = headers.getDate("Date");
+            return now + expires.getTime() - (date != null ? date.getTime() : now);
+        }
+        return 0;
+    }
+
+    private void put(Entry entry) {
+        putInMemory(entry);
+        if (directory != null)
+            writeToDisk(entry);
+    }
+
+    private synchronized void putInMemory(Entry entry) {
+        long size = entry.size();
+        if (size > maxMemorySize)
+            return;
+
+        Entry previous = memory.put(entry.key, entry);
+        if (previous != null)
+            memorySize -= previous.size();
+        memorySize += size;
+
+        Iterator<Entry> it = memory.values().iterator();
+        while (memorySize > maxMemorySize && it.hasNext()) {
+            memorySize -= it.next().size();
+            it.remove();
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, ByteString.encodeUtf8(key).md5().hex());
+    }
+
+    // The files of the cached responses: the temp files of the writes in progress (also of other caches on the same
+    // directory) are neither counted nor deleted
+    private File[] listFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private void deleteStaleTempFiles() {
+        final long before = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < before;
+            }
+        });
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (directory == null)
+            return null;
+
+        File file = fileFor(key);
+        if (!file.isFile())
+            return null;
+
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(file));
+            try {
+                String storedKey = source.readUtf8LineStrict();
+                // Different key with the same hash
+                if (!key.equals(storedKey))
+                    return null;
+                int code = Integer.parseInt(source.readUtf8LineStrict());
+                String etag = emptyToNull(source.readUtf8LineStrict());
+                String lastModified = emptyToNull(source.readUtf8LineStrict());
+                String cacheControl = emptyToNull(source.readUtf8LineStrict());
+                String expires = emptyToNull(source.readUtf8LineStrict());
+                long expiresAt = Long.parseLong(source.readUtf8LineStrict());
+                String body = source.readUtf8();
+                return new Entry(storedKey, code, body, etag, lastModified, cacheControl, expires, expiresAt);
+            } finally {
+                source.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Cannot read cached response for " + key, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(Entry entry) {
+        File file = fileFor(entry.key);
+        File temp = null;
+        try {
+            // each writer has its own, so that two responses to the same request are not mixed
+            temp = File.createTempFile(file.getName(), TEMP_SUFFIX, directory);
+            BufferedSink sink = Okio.buffer(Okio.sink(temp));
+            try {
+                sink.writeUtf8(entry.key).writeByte('\n')
+                    .writeUtf8(Integer.toString(entry.code)).writeByte('\n')
+                    .writeUtf8(entry.etag != null ? entry.etag : "").writeByte('\n')
+                    .writeUtf8(entry.lastModified != null ? entry.lastModified : "").writeByte('\n')
+                    .writeUtf8(entry.cacheControl != null ? entry.cacheControl : "").writeByte('\n')
+                    .writeUtf8(entry.expires != null ? entry.expires : "").writeByte('\n')
+                    .writeUtf8(Long.toString(entry.expiresAt)).writeByte('\n')
+                    .writeUtf8(entry.body);
+            } finally {
+                sink.close();
+            }
+
+            // the file being replaced is counted once, whoever writes it last
+            synchronized (this) {
+                long previousLength = file.length();
+                if (!temp.renameTo(file)) {
+                    // Windows does not replace an existing file
+                    file.delete();
+                    if (!temp.renameTo(file))
+                        throw new IOException("Cannot rename " + temp + " to " + file);
+                }
+                diskSize.addAndGet(file.length() - previousLength);
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot write cached response for " + entry.key, e);
+            if (temp != null)
+                temp.delete();
+            return;
+        }
+
+        if (diskSize.get() > maxDiskSize)
+            trimDisk();
+    }
+
+    // Deletes the least recently written files until the cache fits maxDiskSize
+    private synchronized void trimDisk() {
+        File[] files = listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (diskSize.get() <= maxDiskSize)
+                break;
+            long length = file.length();
+            if (file.delete())
+                diskSize.addAndGet(-length);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,72 @@
+package it.sad.sii.network;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.MalformedJsonException;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Turns the OkHttp responses of a {@link RestClient} into RestResponses: the body is read as a String, or decoded
+ * while it is read for the typed requests, and the responses of GET requests go through the response cache.
+ */
+final class ResponseReader {
+
+    private ResponseReader() {
+    }
+
+    static RestResponse read(Response response, JsonDecoder decoder) throws IOException {
+        String responseBody;
+        int statusCode = response.code();
+
+        if (statusCode == 307) { //Temporary redirect
+            responseBody = response.header("Location");
+            response.body().close();
+        } else if (decoder != null && statusCode / 100 == 2) {
+            return decode(response, decoder);
+        } else {
+            responseBody = response.body().string();
+        }
+
+        return new RestResponse(statusCode, responseBody);
+    }
+
+    // Decodes the body while reading it, without building the whole String first
+    private static RestResponse decode(Response response, JsonDecoder decoder) throws IOException {
+        ResponseBody body = response.body();
+        try {
+            return RestResponse.decoded(response.code(), decoder.decode(body.charStream()), decoder.getType());
+        } catch (JsonParseException e) {
+            // Gson wraps the errors of the connection too: those are still transient. EOFException and
+            // MalformedJsonException come from the JSON text itself (a document cut short, a syntax error).
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException && !(cause instanceof EOFException) &&
+                !(cause instanceof MalformedJsonException))
+                throw (IOException)cause;
+            // A body that does not match the type is a permanent error, not worth a retry
+            return new RestResponse(e);
+        } finally {
+            body.close();
+        }
+    }
+
+    // The response of a request made with a cached entry: 304 means the entry is still good.
+    // Responses to be cached are always read as a String, ignoring the decoder.
+    // 'key' is the key of the response in the cache
+    static RestResponse read(Response response, String key, ResponseCache cache, ResponseCache.Entry cached,
+                             JsonDecoder decoder) throws IOException {
+        if (cache == null)
+            return read(response, decoder);
+
+        if (response.code() == 304 && cached != null) {
+            response.body().close();
+            return cache.revalidated(cached, response);
+        }
+
+        RestResponse restResponse = read(response, null);
+        cache.store(key, response, restResponse);
+        return restResponse;
+    }
+}
@@ -0,0 +1,204 @@
+package it.sad.sii.network;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.internal.http.UnrepeatableRequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The body of a PUT or POST {@link RestRequest}, with its media type.
+ * <p>
+ * Text is encoded once, when the body is created, and arrays and buffers are wrapped without copying: all the
+ * attempts of a request send the same bytes. Files are streamed from disk at each attempt, without loading them in
+ * memory. A body read from an InputStream can be sent only once: a request with such a body is never retried.
+ */
+public final class RestBody {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final RequestBody requestBody;
+    private final boolean replayable;
+    // null to follow the setting of the client
+    private final Boolean compression;
+
+    private RestBody(RequestBody requestBody, boolean replayable) {
+        this(requestBody, replayable, null);
+    }
+
+    private RestBody(RequestBody requestBody, boolean replayable, Boolean compression) {
+        this.requestBody = requestBody;
+        this.replayable = replayable;
+        this.compression = compression;
+    }
+
+    /**
+     * @param content JSON text, encoded as UTF-8
+     */
+    public static RestBody json(String content) {
+        return new RestBody(RequestBody.create(JSON, content.getBytes(UTF_8)), true);
+    }
+
+    /**
+     * @param content   text, encoded with the charset of the media type (UTF-8 if it has none)
+     * @param mediaType e.g. "text/csv; charset=utf-8"
+     */
+    public static RestBody of(String content, String mediaType) {
+        MediaType type = parse(mediaType);
+        Charset charset = type.charset();
+        if (charset == null) {
+            charset = UTF_8;
+            type = MediaType.parse(type + "; charset=utf-8");
+        }
+        return new RestBody(RequestBody.create(type, content.getBytes(charset)), true);
+    }
+
+    /**
+     * @param content   the bytes to send, not copied: do not change them while the request is in progress
+     * @param mediaType e.g. "application/octet-stream"
+     */
+    public static RestBody of(byte[] content, String mediaType) {
+        return new RestBody(RequestBody.create(parse(mediaType), content), true);
+    }
+
+    /**
+     * @param content   the bytes between position and limit; a heap buffer is not copied, a direct buffer is copied
+     *                  once. The position of the buffer is not changed.
+     * @param mediaType e.g. "application/octet-stream"
+     */
+    public static RestBody of(ByteBuffer content, String mediaType) {
+        MediaType type = parse(mediaType);
+        if (content.hasArray()) {
+            return new RestBody(RequestBody.create(type, content.array(), content.arrayOffset() + content.position(),
+                                                   content.remaining()), true);
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new RestBody(RequestBody.create(type, bytes), true);
+    }
+
+    /**
+     * @param content   the file, streamed from disk at each attempt
+     * @param mediaType e.g. "application/zip"
+     */
+    public static RestBody of(File content, String mediaType) {
+        return new RestBody(RequestBody.create(parse(mediaType), content), true);
+    }
+
+    /**
+     * @param content   the file, streamed from disk at each attempt
+     * @param mediaType e.g. "application/zip"
+     */
+    public static RestBody of(Path content, String mediaType) {
+        return of(content.toFile(), mediaType);
+    }
+
+    /**
+     * A body that can be sent only once: the request is not retried, and the stream is closed once sent.
+     *
+     * @param content       the stream, read while the request is sent
+     * @param contentLength its length in bytes, or -1 if unknown (the body is then sent chunked)
+     * @param mediaType     e.g. "application/octet-stream"
+     */
+    public static RestBody of(InputStream content, long contentLength, String mediaType) {
+        return new RestBody(new StreamRequestBody(content, contentLength, parse(mediaType)), false);
+    }
+
+    private static MediaType parse(String mediaType) {
+        MediaType type = MediaType.parse(mediaType);
+        if (type == null)
+            throw new IllegalArgumentException("Invalid media type: " + mediaType);
+        return type;
+    }
+
+    public String getMediaType() {
+        return requestBody.contentType().toString();
+    }
+
+    /**
+     * @return the length in bytes, or -1 if unknown
+     */
+    public long getContentLength() {
+        try {
+            return requestBody.contentLength();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return false if the body can be sent only once, so the request cannot be retried
+     */
+    public boolean isReplayable() {
+        return replayable;
+    }
+
+    /**
+     * Overrides for this body the request compression of the client (see
+     * {@link RestClient#enableRequestCompression(int)}), whatever its size.
+     *
+     * @param compress true to always gzip this body, false to never do it
+     * @return a body with the same content
+     */
+    public RestBody withCompression(boolean compress) {
+        return new RestBody(requestBody, replayable, compress);
+    }
+
+    /**
+     * @return true or false if set by {@link #withCompression(boolean)}, null to follow the client
+     */
+    public Boolean getCompression() {
+        return compression;
+    }
+
+    RequestBody toRequestBody() {
+        return requestBody;
+    }
+
+    // Also tells OkHttp not to send it again when recovering from a connection failure
+    private static final class StreamRequestBody extends RequestBody implements UnrepeatableRequestBody {
+        private final InputStream content;
+        private final long contentLength;
+        private final MediaType mediaType;
+        private final AtomicBoolean sent = new AtomicBoolean();
+
+        StreamRequestBody(InputStream content, long contentLength, MediaType mediaType) {
+            this.content = content;
+            this.contentLength = contentLength;
+            this.mediaType = mediaType;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mediaType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (!sent.compareAndSet(false, true))
+                throw new IllegalStateException("The stream of the body was already sent");
+
+            Source source = Okio.source(content);
+            try {
+                sink.writeAll(source);
+            } finally {
+                source.close();
+            }
+        }
+    }
+}
@@ -1,26 +1,44 @@
 package it.sad.sii.network;
 
-import com.github.rholder.retry.*;
-import com.google.common.base.Predicate;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import okhttp3.*;
 import okhttp3.internal.tls.OkHostnameVerifier;
+import okio.Okio;
+import okio.Sink;
 
 import javax.net.ssl.*;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
 import static it.sad.sii.network.RestRequest.HTTPVerb.POST;
+import static it.sad.sii.network.RestRequest.HTTPVerb.PUT;
 
 /**
  * Class that handles HTTP(S) GET and POST requests.
@@ -31,14 +49,38 @@ import static it.sad.sii.network.RestRequest.HTTPVerb.POST;
  * Is the default mode and can be set with {@link #disableRetryCircuitBreaker()}
  * <p>
  * 2) Smart Mode: Retry each request 'retries' times with an exponential backoff up until 'maxRetryTime' ms is reached
+ * (or a jittered one, see {@link #setRetryBackoff(RetryBackoff)}), as long as the {@link RetryBudget} allows it
  * (retryCircuitBreakerState = CLOSED).
  * If the request does not succeed it blocks all following requests for 'maxCircuitBreakerOpenTime' ms
  * (retryCircuitBreakerState = OPEN).
- * After that the next request will be issued in the Simple Mode.
- * Only if that succeeds we re-enter the Smart Mode (retryCircuitBreakerState = CLOSED).
- * This mode can be set with {@link #enableRetryCircuitBreaker(int, int, int)}
+ * After that up to 'maxHalfOpenProbes' requests will be issued in the Simple Mode, all the others are still rejected
+ * (retryCircuitBreakerState = HALF_OPEN).
+ * Only if one of them succeeds we re-enter the Smart Mode (retryCircuitBreakerState = CLOSED).
+ * This mode can be set with {@link #enableRetryCircuitBreaker(int, int, int)} and
+ * {@link #enableRetryCircuitBreaker(int, int, int, int)}; the circuit breaker is lock-free and safe to share between
+ * threads.
+ * With {@link #enableRetryCircuitBreaker(int, int, int, int, SlidingWindowPolicy)} the circuit breaker also opens
+ * when too many of the recent attempts fail or are slow, even if every single request eventually succeeds.
+ * By default one circuit breaker guards the whole client; with {@link #setEndpointClassifier} each endpoint (path
+ * prefix, verb, host...) gets its own.
  * <p>
  * Furthermore, we can set the read, write and connect timeouts with {@link #setTimeouts(int, int, int)}
+ * <p>
+ * Clients created with a {@link SharedConnectionPool} share connections, dispatcher threads and TLS sessions.
+ * GET responses can be cached, in memory and on disk, with {@link #setResponseCache(ResponseCache)}.
+ * With {@link #enableStaleFallback(long, int)} a GET rejected by the circuit breaker, or out of retries, is answered
+ * with the last good response, flagged with {@link RestResponse#isStale()}.
+ * With {@link #setRequestCoalescing(boolean)} identical concurrent GET requests share a single call.
+ * <p>
+ * JSON responses can be decoded directly into objects, e.g. with {@link #get(String, Map, Class)}, using a single
+ * Gson for the client (see {@link #setGson(Gson)}); huge JSON arrays can be iterated one element at a time with
+ * {@link #stream(String, Map, Type)}, and large bodies can be downloaded straight into a file, channel or stream with
+ * {@link #download(String, Map, Path)}.
+ * <p>
+ * Every request can also be issued asynchronously with {@link #doRequestAsync(RestRequest)}: the call is enqueued on
+ * the OkHttp dispatcher and the backoff between retries is scheduled on a shared timer, so no thread is blocked
+ * while a request is in flight or waiting for its next attempt. Many requests can be sent at once, with bounded
+ * concurrency, with {@link #doRequests(Collection, int, boolean)}.
  */
 public class RestClient {
 
@@ -47,64 +89,179 @@ public class RestClient {
     private final String username;
     private final String password;
     private final KeyStore truststore;
+    private final SharedConnectionPool connectionPool;
+    // null with a single server url
+    private final LoadBalancer loadBalancer;
+    // Basic auth header, null without credentials
+    private final String authorization;
+    private final Headers defaultHeaders;
     private Proxy proxy = Proxy.NO_PROXY;
-    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // PUT and POST without content
+    private static final RequestBody EMPTY_BODY = RequestBody.create(RestBody.JSON, new byte[0]);
     private OkHttpClient okHttpClient;
 
+    // the external hostname is not the one presented by the certificate, the hostname validation fails
+    // -> we add an exception if the hostname is services and the certificate issued for v-theoden
+    // A single instance: OkHttp pools connections only between clients with the same hostname verifier
+    private static final HostnameVerifier hostnameVerifier = new HostnameVerifier() {
+        @Override
+        public boolean verify(String s, SSLSession sslSession) {
+            try {
+                String peer = sslSession.getPeerHost();
+                if ("services.sad.it".equals(peer))
+                    return true;
+            } catch (Exception ignored) {}
+            return OkHostnameVerifier.INSTANCE.verify(s, sslSession);
+        }
+    };
+
+    // The timers waiting to fire, of all the clients
+    static int getScheduledTimerCount() {
+        return Timers.getScheduledTimerCount();
+    }
+
+    // The steps of the requests, shared by doRequest and doRequestAsync
+    private final CallSender sender = new CallSender(this);
+    private final Retrier retrier = new Retrier(this, sender);
+
     // Retry and circuit breaker attributes
-    // If retryCircuitBreakerState == OFF the values of retries, maxRetryTime and maxCircuitBreakerOpenTime are ignored
-    private int retries = 0;
-    private int maxRetryTime = 0;
-    private int maxCircuitBreakerOpenTime = 3000;
-    private long circuitBreakerOpenSince = 0;
-    private RetryCircuitBreakerState retryCircuitBreakerState;
+    // If circuitBreakers == null (state OFF) the values of retries, maxRetryTime and maxCircuitBreakerOpenTime are
+    // ignored
+    private volatile int retries = 0;
+    private volatile int maxRetryTime = 0;
+    private volatile RetryBackoff retryBackoff = RetryBackoff.EXPONENTIAL;
+    private volatile RetryPolicy retryPolicy;
+    private volatile RetryBudget retryBudget;
+    private volatile int maxCircuitBreakerOpenTime = 3000;
+    private volatile int maxHalfOpenProbes = 1;
+    private volatile SlidingWindowPolicy slidingWindowPolicy;
+    private volatile CircuitBreakerRegistry circuitBreakers;
+
+    // null if GET responses are not cached
+    private volatile ResponseCache responseCache;
+
+    // null if failed GET requests are not answered with the last good response
+    private volatile StaleResponseStore staleResponses;
+
+    // null if identical concurrent GET requests make a call each
+    private volatile RequestCoalescer requestCoalescer;
+
+    // Decodes the typed responses
+    private volatile Gson gson = JsonDecoder.DEFAULT_GSON;
+
+    // Min size in bytes of the request bodies to gzip, -1 if they are not compressed
+    private volatile int requestCompressionThreshold = -1;
+    private final CompressionStats compressionStats = new CompressionStats();
+
+    // Max time in ms for a request and all its retries, 0 for no limit
+    private volatile int requestDeadline = 0;
+
+    // null if slow calls are not hedged
+    private volatile Hedging hedging;
+
+    // null if the calls only have the fixed timeouts of okHttpClient
+    private volatile AdaptiveTimeouts adaptiveTimeouts;
+
+    // null if the calls in flight are not limited
+    private volatile ConcurrencyLimits concurrencyLimits;
+
+    // null if the rate of the calls is not limited
+    private volatile RateLimits rateLimits;
+
+    // Per-endpoint circuit breakers, latencies and limits; with endpointClassifier == null the whole client is one
+    // endpoint. Each of them keeps apart at most maxEndpoints endpoints, dropping the ones idle for
+    // maxEndpointIdleTime ms.
+    private volatile EndpointClassifier endpointClassifier;
+    private volatile int maxEndpoints;
+    private volatile int maxEndpointIdleTime;
 
     enum RetryCircuitBreakerState {
         OFF,
         CLOSED,
-        OPEN
+        OPEN,
+        HALF_OPEN
     }
 
     public RestClient(String serverUrl)
             throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-        this.serverUri = new URI(serverUrl);
-        this.timeout = 2000;
-        this.truststore = null;
-        this.username = null;
-        this.password = null;
-        disableRetryCircuitBreaker();
-        createClient();
+        this(serverUrl, null, null, 2000, null, null, 0, null);
     }
 
     public RestClient(String serverUrl, String username, String password, int timeout)
             throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-        this.username = username;
-        this.password = password;
-        this.truststore = null;
-        this.serverUri = new URI(serverUrl);
-        this.timeout = timeout;
-        disableRetryCircuitBreaker();
-        createClient();
+        this(serverUrl, username, password, timeout, null, null, 0, null);
     }
 
     public RestClient(String serverUrl, String username, String password, int timeout, KeyStore truststore)
             throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-        this.username = username;
-        this.password = password;
-        this.truststore = truststore;
-        this.serverUri = new URI(serverUrl);
-        this.timeout = timeout;
-        disableRetryCircuitBreaker();
-        createClient();
+        this(serverUrl, username, password, timeout, truststore, null, 0, null);
     }
 
     public RestClient(String serverUrl, String username, String password, int timeout, String httpProxy, int proxyPort)
             throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        this(serverUrl, username, password, timeout, null, httpProxy, proxyPort, null);
+    }
+
+    /**
+     * @param serverUrl      base URL, the actions of the requests are resolved against it
+     * @param username       user for basic authentication, or null
+     * @param password       password for basic authentication, or null
+     * @param timeout        read, write and connect timeout in ms
+     * @param truststore     truststore for servers without a valid certificate, or null
+     * @param httpProxy      HTTP proxy host, or null
+     * @param proxyPort      HTTP proxy port
+     * @param connectionPool connection pool and dispatcher shared with other clients, or null for a private one
+     */
+    public RestClient(String serverUrl, String username, String password, int timeout, KeyStore truststore,
+                      String httpProxy, int proxyPort, SharedConnectionPool connectionPool)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        this(Collections.singletonList(serverUrl), username, password, timeout, truststore, httpProxy, proxyPort,
+             connectionPool);
+    }
+
+    public RestClient(List<String> serverUrls)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        this(serverUrls, null, null, 2000, null, null, 0, null);
+    }
+
+    public RestClient(List<String> serverUrls, String username, String password, int timeout)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        this(serverUrls, username, password, timeout, null, null, 0, null);
+    }
+
+    /**
+     * A client for a server running as several replicas: each call goes to one of them, balanced on their
+     * outstanding calls and latency, and a failed attempt is retried on another one. The replicas failing
+     * repeatedly are ejected for a while, then probed. See {@link #setReplicaEjection(int, int)}.
+     * <p>
+     * All the base URLs must serve the same API: the actions of the requests are resolved against the first one,
+     * which is also the only one used by {@link #stream} and {@link #download}, then sent to the chosen replica.
+     *
+     * @param serverUrls     base URLs of the replicas (at least one)
+     * @param username       user for basic authentication, or null
+     * @param password       password for basic authentication, or null
+     * @param timeout        read, write and connect timeout in ms
+     * @param truststore     truststore for servers without a valid certificate, or null
+     * @param httpProxy      HTTP proxy host, or null
+     * @param proxyPort      HTTP proxy port
+     * @param connectionPool connection pool and dispatcher shared with other clients, or null for a private one
+     * @throws IllegalArgumentException if serverUrls is empty
+     */
+    public RestClient(List<String> serverUrls, String username, String password, int timeout, KeyStore truststore,
+                      String httpProxy, int proxyPort, SharedConnectionPool connectionPool)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        if (serverUrls.isEmpty())
+            throw new IllegalArgumentException("At least one server url is needed");
+
         this.username = username;
         this.password = password;
-        this.serverUri = new URI(serverUrl);
+        this.truststore = truststore;
+        this.serverUri = new URI(serverUrls.get(0));
+        this.loadBalancer = serverUrls.size() > 1 ? new LoadBalancer(serverUrls) : null;
         this.timeout = timeout;
-        this.truststore = null;
+        this.connectionPool = connectionPool;
+        this.authorization = username != null && password != null ? Credentials.basic(username, password) : null;
+        this.defaultHeaders = Headers.of("User-Agent", "OkHttp RestClient", "Accept", "application/json");
 
         if (httpProxy != null && proxyPort != 0) {
             this.proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(httpProxy, proxyPort));
@@ -141,6 +298,41 @@ public class RestClient {
      * @throws IllegalArgumentException if retries <= 0, maxRetryTime < 0, maxCircuitBreakerOpenTime < 0
      */
     public void enableRetryCircuitBreaker(int retries, int maxRetryTime, int maxCircuitBreakerOpenTime) {
+        enableRetryCircuitBreaker(retries, maxRetryTime, maxCircuitBreakerOpenTime, 1);
+    }
+
+    /**
+     * Enables retry and circuit breaker, letting through up to maxHalfOpenProbes careful requests when the
+     * circuit breaker leaves the OPEN state.
+     *
+     * @param retries                   Max number of retries after that CircuitBreaker goes in OPEN state (>0)
+     * @param maxRetryTime              Max time in milliseconds between retries (>=0).
+     * @param maxCircuitBreakerOpenTime Max time in ms the CircuitBreaker may stay in OPEN state (>=0).
+     * @param maxHalfOpenProbes         Max number of requests issued in HALF_OPEN state (>0).
+     * @throws IllegalArgumentException if retries <= 0, maxRetryTime < 0, maxCircuitBreakerOpenTime < 0,
+     *                                  maxHalfOpenProbes <= 0
+     */
+    public void enableRetryCircuitBreaker(int retries, int maxRetryTime, int maxCircuitBreakerOpenTime,
+                                          int maxHalfOpenProbes) {
+        enableRetryCircuitBreaker(retries, maxRetryTime, maxCircuitBreakerOpenTime, maxHalfOpenProbes, null);
+    }
+
+    /**
+     * Enables retry and circuit breaker; besides a request running out of retries, the circuit breaker is also
+     * opened when the failure rate or the slow call rate of the single attempts crosses the thresholds of the
+     * given policy.
+     *
+     * @param retries                   Max number of retries after that CircuitBreaker goes in OPEN state (>0)
+     * @param maxRetryTime              Max time in milliseconds between retries (>=0).
+     * @param maxCircuitBreakerOpenTime Max time in ms the CircuitBreaker may stay in OPEN state (>=0).
+     * @param maxHalfOpenProbes         Max number of requests issued in HALF_OPEN state (>0).
+     * @param policy                    Sliding window policy, or null to open the CircuitBreaker only when the
+     *                                  retries are exhausted
+     * @throws IllegalArgumentException if retries <= 0, maxRetryTime < 0, maxCircuitBreakerOpenTime < 0,
+     *                                  maxHalfOpenProbes <= 0
+     */
+    public void enableRetryCircuitBreaker(int retries, int maxRetryTime, int maxCircuitBreakerOpenTime,
+                                          int maxHalfOpenProbes, SlidingWindowPolicy policy) {
         if (retries <= 0)
             throw new IllegalArgumentException("The number of retries has to be greater than zero");
         if (maxRetryTime < 0)
@@ -148,19 +340,562 @@ public class RestClient {
         if (maxCircuitBreakerOpenTime < 0)
             throw new IllegalArgumentException(
                     "The maximum circuit breaker open time has to be greater than or equal to zero");
-
-        retryCircuitBreakerState = RetryCircuitBreakerState.CLOSED;
+        if (maxHalfOpenProbes <= 0)
+            throw new IllegalArgumentException("The number of half-open probes has to be greater than zero");
 
         this.retries = retries;
         this.maxRetryTime = maxRetryTime;
+        this.retryPolicy = new RetryPolicy(retries, maxRetryTime, retryBackoff, retryBudget);
         this.maxCircuitBreakerOpenTime = maxCircuitBreakerOpenTime;
+        this.maxHalfOpenProbes = maxHalfOpenProbes;
+        this.slidingWindowPolicy = policy;
+        this.circuitBreakers = newCircuitBreakers();
     }
 
     /**
      * Disables retry and circuit breaker.
      */
     public void disableRetryCircuitBreaker() {
-        retryCircuitBreakerState = RetryCircuitBreakerState.OFF;
+        circuitBreakers = null;
+    }
+
+    /**
+     * Limits the total time of each request, retries included: without a deadline a smart request may last up to
+     * retries * (timeouts + maxRetryTime). Each attempt only gets what is left of the deadline (its call is
+     * cancelled when the deadline expires), a backoff that would end past the deadline is not waited for (the last
+     * failure is returned, and counts for the circuit breaker as if the retries ran out), and a request whose
+     * deadline expired fails with a {@link DeadlineExceededException} (reported inside the RestResponse in Smart
+     * Mode). A request can override it, see {@link RestRequest#withDeadline(int)}.
+     *
+     * @param deadline Max time in ms for a request, all its attempts and the waits between them (>=0), 0 for no
+     *                 limit (the default)
+     * @throws IllegalArgumentException if deadline < 0
+     */
+    public void setRequestDeadline(int deadline) {
+        if (deadline < 0)
+            throw new IllegalArgumentException("The deadline has to be greater than or equal to zero");
+        this.requestDeadline = deadline;
+    }
+
+    public int getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * With several replicas (see {@link #RestClient(List, String, String, int)}), sets when a replica is ejected:
+     * after 'maxFailures' failed calls in a row (connection errors or transient error codes) it gets no calls for
+     * 'ejectionTime' ms, doubled at each new ejection, then a single call at a time probes it until one succeeds.
+     *
+     * @param maxFailures  Failed calls in a row that eject a replica (>0), 5 by default
+     * @param ejectionTime Time in ms a replica is ejected the first time (>0), 10 s by default
+     * @throws IllegalArgumentException if maxFailures <= 0, ejectionTime <= 0
+     */
+    public void setReplicaEjection(int maxFailures, int ejectionTime) {
+        if (maxFailures <= 0)
+            throw new IllegalArgumentException("The number of failures has to be greater than zero");
+        if (ejectionTime <= 0)
+            throw new IllegalArgumentException("The ejection time has to be greater than zero");
+        if (loadBalancer != null)
+            loadBalancer.setEjection(maxFailures, ejectionTime);
+    }
+
+    /**
+     * @return the base URLs of the replicas ejected right now, empty with a single server url
+     */
+    public List<String> getEjectedReplicas() {
+        return loadBalancer == null ? Collections.<String>emptyList() : loadBalancer.getEjected();
+    }
+
+    /**
+     * Gives each call a timeout of 'multiplier' times the 99th percentile of the latencies observed on its
+     * endpoint, see {@link #enableAdaptiveTimeouts(double, double, int, int)}.
+     *
+     * @param multiplier Factor applied to the percentile (>=1)
+     * @param minTimeout Min timeout in ms (>0)
+     * @param maxTimeout Max timeout in ms (>=minTimeout), also used until an endpoint has enough samples
+     */
+    public void enableAdaptiveTimeouts(double multiplier, int minTimeout, int maxTimeout) {
+        enableAdaptiveTimeouts(0.99, multiplier, minTimeout, maxTimeout);
+    }
+
+    /**
+     * Gives each call a timeout of 'multiplier' times a percentile of the latencies observed on its endpoint
+     * (one endpoint for the client, or as defined by {@link #setEndpointClassifier}), between minTimeout and
+     * maxTimeout. The call is cancelled when its timeout expires, reading of the response included, and fails with
+     * a SocketTimeoutException; the timeouts of {@link #setTimeouts(int, int, int)} still apply to each read,
+     * write and connection. Nothing is rebuilt: each call just gets its own timeout. The latencies are kept in a
+     * streaming histogram in which the old samples weigh less and less, so the timeout follows the endpoint.
+     *
+     * @param percentile Percentile of the latencies, e.g. 0.99 for the 99th (0-1)
+     * @param multiplier Factor applied to the percentile (>=1)
+     * @param minTimeout Min timeout in ms (>0)
+     * @param maxTimeout Max timeout in ms (>=minTimeout), also used until an endpoint has enough samples
+     * @throws IllegalArgumentException if percentile is not in (0, 1), multiplier < 1, minTimeout <= 0,
+     *                                  maxTimeout < minTimeout
+     */
+    public void enableAdaptiveTimeouts(double percentile, double multiplier, int minTimeout, int maxTimeout) {
+        if (percentile <= 0 || percentile >= 1)
+            throw new IllegalArgumentException("The percentile has to be in (0, 1)");
+        if (multiplier < 1)
+            throw new IllegalArgumentException("The multiplier has to be greater than or equal to one");
+        if (minTimeout <= 0)
+            throw new IllegalArgumentException("The minimum timeout has to be greater than zero");
+        if (maxTimeout < minTimeout)
+            throw new IllegalArgumentException(
+                    "The maximum timeout has to be greater than or equal to the minimum timeout");
+
+        adaptiveTimeouts = new AdaptiveTimeouts(percentile, multiplier, minTimeout, maxTimeout, getMaxEndpoints(),
+                                                maxEndpointIdleTime);
+    }
+
+    public void disableAdaptiveTimeouts() {
+        adaptiveTimeouts = null;
+    }
+
+    /**
+     * @return the timeout in ms the next call of the request would get, 0 if adaptive timeouts are disabled
+     */
+    public long getAdaptiveTimeout(RestRequest restRequest) {
+        AdaptiveTimeouts timeouts = adaptiveTimeouts;
+        return timeouts == null ? 0 : timeouts.timeout(timeouts.histogram(endpointOf(restRequest)));
+    }
+
+    /**
+     * Hedges the idempotent requests (GET, and the ones marked by {@link RestRequest#idempotent()}): when a call has
+     * no response after 'delay' ms, an identical call goes out, the first response wins and the other call is
+     * cancelled. Each attempt of a request with retries is hedged on its own. A slow replica or a stalled
+     * connection then costs at most the delay plus a typical latency.
+     * <p>
+     * {@link #doRequest} still makes its first call in the calling thread; the hedges, and all the calls of
+     * {@link #doRequestAsync}, go through the OkHttp dispatcher, which runs at most 5 calls per host unless a
+     * {@link SharedConnectionPool} sets otherwise. No hedge is sent while the dispatcher has calls waiting.
+     *
+     * @param delay  Time in ms without response after which a call is hedged (>0)
+     * @param budget Pays for the hedges: e.g. new RetryBudget(0.05f, 10) adds at most 5% of calls (not null)
+     * @throws IllegalArgumentException if delay <= 0, budget == null
+     */
+    public void enableHedging(int delay, RetryBudget budget) {
+        if (delay <= 0)
+            throw new IllegalArgumentException("The hedge delay has to be greater than zero");
+        if (budget == null)
+            throw new IllegalArgumentException("The hedge budget cannot be null");
+        hedging = new Hedging(delay, budget);
+    }
+
+    /**
+     * Like {@link #enableHedging(int, RetryBudget)}, with a delay that follows a percentile of the latencies of
+     * each endpoint (e.g. 0.95: only the calls slower than the p95 are hedged), tracked as the adaptive timeouts
+     * do.
+     *
+     * @param percentile Percentile of the latencies after which a call is hedged, e.g. 0.95 (0-1)
+     * @param minDelay   Min delay in ms (>0)
+     * @param maxDelay   Max delay in ms (>=minDelay), also used until an endpoint has enough samples
+     * @param budget     Pays for the hedges (not null)
+     * @throws IllegalArgumentException if percentile is not in (0, 1), minDelay <= 0, maxDelay < minDelay,
+     *                                  budget == null
+     */
+    public void enableHedging(double percentile, int minDelay, int maxDelay, RetryBudget budget) {
+        if (percentile <= 0 || percentile >= 1)
+            throw new IllegalArgumentException("The percentile has to be in (0, 1)");
+        if (minDelay <= 0)
+            throw new IllegalArgumentException("The minimum hedge delay has to be greater than zero");
+        if (maxDelay < minDelay)
+            throw new IllegalArgumentException(
+                    "The maximum hedge delay has to be greater than or equal to the minimum hedge delay");
+        if (budget == null)
+            throw new IllegalArgumentException("The hedge budget cannot be null");
+        hedging = new Hedging(new AdaptiveTimeouts(percentile, 1, minDelay, maxDelay, getMaxEndpoints(),
+                                                   maxEndpointIdleTime), budget);
+    }
+
+    public void disableHedging() {
+        hedging = null;
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    public long getHedgeCount() {
+        Hedging hedging = this.hedging;
+        return hedging == null ? 0 : hedging.getHedgeCount();
+    }
+
+    /**
+     * @return the number of hedges that answered before the call they hedged
+     */
+    public long getHedgeWinCount() {
+        Hedging hedging = this.hedging;
+        return hedging == null ? 0 : hedging.getHedgeWinCount();
+    }
+
+    /**
+     * Limits the calls in flight at the same time to each endpoint (one endpoint for the client, or as defined by
+     * {@link #setEndpointClassifier}), with a limit that follows the latency of the server as TCP Vegas does: it
+     * grows by one while the latency stays close to the lowest one seen, shrinks by one when the latency shows calls
+     * queueing in the server, and by 10% at each timeout, connection failure, 429 or 503. When the server slows down
+     * the callers are pushed back at once, instead of piling up calls until it fails.
+     * <p>
+     * A call over the limit waits up to 'maxWait' ms (and not past its deadline) for a slot, in FIFO order, then fails
+     * with a {@link ConcurrencyLimitException}: in Smart Mode it is retried as any transient failure. Each attempt and
+     * each hedge takes a slot, the responses served by the cache do not. A stream or a download holds its slot until
+     * its body is closed or fully read.
+     *
+     * @param initialLimit Limit of a new endpoint (>=minLimit, <=maxLimit)
+     * @param minLimit     Min limit (>0)
+     * @param maxLimit     Max limit (>=minLimit)
+     * @param maxWait      Max time in ms a call waits for a slot (>=0), 0 to reject it at once
+     * @throws IllegalArgumentException if minLimit <= 0, maxLimit < minLimit, initialLimit is not in
+     *                                  [minLimit, maxLimit], maxWait < 0
+     */
+    public void enableConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, int maxWait) {
+        if (minLimit <= 0)
+            throw new IllegalArgumentException("The minimum limit has to be greater than zero");
+        if (maxLimit < minLimit)
+            throw new IllegalArgumentException(
+                    "The maximum limit has to be greater than or equal to the minimum limit");
+        if (initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("The initial limit has to be between the minimum and the maximum limit");
+        if (maxWait < 0)
+            throw new IllegalArgumentException("The maximum wait has to be greater than or equal to zero");
+
+        concurrencyLimits = new ConcurrencyLimits(initialLimit, minLimit, maxLimit, maxWait, getMaxEndpoints(),
+                                                  maxEndpointIdleTime);
+    }
+
+    public void disableConcurrencyLimit() {
+        concurrencyLimits = null;
+    }
+
+    /**
+     * @return the concurrency limit, summed over the endpoints with per-endpoint limits; 0 if disabled
+     */
+    public int getConcurrencyLimit() {
+        ConcurrencyLimits limits = concurrencyLimits;
+        return limits == null ? 0 : limits.getLimit();
+    }
+
+    /**
+     * @return the concurrency limit of the endpoint of the request, 0 if disabled
+     */
+    public int getConcurrencyLimit(RestRequest restRequest) {
+        ConcurrencyLimits limits = concurrencyLimits;
+        return limits == null ? 0 : limits.limiter(endpointOf(restRequest)).getLimit();
+    }
+
+    /**
+     * @return the calls holding a slot of the concurrency limit right now, 0 if disabled
+     */
+    public int getInFlightCount() {
+        ConcurrencyLimits limits = concurrencyLimits;
+        return limits == null ? 0 : limits.getInFlight();
+    }
+
+    /**
+     * @return the number of calls rejected by the concurrency limit
+     */
+    public long getConcurrencyLimitRejectedCount() {
+        ConcurrencyLimits limits = concurrencyLimits;
+        return limits == null ? 0 : limits.getRejectedCount();
+    }
+
+    /**
+     * Keeps the calls of this client under the rate of the given limiter, which can be shared by several clients
+     * (e.g. all the clients calling the same partner API with the same quota), see
+     * {@link #enableRateLimit(RateLimiter, double, int, int)}.
+     *
+     * @param limiter the rate limiter (not null)
+     * @param maxWait Max time in ms a call waits for a permit (>=0), 0 to fail at once
+     * @throws IllegalArgumentException if limiter == null, maxWait < 0
+     */
+    public void enableRateLimit(RateLimiter limiter, int maxWait) {
+        if (limiter == null)
+            throw new IllegalArgumentException("The rate limiter cannot be null");
+        enableRateLimit(limiter, 0, 0, maxWait);
+    }
+
+    /**
+     * Keeps the calls under a rate for the whole client, and under another one for each endpoint (one endpoint for the
+     * client, or as defined by {@link #setEndpointClassifier}): each call takes a permit from both, see
+     * {@link RateLimiter}. A call without permit waits for it up to 'maxWait' ms (and not past its deadline):
+     * {@link #doRequest} blocks, {@link #doRequestAsync} waits on the timer. A call whose permit would come later fails
+     * at once with a {@link RateLimitException}, which is not retried and does not count as a failure for the circuit
+     * breaker. Each attempt, each hedge, each stream and each download takes a permit, the responses served by the
+     * cache do not; a 429 from the server empties the buckets of the request, for as long as its Retry-After asks if
+     * longer. In Smart Mode the 429 is retried only after its Retry-After, if that is not longer than maxWait; when the
+     * rate limit refuses a retry, the caller gets the response that asked for it.
+     *
+     * @param limiter                  the rate limiter of the whole client, or null for none
+     * @param endpointPermitsPerSecond Calls per second to each endpoint (>0), 0 for no limit per endpoint
+     * @param endpointBurst            Calls allowed in a row to each endpoint (>0 with a limit per endpoint)
+     * @param maxWait                  Max time in ms a call waits for a permit (>=0), 0 to fail at once
+     * @throws IllegalArgumentException if there is no limit at all, endpointPermitsPerSecond < 0,
+     *                                  endpointBurst <= 0 with a limit per endpoint, maxWait < 0
+     */
+    public void enableRateLimit(RateLimiter limiter, double endpointPermitsPerSecond, int endpointBurst,
+                                int maxWait) {
+        if (endpointPermitsPerSecond < 0)
+            throw new IllegalArgumentException("The permits per second cannot be negative");
+        if (limiter == null && endpointPermitsPerSecond == 0)
+            throw new IllegalArgumentException("A rate limit for the client or for each endpoint is needed");
+        if (endpointPermitsPerSecond > 0 && endpointBurst <= 0)
+            throw new IllegalArgumentException("The burst has to be greater than zero");
+        if (maxWait < 0)
+            throw new IllegalArgumentException("The maximum wait has to be greater than or equal to zero");
+
+        rateLimits = new RateLimits(limiter, endpointPermitsPerSecond, endpointBurst, maxWait, getMaxEndpoints(),
+                                    maxEndpointIdleTime);
+    }
+
+    public void disableRateLimit() {
+        rateLimits = null;
+    }
+
+    /**
+     * @return the rate limiter of the whole client, to check its counters; null if there is none
+     */
+    public RateLimiter getRateLimiter() {
+        RateLimits limits = rateLimits;
+        return limits == null ? null : limits.getClientLimiter();
+    }
+
+    /**
+     * @return the rate limiter of the endpoint of the request, to check its counters; null if there is none
+     */
+    public RateLimiter getRateLimiter(RestRequest restRequest) {
+        RateLimits limits = rateLimits;
+        return limits == null ? null : limits.endpointLimiter(endpointOf(restRequest));
+    }
+
+    /**
+     * Sets how the wait between two consecutive attempts grows (EXPONENTIAL by default). With many clients retrying
+     * against the same server FULL_JITTER or DECORRELATED_JITTER spread the retries instead of sending them in
+     * lockstep.
+     *
+     * @param backoff the backoff strategy, always capped to maxRetryTime
+     */
+    public void setRetryBackoff(RetryBackoff backoff) {
+        if (backoff == null)
+            throw new IllegalArgumentException("The retry backoff cannot be null");
+
+        this.retryBackoff = backoff;
+        if (retryPolicy != null)
+            retryPolicy = new RetryPolicy(retries, maxRetryTime, backoff, retryBudget);
+    }
+
+    public RetryBackoff getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * Limits the retries of all the requests of this client (the same budget can also be shared by many clients):
+     * when the budget is exhausted a failed attempt is returned as it is, without retrying. The request still
+     * counts as failed for the circuit breaker, as if it ran out of retries.
+     *
+     * @param budget the retry budget, null for no limit (the default)
+     */
+    public void setRetryBudget(RetryBudget budget) {
+        this.retryBudget = budget;
+        if (retryPolicy != null)
+            retryPolicy = new RetryPolicy(retries, maxRetryTime, retryBackoff, budget);
+    }
+
+    /**
+     * @return the retry budget, to check how many retries are being dropped; null if there is none
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Caches the responses to GET requests, honoring Cache-Control and Expires, and revalidates them with
+     * If-None-Match / If-Modified-Since once they are stale. A cached response is only served to a request with the
+     * same url and the same headers, whatever its Vary header.
+     *
+     * @param cache the cache (it can be shared between clients with the same credentials), null to disable caching
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    /**
+     * @return the response cache, to check its hit, miss and revalidation counters; null if there is none
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Keeps the last successful response of each GET request (by URL, query parameters included), and serves it
+     * instead of the error when the circuit breaker rejects the request or the retries are exhausted. The served
+     * response is flagged with {@link RestResponse#isStale()}. Failures in Simple Mode are not affected.
+     *
+     * @param maxSize Max size in bytes of the kept responses (>0)
+     * @param maxAge  Max age in ms of a response that can still be served (>0)
+     * @throws IllegalArgumentException if maxSize <= 0, maxAge <= 0
+     */
+    public void enableStaleFallback(long maxSize, int maxAge) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The maximum size has to be greater than zero");
+        if (maxAge <= 0)
+            throw new IllegalArgumentException("The maximum age has to be greater than zero");
+
+        this.staleResponses = new StaleResponseStore(maxSize, maxAge);
+    }
+
+    /**
+     * Disables the stale fallback and drops the kept responses.
+     */
+    public void disableStaleFallback() {
+        this.staleResponses = null;
+    }
+
+    /**
+     * @return the number of stale responses served instead of an error
+     */
+    public long getStaleResponseCount() {
+        StaleResponseStore stale = staleResponses;
+        return stale == null ? 0 : stale.getServedCount();
+    }
+
+    /**
+     * Coalesces identical concurrent GET requests (same URL, query parameters included, and same headers): while a
+     * request is in flight, the identical ones wait for it instead of making their own call, and all get the same
+     * RestResponse (or the same exception). This cuts the load on the server when many threads ask for the same
+     * resource at the same time. Requests are only coalesced while in flight, no response is kept afterwards.
+     *
+     * @param enabled true to coalesce identical GET requests, false (the default) to make a call for each one
+     */
+    public void setRequestCoalescing(boolean enabled) {
+        if (!enabled)
+            requestCoalescer = null;
+        else if (requestCoalescer == null)
+            requestCoalescer = new RequestCoalescer();
+    }
+
+    public boolean isRequestCoalescing() {
+        return requestCoalescer != null;
+    }
+
+    /**
+     * @return the number of GET requests that did not make their own call, because an identical one was in flight
+     */
+    public long getCoalescedRequestCount() {
+        RequestCoalescer coalescer = requestCoalescer;
+        return coalescer == null ? 0 : coalescer.getCoalescedCount();
+    }
+
+    /**
+     * Gzip-compresses the PUT and POST bodies of at least minSize bytes, and those of unknown length, sending them
+     * with "Content-Encoding: gzip": the server has to accept it. The body is compressed while it is sent, each
+     * attempt again. A single body can override this setting with {@link RestBody#withCompression(boolean)}.
+     *
+     * @param minSize Min size in bytes of the bodies to compress (>=0)
+     * @throws IllegalArgumentException if minSize < 0
+     */
+    public void enableRequestCompression(int minSize) {
+        if (minSize < 0)
+            throw new IllegalArgumentException("The minimum size cannot be negative");
+        this.requestCompressionThreshold = minSize;
+    }
+
+    /**
+     * Sends the request bodies as they are (the default), unless a body asks for compression.
+     */
+    public void disableRequestCompression() {
+        this.requestCompressionThreshold = -1;
+    }
+
+    /**
+     * @return ratio, bytes and time of the request bodies compressed so far
+     */
+    public CompressionStats getRequestCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Sets the Gson used to decode typed responses, e.g. {@link #get(String, Map, Type)}. Gson is thread safe: one
+     * instance can serve all the requests, and all the clients.
+     *
+     * @param gson the Gson to use; by default one with {@link DateTimeTypeAdapter} registered
+     */
+    public void setGson(Gson gson) {
+        if (gson == null)
+            throw new IllegalArgumentException("The Gson cannot be null");
+        this.gson = gson;
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * Uses a separate circuit breaker for each endpoint, as defined by the classifier (e.g.
+     * {@link EndpointClassifiers#byPathPrefix(int)}), so that a failing endpoint does not block the requests to the
+     * others. If retry and circuit breaker are already enabled, all the circuit breakers start again CLOSED.
+     * The adaptive timeouts, the hedging, the concurrency limits and the rate limits of the endpoints follow the
+     * same classifier.
+     *
+     * @param classifier   Maps each request to its endpoint, null to go back to one endpoint for the client
+     * @param maxEndpoints Max number of endpoints kept apart at the same time, by the circuit breakers as by each
+     *                     of the other per-endpoint features (>0)
+     * @param maxIdleTime  Time in ms after which the circuit breaker, the latencies and the limits of an endpoint
+     *                     without requests are dropped (>0)
+     * @throws IllegalArgumentException if maxEndpoints <= 0, maxIdleTime <= 0
+     */
+    public void setEndpointClassifier(EndpointClassifier classifier, int maxEndpoints, int maxIdleTime) {
+        if (maxEndpoints <= 0)
+            throw new IllegalArgumentException("The maximum number of endpoints has to be greater than zero");
+        if (maxIdleTime <= 0)
+            throw new IllegalArgumentException("The maximum idle time has to be greater than zero");
+
+        this.endpointClassifier = classifier;
+        this.maxEndpoints = maxEndpoints;
+        this.maxEndpointIdleTime = maxIdleTime;
+        if (circuitBreakers != null)
+            circuitBreakers = newCircuitBreakers();
+        AdaptiveTimeouts timeouts = adaptiveTimeouts;
+        if (timeouts != null)
+            adaptiveTimeouts = timeouts.withEndpoints(getMaxEndpoints(), maxIdleTime);
+        Hedging hedging = this.hedging;
+        if (hedging != null)
+            this.hedging = hedging.withEndpoints(getMaxEndpoints(), maxIdleTime);
+        ConcurrencyLimits limits = concurrencyLimits;
+        if (limits != null)
+            concurrencyLimits = limits.withEndpoints(getMaxEndpoints(), maxIdleTime);
+        RateLimits rates = rateLimits;
+        if (rates != null)
+            rateLimits = rates.withEndpoints(getMaxEndpoints(), maxIdleTime);
+    }
+
+    /**
+     * @return the max number of endpoints kept apart, see {@link #setEndpointClassifier}; 0 without a classifier
+     */
+    public int getMaxEndpoints() {
+        return endpointClassifier != null ? maxEndpoints : 0;
+    }
+
+    private CircuitBreakerRegistry newCircuitBreakers() {
+        return new CircuitBreakerRegistry(maxCircuitBreakerOpenTime, maxHalfOpenProbes, slidingWindowPolicy,
+                                          getMaxEndpoints(), maxEndpointIdleTime);
+    }
+
+    /**
+     * The endpoint of the request as defined by the classifier, null without one: computed once per request and
+     * handed to the per-endpoint circuit breakers, latencies and limits.
+     */
+    String endpointOf(RestRequest restRequest) {
+        EndpointClassifier classifier = endpointClassifier;
+        if (classifier == null)
+            return null;
+
+        URI uri;
+        try {
+            uri = serverUri.resolve(new URI(restRequest.getAction()));
+        } catch (URISyntaxException e) {
+            // the request will fail anyway, without reaching the server
+            uri = serverUri;
+        }
+        return classifier.classify(restRequest.getVerb(), uri);
     }
 
     public int getRetries() {
@@ -171,42 +906,47 @@ public class RestClient {
         return maxRetryTime;
     }
 
+    /**
+     * With per-endpoint circuit breakers, returns OPEN if at least one endpoint is OPEN, HALF_OPEN if at least one is
+     * HALF_OPEN, CLOSED otherwise.
+     */
     public RetryCircuitBreakerState getRetryCircuitBreakerState() {
-        return retryCircuitBreakerState;
+        CircuitBreakerRegistry breakers = circuitBreakers;
+        return breakers == null ? RetryCircuitBreakerState.OFF : breakers.getState();
     }
 
-
-    private void closeCircuitBreaker() {
-        if (retryCircuitBreakerState == RetryCircuitBreakerState.OFF)
-            throw new IllegalArgumentException("State cannot be changed from OFF to CLOSED");
-        retryCircuitBreakerState = RetryCircuitBreakerState.CLOSED;
+    /**
+     * The state of the circuit breaker that guards the endpoint of the given request.
+     */
+    public RetryCircuitBreakerState getRetryCircuitBreakerState(RestRequest restRequest) {
+        CircuitBreakerRegistry breakers = circuitBreakers;
+        return breakers == null ? RetryCircuitBreakerState.OFF : breakers.get(endpointOf(restRequest)).getState();
     }
 
-    private void openCircuitBreaker() {
-        if (retryCircuitBreakerState == RetryCircuitBreakerState.OFF)
-            throw new IllegalArgumentException("State cannot be changed from OFF to OPEN");
-        circuitBreakerOpenSince = System.currentTimeMillis();
-        retryCircuitBreakerState = RetryCircuitBreakerState.OPEN;
+    private static RestResponse rejectedResponse(CircuitBreaker breaker) {
+        if (breaker.getState() == RetryCircuitBreakerState.HALF_OPEN)
+            return new RestResponse(new CircuitBreakerException(
+                    "Requests are not permitted while the circuit breaker is probing the server"));
+        return new RestResponse(new CircuitBreakerException(
+                "Requests are not permitted for another " + breaker.getRemainingOpenTime() +
+                "ms because the last request failed"));
     }
 
     private void createClient() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        // With a shared pool the new client inherits its connection pool and dispatcher
         final OkHttpClient.Builder okHttpClientBuilder =
-                new OkHttpClient.Builder().connectTimeout(timeout, TimeUnit.MILLISECONDS)
-                                          .readTimeout(timeout, TimeUnit.MILLISECONDS)
-                                          .writeTimeout(timeout, TimeUnit.MILLISECONDS)
-                                          .proxy(proxy);
+                (connectionPool != null ? connectionPool.newClientBuilder() : new OkHttpClient.Builder())
+                        .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                        .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                        .writeTimeout(timeout, TimeUnit.MILLISECONDS)
+                        .proxy(proxy);
 
         // init truststore we need for servers without a valid certificate
         if (truststore != null) {
-            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-
-            TrustManagerFactory trustManagerFactory =
-                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init(truststore);
-
-            sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
-            okHttpClientBuilder.sslSocketFactory(sslContext.getSocketFactory(),
-                                                 (X509TrustManager)trustManagerFactory.getTrustManagers()[0]);
+            SharedConnectionPool.TrustedSocketFactory trusted =
+                    connectionPool != null ? connectionPool.getSocketFactory(truststore)
+                                           : SharedConnectionPool.TrustedSocketFactory.create(truststore);
+            okHttpClientBuilder.sslSocketFactory(trusted.socketFactory, trusted.trustManager);
         } else if (serverUri.getScheme().equalsIgnoreCase("https")) {
             // No truststore, but we want https anyway? Better be only for test!
         }
@@ -214,186 +954,380 @@ public class RestClient {
         // Disable redirect
         okHttpClientBuilder.followRedirects(false);
 
-        // the external hostname is not the one presented by the certificate, the hostname validation fails
-        // -> we add an exception if the hostname is services and the certificate issued for v-theoden
-        okHttpClientBuilder.hostnameVerifier(new HostnameVerifier() {
-            @Override
-            public boolean verify(String s, SSLSession sslSession) {
-                try {
-                    String peer = sslSession.getPeerHost();
-                    if ("services.sad.it".equals(peer))
-                        return true;
-                } catch (Exception ignored) {}
-                return OkHostnameVerifier.INSTANCE.verify(s, sslSession);
-            }
-        });
+        okHttpClientBuilder.hostnameVerifier(hostnameVerifier);
 
         okHttpClient = okHttpClientBuilder.build();
     }
 
     private String generateUrl(RestRequest restRequest) throws URISyntaxException {
+        return generateHttpUrl(restRequest).toString();
+    }
+
+    private HttpUrl generateHttpUrl(RestRequest restRequest) throws URISyntaxException {
+        // Already resolved by a PreparedRestRequest
+        if (restRequest.getUrl() != null)
+            return restRequest.getUrl();
+
         String baseUrl = serverUri.resolve(new URI(restRequest.getAction())).toString();
 
         HttpUrl url = HttpUrl.parse(baseUrl);
         HttpUrl.Builder urlBuilder = url.newBuilder();
-        Map<String, String> params = restRequest.getParams();
-        if (params != null) {
-            for (String parKey : params.keySet()) {
-                urlBuilder.addQueryParameter(parKey, params.get(parKey));
+        if (restRequest.getRepeatedParams() != null) {
+            // repeated parameters keep all their values
+            for (Map.Entry<String, String> param : restRequest.getRepeatedParams().entries()) {
+                urlBuilder.addQueryParameter(param.getKey(), param.getValue());
+            }
+        } else if (restRequest.getParams() != null) {
+            for (Map.Entry<String, String> param : restRequest.getParams().entrySet()) {
+                urlBuilder.addQueryParameter(param.getKey(), param.getValue());
             }
         }
-        return urlBuilder.build().toString();
+        return urlBuilder.build();
     }
 
-    // make a request
-    private RestResponse sendRequest(RestRequest restRequest) throws URISyntaxException, IOException {
-        String requestUrl = generateUrl(restRequest);
-        Request.Builder requestBuilder = new Request.Builder();
-        requestBuilder.header("User-Agent", "OkHttp RestClient").addHeader("Accept", "application/json");
+    // User-Agent, Accept and (if any) Authorization, the same for all the requests
+    Headers getDefaultHeaders() {
+        return defaultHeaders;
+    }
 
-        for (Map.Entry<String, String> header : restRequest.getHeaders().entrySet()) {
-            requestBuilder.addHeader(header.getKey(), header.getValue());
-        }
+    // Basic auth header, null without credentials
+    String getAuthorization() {
+        return authorization;
+    }
 
-        // Add basic auth directly to the relevant headers
-        if (username != null && password != null) {
-            String credentials = Credentials.basic(username, password);
-            requestBuilder.header("Authorization", credentials);
-        }
+    OkHttpClient getOkHttpClient() {
+        return okHttpClient;
+    }
 
-        requestBuilder.url(requestUrl);
+    // null with a single server url
+    LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
 
-        // Build request to send to our REST service
-        // Creation of PUT or POST body
-        RequestBody body;
-        if (restRequest.getContent() != null) {
-            body = RequestBody.create(JSON, restRequest.getContent());
+    // null if the calls only have the fixed timeouts of okHttpClient
+    AdaptiveTimeouts getAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    // null if the calls in flight are not limited
+    ConcurrencyLimits getConcurrencyLimits() {
+        return concurrencyLimits;
+    }
+
+    // null if the rate of the calls is not limited
+    RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    // package-private for the benchmarks
+    Request buildRequest(RestRequest restRequest) throws URISyntaxException {
+        Request.Builder requestBuilder = new Request.Builder();
+        if (restRequest.getPreparedHeaders() != null) {
+            requestBuilder.headers(restRequest.getPreparedHeaders());
         } else {
-            body = RequestBody.create(JSON, "");
+            requestBuilder.headers(defaultHeaders);
+            for (Map.Entry<String, String> header : restRequest.getHeaders().entrySet()) {
+                requestBuilder.addHeader(header.getKey(), header.getValue());
+            }
+            // Basic auth, computed once by the constructor: it wins over a header of the request
+            if (authorization != null)
+                requestBuilder.header("Authorization", authorization);
         }
 
+        requestBuilder.url(generateHttpUrl(restRequest));
+
+        // Build request to send to our REST service
+        // PUT or POST body, already encoded by the RestRequest: retries send the same one
         switch (restRequest.getVerb()) {
             case GET:
             case DELETE:
                 break;
             case PUT:
-                requestBuilder.put(body);
+                requestBuilder.put(requestBody(restRequest.getBody(), requestBuilder));
                 break;
             case POST:
-                requestBuilder.post(body);
+                requestBuilder.post(requestBody(restRequest.getBody(), requestBuilder));
                 break;
             default:
                 break;
         }
 
-        Request request = requestBuilder.build();
+        return requestBuilder.build();
+    }
+
+    // The body to send, gzip-compressed if the body or the client ask for it
+    private RequestBody requestBody(RestBody restBody, Request.Builder requestBuilder) {
+        if (restBody == null)
+            return EMPTY_BODY;
+
+        RequestBody body = restBody.toRequestBody();
+        boolean compress;
+        if (restBody.getCompression() != null) {
+            compress = restBody.getCompression();
+        } else {
+            int threshold = requestCompressionThreshold;
+            long length = restBody.getContentLength();
+            compress = threshold >= 0 && (length < 0 || length >= threshold);
+        }
+        if (!compress)
+            return body;
+
+        requestBuilder.header("Content-Encoding", "gzip");
+        return GzipRequestBody.create(body, compressionStats);
+    }
 
-        // Send request to server
-        Response response = okHttpClient.newCall(request).execute();
+    ResponseCache cacheFor(RestRequest restRequest) {
+        return restRequest.getVerb() == GET ? responseCache : null;
+    }
 
-        String responseBody;
-        int statusCode = response.code();
+    // Typed requests are coalesced only as plain ones (see get(String, Map, Type)), so that all get the String
+    private RequestCoalescer coalescerFor(RestRequest restRequest) {
+        return restRequest.getVerb() == GET && restRequest.getDecoder() == null ? requestCoalescer : null;
+    }
 
-        if (statusCode == 307)  //Temporary redirect
-            responseBody = response.header("Location");
-        else
-            responseBody = response.body().string();
+    StaleResponseStore staleFor(RestRequest restRequest) {
+        return restRequest.getVerb() == GET ? staleResponses : null;
+    }
 
-        return new RestResponse(statusCode, responseBody);
+    // The key of the response in the cache and in the stale fallback, see ResponseCache.key
+    static String keyOf(RestRequest restRequest, Request request) {
+        return ResponseCache.key(request.url().toString(), restRequest.getHeaders());
     }
 
-    // Make smart request, with retries and circuit breaker.
-    // Exponential wait between two consecutive attempts (Fibonacci with up to maxRetryTime) until reaching maxRetries,
-    // then it sets the circuit breaker to OPEN (no request allowed for circuitBreakerOpenSince ms.
-    private RestResponse retrySend(final RestRequest restRequest) {
-        if (retryCircuitBreakerState != RetryCircuitBreakerState.CLOSED)
-            throw new IllegalArgumentException("Cannot make smart request when state = " + retryCircuitBreakerState);
+    // Keeps a successful response for the stale fallback
+    static RestResponse remember(StaleResponseStore stale, String key, RestResponse response) {
+        if (stale != null && response.getCode() / 100 == 2)
+            stale.put(key, response);
+        return response;
+    }
 
-        RetryerBuilder<RestResponse> builder =
-                RetryerBuilder.<RestResponse>newBuilder()
-                              .retryIfResult(new Predicate<RestResponse>() {
-                                  @Override
-                                  public boolean apply(RestResponse restResponse) {
-                                      return !restResponse.isOk() && restResponse.isTransientErrorCode();
-                                  }
-                              })
-                              .retryIfRuntimeException()
-                              .withWaitStrategy(
-                                      WaitStrategies.exponentialWait(100, maxRetryTime, TimeUnit.MILLISECONDS))
-                              .withStopStrategy(StopStrategies.stopAfterAttempt(retries));
+    // The last good response to the same GET request if there is one, the failure otherwise
+    RestResponse staleOr(RestRequest restRequest, RestResponse failure) {
+        StaleResponseStore stale = staleFor(restRequest);
+        if (stale == null)
+            return failure;
 
-        for (Class<? extends Throwable> exc : RestResponse.getTransientExceptions()) {
-            builder.retryIfExceptionOfType(exc);
+        try {
+            RestResponse response = stale.get(ResponseCache.key(generateUrl(restRequest), restRequest.getHeaders()));
+            return response != null ? response : failure;
+        } catch (URISyntaxException e) {
+            return failure;
         }
+    }
 
-        Retryer<RestResponse> retryer = builder.build();
+    // A fresh cached response to the same GET request if there is one, as staleOr otherwise
+    RestResponse freshOr(RestRequest restRequest, RestResponse failure) {
+        ResponseCache cache = cacheFor(restRequest);
+        if (cache == null)
+            return staleOr(restRequest, failure);
 
-        RestResponse response;
+        ResponseCache.Entry cached;
         try {
-            response = retryer.call(new Callable<RestResponse>() {
-                @Override
-                public RestResponse call() throws Exception {
-                    return sendRequest(restRequest);
-                }
-            });
-        } catch (RetryException e) {
-            response = new RestResponse(e);
-            openCircuitBreaker();
-        } catch (ExecutionException e) {
-            response = new RestResponse(e);
+            cached = cache.get(ResponseCache.key(generateUrl(restRequest), restRequest.getHeaders()));
+        } catch (URISyntaxException e) {
+            return failure;
         }
+        return cached != null && cached.isFresh() ? cache.hit(cached) : staleOr(restRequest, failure);
+    }
 
-        return response;
+    // The deadline in ms of a request, 0 if none
+    int deadlineMillis(RestRequest restRequest) {
+        return restRequest.getDeadline() > 0 ? restRequest.getDeadline() : requestDeadline;
+    }
+
+    // The absolute deadline of a request, as System.nanoTime(), taken when it is dispatched
+    long deadlineOf(RestRequest restRequest) {
+        int deadline = deadlineMillis(restRequest);
+        return deadline > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : Timers.NO_DEADLINE;
+    }
+
+    Hedging hedgingFor(RestRequest restRequest) {
+        Hedging hedging = this.hedging;
+        return hedging != null && restRequest.isIdempotent() && isReplayable(restRequest) ? hedging : null;
+    }
+
+    // The replica for the next call, another one than 'avoid' if possible; null with a single server url
+    // 'now' is the System.nanoTime() of the choice: the call passes it on as its 'chosen', see LoadBalancer#choose
+    LoadBalancer.Replica replicaFor(LoadBalancer.Replica avoid, long now) {
+        return loadBalancer == null ? null : loadBalancer.choose(avoid, now);
+    }
+
+    static boolean isReplayable(RestRequest restRequest) {
+        return restRequest.getBody() == null || restRequest.getBody().isReplayable();
+    }
+
+    static Exception asException(Throwable t) {
+        return t instanceof Exception ? (Exception)t : new ExecutionException(t);
     }
 
     // depending on the value of retries it makes either
     // 1) a simple request (w/o retries, circuit breaker) if retries > 0
     // or 2) a smart request (w/ retries, circuit breaker) if retries == 0
+    // With request coalescing, a GET identical to one in flight waits for it instead.
+    // The request runs in the calling thread, as doRequestAsync would run it on the dispatcher.
     public RestResponse doRequest(final RestRequest restRequest) throws URISyntaxException, IOException {
-        RestResponse response = null;
+        return CallMode.await(request(restRequest, CallMode.BLOCKING));
+    }
 
-        switch (retryCircuitBreakerState) {
-            case OFF:
-                // Simple Mode is set without retries and circuit breaker
-                response = sendRequest(restRequest);
-                break;
+    /**
+     * Non-blocking version of {@link #doRequest(RestRequest)}, with the same retry and circuit breaker behaviour.
+     * <p>
+     * In Simple Mode the future fails with the IOException (or URISyntaxException) that doRequest would have thrown;
+     * in Smart Mode errors are reported, as for doRequest, inside the returned RestResponse.
+     * Cancelling the future cancels the call in flight and any pending retry, unless the request is coalesced with
+     * identical ones (see {@link #setRequestCoalescing(boolean)}): then the shared call goes on for the others.
+     *
+     * @param restRequest the request to send
+     * @return a future completed with the response, on an OkHttp dispatcher (or timer) thread
+     */
+    public ListenableFuture<RestResponse> doRequestAsync(final RestRequest restRequest) {
+        return request(restRequest, CallMode.ASYNC);
+    }
 
-            case CLOSED:
+    private ListenableFuture<RestResponse> request(RestRequest restRequest, CallMode mode) {
+        final RequestCoalescer coalescer = coalescerFor(restRequest);
+        if (coalescer == null)
+            return dispatch(restRequest, mode);
+
+        final RequestCoalescer.Key key;
+        try {
+            key = new RequestCoalescer.Key(generateUrl(restRequest), restRequest.getHeaders());
+        } catch (URISyntaxException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final SettableFuture<RestResponse> flight = SettableFuture.create();
+        SettableFuture<RestResponse> leader = coalescer.join(key, flight);
+        if (leader != null)
+            return RequestCoalescer.follow(leader);
+
+        ListenableFuture<RestResponse> response;
+        try {
+            response = dispatch(restRequest, mode);
+        } catch (RuntimeException | Error e) {
+            // the callers waiting for this request get the same exception
+            coalescer.fail(key, flight, e);
+            throw e;
+        }
+        Futures.addCallback(response, new FutureCallback<RestResponse>() {
+            @Override
+            public void onSuccess(RestResponse restResponse) {
+                coalescer.complete(key, flight, restResponse);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                coalescer.fail(key, flight, t);
+            }
+        });
+        // Also the leader gets its own future, so that cancelling it does not fail the others
+        return RequestCoalescer.follow(flight);
+    }
+
+    // Whether the request was refused by this client before reaching the server: the rate limit, the concurrency
+    // limit, or a deadline that expired before the call was sent (one cut short has the failure of the call as cause)
+    private static boolean isLocalRejection(Throwable t) {
+        return t instanceof RateLimitException || t instanceof ConcurrencyLimitException ||
+               t instanceof DeadlineExceededException && t.getCause() == null;
+    }
+
+    private ListenableFuture<RestResponse> dispatch(final RestRequest restRequest, CallMode mode) {
+        final SettableFuture<RestResponse> future = SettableFuture.create();
+        final CircuitBreakerRegistry breakers = circuitBreakers;
+        final long deadline = deadlineOf(restRequest);
+        final long chosen = System.nanoTime();
+        final String endpoint = endpointOf(restRequest);
+
+        if (breakers == null) {
+            // Simple Mode is set without retries and circuit breaker
+            sender.send(restRequest, endpoint, future, deadline, replicaFor(null, chosen), chosen, mode, false,
+                        new FutureCallback<RestResponse>() {
+                @Override
+                public void onSuccess(RestResponse restResponse) {
+                    future.set(restResponse);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    future.setException(t);
+                }
+            });
+            return future;
+        }
+
+        final CircuitBreaker breaker = breakers.get(endpoint);
+        final RetryPolicy policy = retryPolicy;
+        switch (breaker.acquirePermission()) {
+            case SMART:
                 // Smart Mode is set with retries and circuit breaker
                 // No request was yet issued or the last request succeeded -> go ahead with Smart Mode
-                response = retrySend(restRequest);
+                retrier.send(restRequest, endpoint, breaker, policy, deadline, mode, future);
                 break;
 
-            case OPEN:
-                // Smart Mode is set with retries and circuit breaker
-                // Last request was not successful -> we either block this request or stay very careful
-                long elapsedTime = System.currentTimeMillis() - circuitBreakerOpenSince;
-
-                if (elapsedTime < maxCircuitBreakerOpenTime) {
-                    // we still do not allow any requests -> throw exception
-                    response = new RestResponse(new CircuitBreakerException(
-                            "Requests are not permitted for another " + elapsedTime +
-                            "ms because the last request failed"));
-
-                } else {
-                    try {
-                        // we do allow now requests, but we want to be careful -> use Simple Mode once,
-                        // if that succeeds we switch back to Smart Mode
-                        response = sendRequest(restRequest);
-
-                        // if this request succeeded we switch back to the normal Smart Mode
-                        closeCircuitBreaker();
-
-                    } catch (Exception e) {
-                        response = new RestResponse(e);
-                        break;
+            case PROBE:
+                // Last request was not successful, but the open time expired: we allow a few requests, but we want
+                // to be careful -> use Simple Mode once, if that succeeds we switch back to Smart Mode.
+                // The probe must always report back, or the circuit breaker would stay HALF_OPEN.
+                // It skips the fresh responses of the cache: only the server can tell if it recovered.
+                sender.send(restRequest, endpoint, future, deadline, replicaFor(null, chosen), chosen, mode, true,
+                            new FutureCallback<RestResponse>() {
+                    @Override
+                    public void onSuccess(RestResponse restResponse) {
+                        // a response that Smart Mode would retry (e.g. a 503) means the server has not recovered
+                        if (policy.shouldRetry(restResponse))
+                            breaker.onProbeFailure();
+                        else
+                            breaker.onProbeSuccess();
+                        future.set(restResponse);
                     }
-                }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        if (t instanceof CancellationException || isLocalRejection(t))
+                            breaker.onProbeCancelled();
+                        else
+                            breaker.onProbeFailure();
+                        future.set(new RestResponse(asException(t)));
+                    }
+                });
+                break;
 
             default:
+                // we still do not allow any requests -> return a fresh cached response, the server is not needed for
+                // it, or the exception (or the last good response)
+                future.set(freshOr(restRequest, rejectedResponse(breaker)));
                 break;
         }
-        return response;
+        return future;
+    }
+
+    /**
+     * Sends many requests, at most maxConcurrency at a time, each one as {@link #doRequestAsync(RestRequest)} does:
+     * with retries and circuit breaker, if enabled, and on the OkHttp dispatcher.
+     *
+     * @param requests       the requests to send
+     * @param maxConcurrency Max number of requests in flight at the same time (>0)
+     * @param failFast       true to stop at the first response that is not successful: the pending requests are not
+     *                       sent, the ones in flight are cancelled and the future fails with a {@link BatchException};
+     *                       false to send them all and report the errors inside their RestResponse
+     * @return a future completed with the responses, in the same order as the requests
+     * @throws IllegalArgumentException if maxConcurrency <= 0, or requests contains null
+     */
+    public ListenableFuture<List<RestResponse>> doRequests(Collection<RestRequest> requests, int maxConcurrency,
+                                                           boolean failFast) {
+        return doRequests(requests, maxConcurrency, failFast, null);
+    }
+
+    /**
+     * As {@link #doRequests(Collection, int, boolean)}, also notifying each response as soon as it arrives.
+     *
+     * @param listener notified of each response in order of completion, or null
+     */
+    public ListenableFuture<List<RestResponse>> doRequests(Collection<RestRequest> requests, int maxConcurrency,
+                                                           boolean failFast, BatchListener listener) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("The maximum concurrency has to be greater than zero");
+
+        return new RequestBatch(this, requests, maxConcurrency, failFast, listener).start();
     }
 
     public String get(String command) throws IOException, URISyntaxException {
@@ -409,6 +1343,179 @@ public class RestClient {
         return response.getData();
     }
 
+    /**
+     * GET decoding the JSON body as the given type, with the Gson of the client (see {@link #setGson(Gson)}).
+     *
+     * @throws UnsupportedOperationException if the response is not successful
+     * @throws JsonParseException            if the body is not valid JSON for the type
+     */
+    public <T> T get(String command, Map<String, String> params, Class<T> type)
+            throws URISyntaxException, IOException {
+        return get(command, params, (Type)type);
+    }
+
+    /**
+     * GET decoding the JSON body as the given type, with the Gson of the client (see {@link #setGson(Gson)}).
+     * <p>
+     * The body is decoded while it is read from the connection, without keeping it in memory as a String, unless
+     * the response has to be cached, kept for the stale fallback or shared with coalesced requests.
+     *
+     * @param type e.g. {@code new TypeToken<List<Line>>() {}.getType()}
+     * @throws UnsupportedOperationException if the response is not successful
+     * @throws JsonParseException            if the body is not valid JSON for the type
+     */
+    public <T> T get(String command, Map<String, String> params, Type type) throws URISyntaxException, IOException {
+        Gson gson = this.gson;
+        return decoded(typedRequest(command, params, gson, type).doRequest(), gson, type);
+    }
+
+    /**
+     * Non-blocking version of {@link #get(String, Map, Type)}.
+     */
+    public <T> ListenableFuture<T> getAsync(String command, Map<String, String> params, final Type type) {
+        final Gson gson = this.gson;
+        return Futures.transform(typedRequest(command, params, gson, type).doRequestAsync(),
+                                 new Function<RestResponse, T>() {
+                                     @Override
+                                     public T apply(RestResponse response) {
+                                         return decoded(response, gson, type);
+                                     }
+                                 });
+    }
+
+    public <T> JsonIterator<T> stream(String command, Map<String, String> params, Class<T> elementType)
+            throws URISyntaxException, IOException {
+        return stream(command, params, (Type)elementType);
+    }
+
+    /**
+     * GET of a JSON array (or of newline-delimited JSON) whose elements are decoded one at a time, while they are
+     * read from the connection, with the Gson of the client: the response is never held in memory as a whole.
+     * <p>
+     * The request is sent once, in Simple Mode: an element already returned cannot be taken back, so there are no
+     * retries, and neither the response cache nor the circuit breaker are involved. It takes a permit of the rate
+     * limit and a slot of the concurrency limit as any other request, and holds the slot until the iterator is
+     * closed or fully read. There is no deadline, nor a replica other than the server url.
+     *
+     * @param elementType type of the elements of the array
+     * @return the elements; close it to release the connection if not all the elements are read
+     * @throws UnsupportedOperationException if the response is not successful
+     * @throws IOException                   if the request fails, or the response does not start with valid JSON
+     */
+    public <T> JsonIterator<T> stream(String command, Map<String, String> params, Type elementType)
+            throws URISyntaxException, IOException {
+        RestRequest restRequest = new RestRequest(this, GET, command, params);
+        Response response = sender.execute(restRequest, buildRequest(restRequest));
+
+        if (response.code() / 100 != 2)
+            throw new UnsupportedOperationException(ResponseReader.read(response, null).getData());
+
+        return new JsonIterator<T>(response.body(), gson, elementType);
+    }
+
+    /**
+     * GET whose body is written, as it is received, into a file: the bytes go from the buffers of the connection
+     * to the file without being decoded or collected in memory. The file is written next to the target and moved in
+     * place only once complete, so the target is never left half written.
+     * <p>
+     * As {@link #stream(String, Map, Type)}, the request is sent once, without retries, cache or circuit breaker.
+     *
+     * @param target file to create or replace
+     * @return the number of bytes written
+     * @throws UnsupportedOperationException if the response is not successful
+     */
+    public long download(String command, Map<String, String> params, Path target)
+            throws URISyntaxException, IOException {
+        Path absolute = target.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".part");
+        try {
+            long bytes;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                bytes = download(command, params, out);
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * GET whose body is written, as it is received, into a channel (e.g. a FileChannel or a SocketChannel), see
+     * {@link #download(String, Map, OutputStream)}. The channel is not closed.
+     */
+    public long download(String command, Map<String, String> params, WritableByteChannel channel)
+            throws URISyntaxException, IOException {
+        // The stream wraps the buffers of the connection, no copy
+        return download(command, params, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * GET whose body is written, as it is received, into a stream: the bytes go from the buffers of the connection
+     * to the stream without being decoded or collected in memory. The stream is flushed, not closed.
+     * <p>
+     * As {@link #stream(String, Map, Type)}, the request is sent once, without retries, cache or circuit breaker:
+     * what was already written cannot be taken back. The slot of the concurrency limit is held until the body is
+     * copied.
+     *
+     * @return the number of bytes written
+     * @throws UnsupportedOperationException if the response is not successful
+     */
+    public long download(String command, Map<String, String> params, OutputStream out)
+            throws URISyntaxException, IOException {
+        RestRequest restRequest = new RestRequest(this, GET, command, params);
+        Response response = sender.execute(restRequest, buildRequest(restRequest));
+
+        if (response.code() / 100 != 2)
+            throw new UnsupportedOperationException(ResponseReader.read(response, null).getData());
+
+        try (ResponseBody body = response.body()) {
+            Sink sink = Okio.sink(out);
+            long bytes = body.source().readAll(sink);
+            sink.flush();
+            return bytes;
+        }
+    }
+
+    private static <T> T decoded(RestResponse response, Gson gson, Type type) {
+        // A body decoded while reading fails as it would have failed in RestResponse.as
+        if (response.getException() instanceof JsonParseException)
+            throw (JsonParseException)response.getException();
+        if (!response.isOk())
+            throw new UnsupportedOperationException(response.getData());
+        return response.as(gson, type);
+    }
+
+    private RestRequest typedRequest(String command, Map<String, String> params, Gson gson, Type type) {
+        // Coalesced requests share one response, so that has to keep the String
+        JsonDecoder decoder = requestCoalescer == null ? new JsonDecoder(gson, type) : null;
+        return new RestRequest(this, GET, command, params, null, Collections.<String, String>emptyMap(), decoder);
+    }
+
+    public ListenableFuture<String> getAsync(String command) {
+        return getAsync(command, null);
+    }
+
+    /**
+     * Non-blocking version of {@link #get(String, Hashtable)}: the future fails with an
+     * UnsupportedOperationException if the response is not successful.
+     */
+    public ListenableFuture<String> getAsync(String command, Hashtable<String, String> params) {
+        return Futures.transform(new RestRequest(this, GET, command, params).doRequestAsync(),
+                                 new Function<RestResponse, String>() {
+                                     @Override
+                                     public String apply(RestResponse response) {
+                                         if (!response.isOk())
+                                             throw new UnsupportedOperationException(response.getData());
+                                         return response.getData();
+                                     }
+                                 });
+    }
+
     public int post(String command, String content) throws URISyntaxException, IOException {
         return post(command, null, content);
     }
@@ -432,4 +1539,30 @@ public class RestClient {
             throws URISyntaxException, IOException {
         return new RestRequest(this, POST, command, params, content, headers).doRequest();
     }
-}
+
+    /**
+     * POST of a body of any media type (binary, file, stream...).
+     */
+    public RestResponse postBody(String command, Map<String, String> params, RestBody body,
+                                 Map<String, String> headers) throws URISyntaxException, IOException {
+        return RestRequest.withBody(this, POST, command, params, headers, body).doRequest();
+    }
+
+    /**
+     * PUT of a body of any media type (binary, file, stream...).
+     */
+    public RestResponse putBody(String command, Map<String, String> params, RestBody body,
+                                Map<String, String> headers) throws URISyntaxException, IOException {
+        return RestRequest.withBody(this, PUT, command, params, headers, body).doRequest();
+    }
+
+    public ListenableFuture<RestResponse> postResponseAsync(String command, String content) {
+        return postResponseAsync(command, Collections.<String, String>emptyMap(), content,
+                                 Collections.<String, String>emptyMap());
+    }
+
+    public ListenableFuture<RestResponse> postResponseAsync(String command, Map<String, String> params,
+                                                            String content, Map<String, String> headers) {
+        return new RestRequest(this, POST, command, params, content, headers).doRequestAsync();
+    }
+}
\ No newline at end of file
@@ -1,9 +1,18 @@
 package it.sad.sii.network;
 
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -16,6 +25,10 @@ public class RestRequest {
         return restClient.doRequest(this);
     }
 
+    public ListenableFuture<RestResponse> doRequestAsync() {
+        return restClient.doRequestAsync(this);
+    }
+
     public enum HTTPVerb {
         GET,
         POST,
@@ -27,29 +40,137 @@ public class RestRequest {
     private final HTTPVerb verb;
     private final String action;
     private final Map<String, String> params;
+    // all the values of each parameter, in order
+    private final ListMultimap<String, String> paramValues;
     private final String content;
+    // null for a request without body; for a String content, the content encoded once
+    private final RestBody body;
     private final Map<String, String> headers;
+    // null if the body of the response is kept as a String
+    private final JsonDecoder decoder;
+    // Set for the requests of a PreparedRestRequest: url and headers already resolved, params and headers included
+    private final HttpUrl url;
+    private final Headers preparedHeaders;
+    // Max time in ms for the request and all its retries, 0 to use the one of the client
+    private final int deadline;
+    // true if a PUT, POST or DELETE can be sent twice, see isIdempotent()
+    private final boolean idempotent;
 
     public RestRequest(RestClient restClient, HTTPVerb verb, String action, Map<String, String> params,
                        String content, Map<String, String> headers) {
+        this(restClient, verb, action, params, content, content != null ? RestBody.json(content) : null, headers,
+             null);
+    }
+
+    /**
+     * A request with a body of any media type, e.g. a file streamed from disk for a PUT.
+     *
+     * @param body the body, encoded (or opened) once and sent again as it is by each retry
+     */
+    public static RestRequest withBody(RestClient restClient, HTTPVerb verb, String action,
+                                       Map<String, String> params, Map<String, String> headers, RestBody body) {
+        return new RestRequest(restClient, verb, action, params, null, body, headers, null);
+    }
+
+    // A request whose successful response is decoded while it is read
+    RestRequest(RestClient restClient, HTTPVerb verb, String action, Map<String, String> params, RestBody body,
+                Map<String, String> headers, JsonDecoder decoder) {
+        this(restClient, verb, action, params, null, body, headers, decoder);
+    }
+
+    /**
+     * A request with parameters that can be repeated, e.g. "stop=12&stop=13".
+     *
+     * @param params all the values of each parameter, sent in order
+     */
+    public static RestRequest withRepeatedParams(RestClient restClient, HTTPVerb verb, String action,
+                                                 Multimap<String, String> params, String content,
+                                                 Map<String, String> headers) {
+        return new RestRequest(restClient, verb, action, ImmutableListMultimap.copyOf(params), content, headers);
+    }
+
+    // Not public: a public constructor like this one would make a null params argument ambiguous
+    private RestRequest(RestClient restClient, HTTPVerb verb, String action, ListMultimap<String, String> params,
+                        String content, Map<String, String> headers) {
+        this(restClient, verb, action, lastValues(params), params, content,
+             content != null ? RestBody.json(content) : null, headers, null, null, null);
+    }
+
+    // A request of a PreparedRestRequest
+    RestRequest(RestClient restClient, HTTPVerb verb, HttpUrl url, Map<String, String> headers,
+                Headers preparedHeaders, RestBody body) {
+        this(restClient, verb, url.encodedPath(), Collections.<String, String>emptyMap(), null, null, body, headers,
+             null, url, preparedHeaders);
+    }
+
+    private RestRequest(RestClient restClient, HTTPVerb verb, String action, Map<String, String> params,
+                        String content, RestBody body, Map<String, String> headers, JsonDecoder decoder) {
+        this(restClient, verb, action, params, null, content, body, headers, decoder, null, null);
+    }
+
+    private RestRequest(RestClient restClient, HTTPVerb verb, String action, Map<String, String> params,
+                        ListMultimap<String, String> paramValues, String content, RestBody body,
+                        Map<String, String> headers, JsonDecoder decoder, HttpUrl url, Headers preparedHeaders) {
         this.restClient = restClient;
         this.verb = verb;
         this.action = action;
         this.params = params;
+        this.paramValues = paramValues;
         this.content = content;
+        this.body = body;
         this.headers = headers;
+        this.decoder = decoder;
+        this.url = url;
+        this.preparedHeaders = preparedHeaders;
+        this.deadline = 0;
+        this.idempotent = false;
+    }
+
+    private RestRequest(RestRequest request, int deadline, boolean idempotent) {
+        this.restClient = request.restClient;
+        this.verb = request.verb;
+        this.action = request.action;
+        this.params = request.params;
+        this.paramValues = request.paramValues;
+        this.content = request.content;
+        this.body = request.body;
+        this.headers = request.headers;
+        this.decoder = request.decoder;
+        this.url = request.url;
+        this.preparedHeaders = request.preparedHeaders;
+        this.deadline = deadline;
+        this.idempotent = idempotent;
     }
 
     public RestRequest(RestClient restClient, HTTPVerb verb, String action, Map<String, String> params) {
         this(restClient, verb, action, params, null, Collections.<String, String>emptyMap());
     }
 
+    /**
+     * @param params a query string like "line=201&stop=12&stop=13": a repeated parameter keeps all its values
+     */
     public RestRequest(RestClient restClient, HTTPVerb verb, String action, String params, String content)
             throws UnsupportedEncodingException {
-        this(restClient, verb, action, UrlUtils.splitQuerySingle(params), content,
+        this(restClient, verb, action, toMultimap(UrlUtils.splitQuery(params)), content,
              Collections.<String, String>emptyMap());
     }
 
+    private static ListMultimap<String, String> toMultimap(Map<String, List<String>> query) {
+        ImmutableListMultimap.Builder<String, String> params = ImmutableListMultimap.builder();
+        for (Map.Entry<String, List<String>> param : query.entrySet()) {
+            for (String value : param.getValue())
+                params.put(param.getKey(), value != null ? value : "");
+        }
+        return params.build();
+    }
+
+    private static Map<String, String> lastValues(Multimap<String, String> params) {
+        Map<String, String> last = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> param : params.entries())
+            last.put(param.getKey(), param.getValue());
+        return Collections.unmodifiableMap(last);
+    }
+
     public RestRequest(RestClient restClient, HTTPVerb verb, String action) {
         this(restClient, verb, action, Collections.<String, String>emptyMap(), null,
              Collections.<String, String>emptyMap());
@@ -60,6 +181,43 @@ public class RestRequest {
              Collections.<String, String>emptyMap());
     }
 
+    /**
+     * Overrides for this request the deadline of the client, see {@link RestClient#setRequestDeadline(int)}.
+     *
+     * @param deadline Max time in ms for the request, all its attempts and the waits between them (>0)
+     * @return the same request, with the deadline
+     * @throws IllegalArgumentException if deadline <= 0
+     */
+    public RestRequest withDeadline(int deadline) {
+        if (deadline <= 0)
+            throw new IllegalArgumentException("The deadline has to be greater than zero");
+        return new RestRequest(this, deadline, idempotent);
+    }
+
+    /**
+     * @return the deadline in ms set by {@link #withDeadline(int)}, 0 if the request follows the client
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Marks a PUT, POST or DELETE as safe to send twice, so that it can be hedged like a GET, see
+     * {@link RestClient#enableHedging(int, RetryBudget)}.
+     *
+     * @return the same request, idempotent
+     */
+    public RestRequest idempotent() {
+        return new RestRequest(this, deadline, true);
+    }
+
+    /**
+     * @return true for a GET, or a request marked by {@link #idempotent()}
+     */
+    public boolean isIdempotent() {
+        return verb == HTTPVerb.GET || idempotent;
+    }
+
     public HTTPVerb getVerb() {
         return verb;
     }
@@ -68,15 +226,56 @@ public class RestRequest {
         return action;
     }
 
+    /**
+     * @return the parameters; only the last value of a repeated one, see {@link #getParamValues()}
+     */
     public Map<String, String> getParams() {
         return params;
     }
 
+    /**
+     * @return all the values of each parameter, as sent; null only if {@link #getParams()} is null
+     */
+    public ListMultimap<String, String> getParamValues() {
+        if (paramValues != null || params == null)
+            return paramValues;
+        ImmutableListMultimap.Builder<String, String> values = ImmutableListMultimap.builder();
+        for (Map.Entry<String, String> param : params.entrySet())
+            values.put(param.getKey(), param.getValue());
+        return values.build();
+    }
+
     public String getContent() {
         return content;
     }
 
+    /**
+     * @return the body, also for a request created with a String content; null if there is none
+     */
+    public RestBody getBody() {
+        return body;
+    }
+
     public Map<String, String> getHeaders() {
         return headers;
     }
+
+    // null for a request created with a Map of parameters, one value each
+    ListMultimap<String, String> getRepeatedParams() {
+        return paramValues;
+    }
+
+    JsonDecoder getDecoder() {
+        return decoder;
+    }
+
+    // null if the url has to be built from action and params
+    HttpUrl getUrl() {
+        return url;
+    }
+
+    // null if the headers have to be built from the headers map
+    Headers getPreparedHeaders() {
+        return preparedHeaders;
+    }
 }
@@ -1,6 +1,9 @@
 package it.sad.sii.network;
 
+import com.google.gson.Gson;
+
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -13,6 +16,12 @@ public class RestResponse {
     private Exception exception = null;
     private int code = 0;
     private boolean success = false;
+    private boolean stale = false;
+    // Set if the body was decoded while reading it, instead of being kept in data
+    private Object value = null;
+    private Type valueType = null;
+    // ms asked by the Retry-After of a 429 (in seconds), -1 without one
+    private long retryAfter = -1;
 
     public RestResponse(int code, String data) {
         this.data = data;
@@ -21,6 +30,20 @@ public class RestResponse {
         this.success = (code / 100 == 2) || (code == 307); //200 family or redirect
     }
 
+    // A response served from the stale fallback instead of the server
+    RestResponse(int code, String data, boolean stale) {
+        this(code, data);
+        this.stale = stale;
+    }
+
+    // A successful response whose body was decoded as valueType straight from the stream
+    static RestResponse decoded(int code, Object value, Type valueType) {
+        RestResponse response = new RestResponse(code, null);
+        response.value = value;
+        response.valueType = valueType;
+        return response;
+    }
+
     public RestResponse(Exception ex) {
         this.success = false;
         // Initialize error codes with some which will reflect permanent VS transient failure.
@@ -74,15 +97,76 @@ public class RestResponse {
                (isTransientErrorCode() || isTransientException());
     }
 
+    /**
+     * @return the body of the response (the Location header for a 307, the message for an exception); null if the
+     * body was decoded straight into an object, see {@link #as(Type)}
+     */
     public String getData() {
         return data;
     }
 
+    /**
+     * Decodes the JSON body with the default Gson, that knows Joda DateTime.
+     *
+     * @throws com.google.gson.JsonParseException if the body is not valid JSON for the given type
+     */
+    public <T> T as(Class<T> type) {
+        return as(JsonDecoder.DEFAULT_GSON, type);
+    }
+
+    /**
+     * Decodes the JSON body with the default Gson, that knows Joda DateTime.
+     *
+     * @param type e.g. {@code new TypeToken<List<Line>>() {}.getType()}
+     * @throws com.google.gson.JsonParseException if the body is not valid JSON for the given type
+     */
+    public <T> T as(Type type) {
+        return as(JsonDecoder.DEFAULT_GSON, type);
+    }
+
+    /**
+     * Decodes the JSON body with the given Gson. If the body was already decoded while reading the response (e.g.
+     * by {@link RestClient#get(String, java.util.Map, Type)}), the decoded object is returned as it is.
+     *
+     * @throws com.google.gson.JsonParseException if the body is not valid JSON for the given type
+     * @throws IllegalStateException              if the body was already decoded as a different type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T as(Gson gson, Type type) {
+        if (valueType != null) {
+            if (!valueType.equals(type))
+                throw new IllegalStateException("The body was already decoded as " + valueType);
+            return (T)value;
+        }
+        return JsonDecoder.decode(gson, data, type);
+    }
+
+    // null if the response came from the server
+    Exception getException() {
+        return exception;
+    }
+
     public int getCode() {
         return code;
     }
 
+    long getRetryAfter() {
+        return retryAfter;
+    }
+
+    void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
     public boolean isOk() {
         return success;
     }
+
+    /**
+     * @return true if the server could not be reached and this is the last good response to the same GET request,
+     * see {@link RestClient#enableStaleFallback(long, int)}
+     */
+    public boolean isStale() {
+        return stale;
+    }
 }
@@ -0,0 +1,138 @@
+package it.sad.sii.network;
+
+import com.github.rholder.retry.RetryException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Smart Mode of a {@link RestClient}: each attempt of a request goes through the {@link CallSender}, its outcome
+ * feeds the circuit breaker, and a failed attempt is retried after the wait of the {@link RetryPolicy}.
+ * <p>
+ * Waits between two consecutive attempts as defined by the retry policy (exponential with up to maxRetryTime by
+ * default) until reaching maxRetries, then it sets the circuit breaker to OPEN (no request allowed for
+ * maxCircuitBreakerOpenTime ms). With a deadline, it gives up as soon as the next backoff and attempt cannot fit
+ * before it. The wait of the policy is computed, and a token of the retry budget taken, only once an attempt fails.
+ */
+final class Retrier {
+
+    private final RestClient client;
+    private final CallSender sender;
+
+    Retrier(RestClient client, CallSender sender) {
+        this.client = client;
+        this.sender = sender;
+    }
+
+    /**
+     * Sends a smart request, completing the future with its response: errors are reported inside it.
+     *
+     * @param endpoint the endpoint of the request, see {@link RestClient#endpointOf}
+     * @param deadline absolute deadline of the request, see {@link Timers}
+     */
+    void send(RestRequest restRequest, String endpoint, CircuitBreaker breaker, RetryPolicy policy, long deadline,
+              CallMode mode, SettableFuture<RestResponse> future) {
+        policy.onRequest();
+        attempt(restRequest, endpoint, breaker, policy, future, 1, 0, deadline, null, null, mode);
+    }
+
+    // 'previous' is the replica of the previous attempt, 'lastFailure' its response, null for the first attempt
+    private void attempt(final RestRequest restRequest, final String endpoint, final CircuitBreaker breaker,
+                         final RetryPolicy policy, final SettableFuture<RestResponse> future, final int attemptNumber,
+                         final long previousWait, final long deadline, LoadBalancer.Replica previous,
+                         final RestResponse lastFailure, final CallMode mode) {
+        final long start = System.nanoTime();
+        // with several replicas, each retry goes to another one
+        final LoadBalancer.Replica replica = client.replicaFor(previous, start);
+        sender.send(restRequest, endpoint, future, deadline, replica, start, mode, false,
+                    new FutureCallback<RestResponse>() {
+            @Override
+            public void onSuccess(RestResponse restResponse) {
+                boolean failed = policy.shouldRetry(restResponse);
+                breaker.onAttempt(failed, System.nanoTime() - start);
+                if (failed)
+                    retryOrGiveUp(restRequest, endpoint, breaker, policy, future, attemptNumber, previousWait,
+                                  deadline, replica, restResponse, null, mode);
+                else
+                    future.set(restResponse);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // the rate limit refused a retry: give back the failure that asked for it
+                if (t instanceof RateLimitException && lastFailure != null) {
+                    future.set(lastFailure);
+                } else if (policy.shouldRetry(t)) {
+                    breaker.onAttempt(true, System.nanoTime() - start);
+                    retryOrGiveUp(restRequest, endpoint, breaker, policy, future, attemptNumber, previousWait,
+                                  deadline, replica, null, t, mode);
+                } else {
+                    future.set(new RestResponse(new ExecutionException(t)));
+                }
+            }
+        });
+    }
+
+    private void retryOrGiveUp(final RestRequest restRequest, final String endpoint, final CircuitBreaker breaker,
+                               final RetryPolicy policy, final SettableFuture<RestResponse> future,
+                               final int attemptNumber, long previousWait, final long deadline,
+                               final LoadBalancer.Replica replica, RestResponse response, Throwable exception,
+                               final CallMode mode) {
+        if (future.isDone())
+            return;
+
+        final long wait = retryWait(policy, attemptNumber, previousWait, response);
+        if (wait < 0) {
+            future.set(response);
+            return;
+        }
+
+        if (attemptNumber >= policy.getMaxAttempts()) {
+            breaker.onFailure();
+            future.set(client.staleOr(restRequest, new RestResponse(
+                    new RetryException(attemptNumber, new RetryPolicy.FailedAttempt(response, exception)))));
+            return;
+        }
+
+        final RestResponse failure = response != null ? response : new RestResponse(RestClient.asException(exception));
+        // Body that cannot be sent again: give back this failure as it is
+        if (!RestClient.isReplayable(restRequest)) {
+            future.set(failure);
+            return;
+        }
+        // No time left before the deadline, or retry budget exhausted: the request failed as if it ran out of
+        // retries (the last good response, if any), but this failure is given back as it is
+        if (!Timers.fits(wait, deadline) || !policy.tryRetry()) {
+            breaker.onFailure();
+            future.set(client.staleOr(restRequest, failure));
+            return;
+        }
+
+        boolean waited = mode.runAfter(wait, TimeUnit.MILLISECONDS, true, new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone())
+                    attempt(restRequest, endpoint, breaker, policy, future, attemptNumber + 1, wait, deadline,
+                            replica, failure, mode);
+            }
+        });
+        if (!waited)
+            future.set(new RestResponse(
+                    new RetryException(attemptNumber, new RetryPolicy.FailedAttempt(response, exception))));
+    }
+
+    // The wait in ms before retrying: a 429 is retried only after its Retry-After, if that is not longer than the max
+    // wait for a permit of the rate limit (the max wait between retries without one); -1 to give the 429 back
+    private long retryWait(RetryPolicy policy, int attemptNumber, long previousWait, RestResponse response) {
+        long wait = policy.computeWait(attemptNumber, previousWait);
+        if (response == null || response.getCode() != 429)
+            return wait;
+        RateLimits limits = client.getRateLimits();
+        long retryAfter = response.getRetryAfter();
+        if (retryAfter < 0 || retryAfter > (limits != null ? limits.getMaxWait() : policy.getMaxWait()))
+            return -1;
+        return Math.max(wait, retryAfter);
+    }
+}
@@ -0,0 +1,14 @@
+package it.sad.sii.network;
+
+/**
+ * How the wait between two consecutive attempts of a smart request grows, see
+ * {@link RestClient#setRetryBackoff(RetryBackoff)}.
+ */
+public enum RetryBackoff {
+    // 100ms * 2^attempt, up to maxRetryTime (same as WaitStrategies.exponentialWait(100, maxRetryTime))
+    EXPONENTIAL,
+    // a random wait between 0 and the EXPONENTIAL one, so that many clients do not retry in lockstep
+    FULL_JITTER,
+    // a random wait between 100ms and 3 times the previous wait, up to maxRetryTime
+    DECORRELATED_JITTER
+}
@@ -0,0 +1,87 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits the retries of a {@link RestClient} to a ratio of its normal traffic.
+ * <p>
+ * Every smart request deposits 'retryRatio' tokens, every retry withdraws one; the bucket holds at most 'maxBurst'
+ * tokens and starts full. When the bucket is empty, failed requests are not retried: during a partial outage the
+ * load on the server grows at most by 'retryRatio' instead of by 'retries' times.
+ * <p>
+ * Deposits and withdrawals are a compare-and-set on a fixed-point counter, with no locks.
+ */
+public final class RetryBudget {
+
+    // Tokens are kept in thousandths, so that a ratio of 0.1 deposits 100
+    private static final long ONE_TOKEN = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong tokens;
+    private final AtomicLong retriesPermitted = new AtomicLong();
+    private final AtomicLong retriesDropped = new AtomicLong();
+
+    /**
+     * @param retryRatio Max retries per request, on average (e.g. 0.2 = 20% more requests because of retries) (>0)
+     * @param maxBurst   Max retries allowed in a row, when the bucket is full (>0)
+     * @throws IllegalArgumentException if retryRatio <= 0, maxBurst <= 0
+     */
+    public RetryBudget(float retryRatio, int maxBurst) {
+        if (retryRatio <= 0)
+            throw new IllegalArgumentException("The retry ratio has to be greater than zero");
+        if (maxBurst <= 0)
+            throw new IllegalArgumentException("The maximum burst has to be greater than zero");
+
+        this.deposit = Math.max(1, Math.round(retryRatio * ONE_TOKEN));
+        this.capacity = maxBurst * ONE_TOKEN;
+        this.tokens = new AtomicLong(capacity);
+    }
+
+    // A new request: earn a fraction of a retry
+    void onRequest() {
+        while (true) {
+            long current = tokens.get();
+            if (current >= capacity)
+                return;
+            if (tokens.compareAndSet(current, Math.min(capacity, current + deposit)))
+                return;
+        }
+    }
+
+    // A failed attempt wants to be retried
+    boolean tryRetry() {
+        while (true) {
+            long current = tokens.get();
+            if (current < ONE_TOKEN) {
+                retriesDropped.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - ONE_TOKEN)) {
+                retriesPermitted.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of retries that would be permitted right now
+     */
+    public int getAvailableRetries() {
+        return (int)(tokens.get() / ONE_TOKEN);
+    }
+
+    /**
+     * @return the number of retries permitted since the creation of the budget
+     */
+    public long getRetriesPermitted() {
+        return retriesPermitted.get();
+    }
+
+    /**
+     * @return the number of retries not done since the creation of the budget, because the budget was exhausted
+     */
+    public long getRetriesDropped() {
+        return retriesDropped.get();
+    }
+}
@@ -0,0 +1,145 @@
+package it.sad.sii.network;
+
+import com.github.rholder.retry.Attempt;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how long to wait before retrying a smart request of a {@link RestClient}.
+ * <p>
+ * Built once when retries are enabled and shared by all the requests: deciding whether to retry and how long to
+ * wait allocates nothing, only giving up creates the {@link Attempt} reported inside the RetryException.
+ * If the policy has a {@link RetryBudget}, every retry must also be paid for with a token from the budget.
+ */
+final class RetryPolicy {
+
+    static final long BASE_WAIT = 100;
+
+    private final int maxAttempts;
+    private final long maxWait;
+    private final RetryBackoff backoff;
+    // null if retries are not limited
+    private final RetryBudget budget;
+
+    RetryPolicy(int maxAttempts, long maxWait, RetryBackoff backoff) {
+        this(maxAttempts, maxWait, backoff, null);
+    }
+
+    RetryPolicy(int maxAttempts, long maxWait, RetryBackoff backoff, RetryBudget budget) {
+        this.maxAttempts = maxAttempts;
+        this.maxWait = maxWait;
+        this.backoff = backoff;
+        this.budget = budget;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    long getMaxWait() {
+        return maxWait;
+    }
+
+    RetryBackoff getBackoff() {
+        return backoff;
+    }
+
+    // Called once per smart request, before the first attempt
+    void onRequest() {
+        if (budget != null)
+            budget.onRequest();
+    }
+
+    // Called before each retry: false if the budget does not allow it
+    boolean tryRetry() {
+        return budget == null || budget.tryRetry();
+    }
+
+    boolean shouldRetry(RestResponse response) {
+        return !response.isOk() && response.isTransientErrorCode();
+    }
+
+    boolean shouldRetry(Throwable t) {
+        // a retry would only take another permit
+        if (t instanceof RateLimitException)
+            return false;
+        if (t instanceof RuntimeException)
+            return true;
+        for (Class<? extends Throwable> exc : RestResponse.getTransientExceptions()) {
+            if (exc.isInstance(t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param attemptNumber number of the attempt that just failed (starting from 1)
+     * @param previousWait  wait before that attempt (0 for the first one)
+     * @return the wait in ms before the next attempt
+     */
+    long computeWait(int attemptNumber, long previousWait) {
+        switch (backoff) {
+            case FULL_JITTER:
+                long ceiling = exponentialWait(attemptNumber);
+                return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+
+            case DECORRELATED_JITTER:
+                long upper = Math.max(BASE_WAIT, previousWait * 3);
+                return Math.min(maxWait, ThreadLocalRandom.current().nextLong(BASE_WAIT, upper + 1));
+
+            default:
+                return exponentialWait(attemptNumber);
+        }
+    }
+
+    private long exponentialWait(int attemptNumber) {
+        // Shift instead of Math.pow; past 2^30 we are way over any sensible maxWait anyway
+        long wait = BASE_WAIT << Math.min(attemptNumber, 30);
+        return Math.min(wait, maxWait);
+    }
+
+    /**
+     * The last failed attempt, in the form guava-retrying expects it inside a RetryException.
+     */
+    static final class FailedAttempt implements Attempt<RestResponse> {
+        private final RestResponse result;
+        private final Throwable exception;
+
+        FailedAttempt(RestResponse result, Throwable exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+
+        @Override
+        public RestResponse get() throws ExecutionException {
+            if (exception != null)
+                throw new ExecutionException(exception);
+            return result;
+        }
+
+        @Override
+        public boolean hasResult() {
+            return exception == null;
+        }
+
+        @Override
+        public boolean hasException() {
+            return exception != null;
+        }
+
+        @Override
+        public RestResponse getResult() throws IllegalStateException {
+            if (exception != null)
+                throw new IllegalStateException("The attempt resulted in an exception, not in a result");
+            return result;
+        }
+
+        @Override
+        public Throwable getExceptionCause() throws IllegalStateException {
+            if (exception == null)
+                throw new IllegalStateException("The attempt resulted in a result, not in an exception");
+            return exception;
+        }
+    }
+}
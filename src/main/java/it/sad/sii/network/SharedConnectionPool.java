@@ -0,0 +1,172 @@
+package it.sad.sii.network;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.net.URISyntaxException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection pool, dispatcher and TLS configuration shared by many {@link RestClient}s.
+ * <p>
+ * By default every RestClient builds its own OkHttpClient, with its own connections, dispatcher threads and TLS
+ * sessions. Clients created through the same SharedConnectionPool (e.g. one client per tenant credential, all
+ * against the same host) reuse the same keep-alive connections instead, and clients with the same truststore share
+ * the same SSLSocketFactory, and so its TLS session cache.
+ */
+public final class SharedConnectionPool {
+
+    private static volatile SharedConnectionPool defaultPool;
+
+    private final OkHttpClient baseClient;
+    private final ConcurrentMap<KeyStore, TrustedSocketFactory> socketFactories =
+            new ConcurrentHashMap<KeyStore, TrustedSocketFactory>();
+
+    /**
+     * @param maxIdleConnections Max number of idle connections kept alive (>=0)
+     * @param keepAliveDuration  Time in ms an idle connection is kept alive (>0)
+     * @param maxRequests        Max number of concurrent async requests (>0)
+     * @param maxRequestsPerHost Max number of concurrent async requests to the same host (>0)
+     * @throws IllegalArgumentException if any of the parameters is out of range
+     */
+    public SharedConnectionPool(int maxIdleConnections, long keepAliveDuration, int maxRequests,
+                                int maxRequestsPerHost) {
+        if (maxIdleConnections < 0)
+            throw new IllegalArgumentException("The maximum number of idle connections cannot be negative");
+        if (keepAliveDuration <= 0)
+            throw new IllegalArgumentException("The keep-alive duration has to be greater than zero");
+
+        Dispatcher dispatcher = new Dispatcher();
+        // These two throw IllegalArgumentException if < 1
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        this.baseClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveDuration, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .build();
+    }
+
+    /**
+     * A pool with the OkHttp defaults (5 idle connections kept for 5 minutes, 64 concurrent async requests, 5 per
+     * host), for the clients that opt in: the RestClient constructors without a pool still build their own.
+     */
+    public static SharedConnectionPool getDefault() {
+        SharedConnectionPool pool = defaultPool;
+        if (pool == null) {
+            synchronized (SharedConnectionPool.class) {
+                pool = defaultPool;
+                if (pool == null) {
+                    pool = new SharedConnectionPool(5, TimeUnit.MINUTES.toMillis(5), 64, 5);
+                    defaultPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    public RestClient newClient(String serverUrl, String username, String password, int timeout)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        return new RestClient(serverUrl, username, password, timeout, null, null, 0, this);
+    }
+
+    public RestClient newClient(String serverUrl, String username, String password, int timeout,
+                                KeyStore truststore)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        return new RestClient(serverUrl, username, password, timeout, truststore, null, 0, this);
+    }
+
+    public RestClient newClient(String serverUrl, String username, String password, int timeout, String httpProxy,
+                                int proxyPort)
+            throws URISyntaxException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        return new RestClient(serverUrl, username, password, timeout, null, httpProxy, proxyPort, this);
+    }
+
+    /**
+     * @return the number of open connections, idle or in use
+     */
+    public int getConnectionCount() {
+        return baseClient.connectionPool().connectionCount();
+    }
+
+    public int getIdleConnectionCount() {
+        return baseClient.connectionPool().idleConnectionCount();
+    }
+
+    /**
+     * @return the number of async requests being executed
+     */
+    public int getRunningCallsCount() {
+        return baseClient.dispatcher().runningCallsCount();
+    }
+
+    /**
+     * @return the number of async requests waiting for maxRequests or maxRequestsPerHost
+     */
+    public int getQueuedCallsCount() {
+        return baseClient.dispatcher().queuedCallsCount();
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    public void evictAll() {
+        baseClient.connectionPool().evictAll();
+    }
+
+    // The builder of a client that shares pool and dispatcher
+    OkHttpClient.Builder newClientBuilder() {
+        return baseClient.newBuilder();
+    }
+
+    TrustedSocketFactory getSocketFactory(KeyStore truststore)
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        TrustedSocketFactory socketFactory = socketFactories.get(truststore);
+        if (socketFactory == null) {
+            // Two threads may both create it, only one gets in the map: no harm done
+            TrustedSocketFactory created = TrustedSocketFactory.create(truststore);
+            socketFactory = socketFactories.putIfAbsent(truststore, created);
+            if (socketFactory == null)
+                socketFactory = created;
+        }
+        return socketFactory;
+    }
+
+    /**
+     * An SSLSocketFactory trusting the certificates of a truststore, with its trust manager.
+     */
+    static final class TrustedSocketFactory {
+        final SSLSocketFactory socketFactory;
+        final X509TrustManager trustManager;
+
+        private TrustedSocketFactory(SSLSocketFactory socketFactory, X509TrustManager trustManager) {
+            this.socketFactory = socketFactory;
+            this.trustManager = trustManager;
+        }
+
+        static TrustedSocketFactory create(KeyStore truststore)
+                throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(truststore);
+
+            sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
+            return new TrustedSocketFactory(sslContext.getSocketFactory(),
+                                            (X509TrustManager)trustManagerFactory.getTrustManagers()[0]);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package it.sad.sii.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Circuit breaker policy that looks at the outcome of the most recent calls instead of a single request.
+ * <p>
+ * The outcomes (failed or not, slow or not) are kept in a fixed-size ring buffer, either of the last 'windowSize'
+ * calls ({@link #countBased}) or of the calls made in the last 'windowSize' seconds ({@link #timeBased}).
+ * Once the window holds at least 'minimumCalls' calls, the circuit breaker is opened as soon as the percentage of
+ * failed calls reaches 'failureRateThreshold' or the percentage of calls slower than 'slowCallDuration' ms reaches
+ * 'slowCallRateThreshold'.
+ * <p>
+ * Recording an outcome is lock-free and allocation-free; under heavy contention the counters of the time-based
+ * window are approximate (a few outcomes may be lost when a bucket is recycled).
+ * <p>
+ * The policy itself is immutable and can be shared: every circuit breaker gets its own window.
+ */
+public final class SlidingWindowPolicy {
+
+    private final boolean timeBased;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final float failureRateThreshold;
+    private final float slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+
+    private SlidingWindowPolicy(boolean timeBased, int windowSize, int minimumCalls, float failureRateThreshold,
+                                float slowCallRateThreshold, int slowCallDuration) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("The window size has to be greater than zero");
+        if (minimumCalls <= 0)
+            throw new IllegalArgumentException("The minimum number of calls has to be greater than zero");
+        if (failureRateThreshold <= 0 || failureRateThreshold > 100)
+            throw new IllegalArgumentException("The failure rate threshold has to be in (0, 100]");
+        if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 100)
+            throw new IllegalArgumentException("The slow call rate threshold has to be in (0, 100]");
+        if (slowCallDuration <= 0)
+            throw new IllegalArgumentException("The slow call duration has to be greater than zero");
+
+        this.timeBased = timeBased;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+    }
+
+    /**
+     * Policy over the outcome of the last 'windowSize' calls.
+     *
+     * @param windowSize            Number of calls in the window (>0)
+     * @param minimumCalls          Calls needed before the rates are evaluated (>0)
+     * @param failureRateThreshold  Failed calls percentage that opens the circuit breaker (0-100]
+     * @param slowCallRateThreshold Slow calls percentage that opens the circuit breaker (0-100]
+     * @param slowCallDuration      Duration in ms from which a call is considered slow (>0)
+     */
+    public static SlidingWindowPolicy countBased(int windowSize, int minimumCalls, float failureRateThreshold,
+                                                 float slowCallRateThreshold, int slowCallDuration) {
+        return new SlidingWindowPolicy(false, windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold,
+                                       slowCallDuration);
+    }
+
+    /**
+     * Policy over the outcome of the calls made in the last 'windowSize' seconds.
+     *
+     * @param windowSize            Length of the window in seconds (>0)
+     * @param minimumCalls          Calls needed before the rates are evaluated (>0)
+     * @param failureRateThreshold  Failed calls percentage that opens the circuit breaker (0-100]
+     * @param slowCallRateThreshold Slow calls percentage that opens the circuit breaker (0-100]
+     * @param slowCallDuration      Duration in ms from which a call is considered slow (>0)
+     */
+    public static SlidingWindowPolicy timeBased(int windowSize, int minimumCalls, float failureRateThreshold,
+                                                float slowCallRateThreshold, int slowCallDuration) {
+        return new SlidingWindowPolicy(true, windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold,
+                                       slowCallDuration);
+    }
+
+    Window newWindow() {
+        return timeBased ? new TimeWindow() : new CountWindow();
+    }
+
+    abstract class Window {
+        /**
+         * Records the outcome of a call.
+         *
+         * @return true if, with this outcome, the window is above one of the thresholds
+         */
+        abstract boolean record(boolean failure, long durationNanos);
+
+        abstract void reset();
+
+        boolean isAboveThreshold(long calls, long failures, long slowCalls) {
+            return calls >= minimumCalls &&
+                   (failures * 100 >= failureRateThreshold * calls || slowCalls * 100 >= slowCallRateThreshold * calls);
+        }
+    }
+
+    // Ring buffer of the last windowSize outcomes, plus running totals
+    private final class CountWindow extends Window {
+        private static final int RECORDED = 1;
+        private static final int FAILURE = 2;
+        private static final int SLOW = 4;
+
+        private final AtomicIntegerArray outcomes = new AtomicIntegerArray(windowSize);
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        @Override
+        boolean record(boolean failure, long durationNanos) {
+            int outcome = RECORDED | (failure ? FAILURE : 0) | (durationNanos >= slowCallDurationNanos ? SLOW : 0);
+            int slot = (int)(cursor.getAndIncrement() % windowSize);
+            int evicted = outcomes.getAndSet(slot, outcome);
+
+            int totalCalls = (evicted & RECORDED) == 0 ? calls.incrementAndGet() : calls.get();
+            int totalFailures = failures.addAndGet(bit(outcome, FAILURE) - bit(evicted, FAILURE));
+            int totalSlowCalls = slowCalls.addAndGet(bit(outcome, SLOW) - bit(evicted, SLOW));
+            return isAboveThreshold(totalCalls, totalFailures, totalSlowCalls);
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < windowSize; ++i) {
+                int evicted = outcomes.getAndSet(i, 0);
+                if ((evicted & RECORDED) != 0) {
+                    calls.decrementAndGet();
+                    failures.addAndGet(-bit(evicted, FAILURE));
+                    slowCalls.addAndGet(-bit(evicted, SLOW));
+                }
+            }
+        }
+
+        private int bit(int outcome, int mask) {
+            return (outcome & mask) == 0 ? 0 : 1;
+        }
+    }
+
+    // One bucket per second; each bucket packs calls, failures and slow calls (21 bits each) in a single long
+    private final class TimeWindow extends Window {
+        private static final int BITS = 21;
+        private static final long MASK = (1L << BITS) - 1;
+        private static final long ONE_CALL = 1L;
+        private static final long ONE_FAILURE = 1L << BITS;
+        private static final long ONE_SLOW_CALL = 1L << (2 * BITS);
+
+        private final AtomicLongArray epochs = new AtomicLongArray(windowSize);
+        private final AtomicLongArray counters = new AtomicLongArray(windowSize);
+
+        @Override
+        boolean record(boolean failure, long durationNanos) {
+            long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            int bucket = (int)(now % windowSize);
+
+            long epoch = epochs.get(bucket);
+            if (epoch != now && epochs.compareAndSet(bucket, epoch, now))
+                counters.set(bucket, 0);
+
+            counters.addAndGet(bucket, ONE_CALL + (failure ? ONE_FAILURE : 0) +
+                                       (durationNanos >= slowCallDurationNanos ? ONE_SLOW_CALL : 0));
+
+            long calls = 0;
+            long failures = 0;
+            long slowCalls = 0;
+            for (int i = 0; i < windowSize; ++i) {
+                if (now - epochs.get(i) < windowSize) {
+                    long packed = counters.get(i);
+                    calls += packed & MASK;
+                    failures += (packed >>> BITS) & MASK;
+                    slowCalls += (packed >>> (2 * BITS)) & MASK;
+                }
+            }
+            return isAboveThreshold(calls, failures, slowCalls);
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < windowSize; ++i) {
+                epochs.set(i, 0);
+                counters.set(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package it.sad.sii.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last successful responses to the GET requests of a {@link RestClient}, served flagged as stale when the
+ * circuit breaker rejects a request or the retries are exhausted, see {@link RestClient#enableStaleFallback}.
+ * <p>
+ * Unlike the {@link ResponseCache} it ignores the caching headers: a response is kept until it is older than
+ * 'maxAge' or pushed out by newer responses once the store exceeds 'maxSize' bytes.
+ */
+final class StaleResponseStore {
+
+    // Rough size of an entry besides its body
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final class Entry {
+        final int code;
+        final String body;
+        final long storedAt;
+        final long size;
+
+        Entry(String url, int code, String body, long storedAt) {
+            this.code = code;
+            this.body = body;
+            this.storedAt = storedAt;
+            this.size = ENTRY_OVERHEAD + 2L * (url.length() + (body != null ? body.length() : 0));
+        }
+    }
+
+    private final long maxSize;
+    private final long maxAge;
+
+    // Insertion-ordered: the first entry is the oldest one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long size = 0;
+
+    private final AtomicLong servedCount = new AtomicLong();
+
+    StaleResponseStore(long maxSize, long maxAge) {
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    long getServedCount() {
+        return servedCount.get();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized void put(String url, RestResponse response) {
+        Entry entry = new Entry(url, response.getCode(), response.getData(), System.currentTimeMillis());
+        if (entry.size > maxSize)
+            return;
+
+        // Remove first, so that the refreshed entry moves to the end
+        Entry previous = entries.remove(url);
+        if (previous != null)
+            size -= previous.size;
+        entries.put(url, entry);
+        size += entry.size;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    // null if there is no response for the url, or it is too old
+    RestResponse get(String url) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(url);
+            if (entry == null)
+                return null;
+            if (System.currentTimeMillis() - entry.storedAt > maxAge) {
+                entries.remove(url);
+                size -= entry.size;
+                return null;
+            }
+        }
+        servedCount.incrementAndGet();
+        return new RestResponse(entry.code, entry.body, true);
+    }
+}
@@ -0,0 +1,88 @@
+package it.sad.sii.network;
+
+import okhttp3.Call;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timer shared by all the {@link RestClient}s, and the arithmetic of the deadlines.
+ * <p>
+ * A single daemon thread fires the (short) backoff timers of async retries, the hedges and the waits for a permit
+ * or a slot, and cancels the calls past their deadline: the actual calls run on the OkHttp dispatcher. Deadlines are
+ * absolute values of System.nanoTime().
+ */
+final class Timers {
+
+    // The absolute deadline of a request without one
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final ScheduledThreadPoolExecutor scheduler = newScheduler();
+
+    private Timers() {
+    }
+
+    // Most timers are cancelled (e.g. the watchdog of a call that completed): they leave the queue at once, instead
+    // of keeping their call, its request and its body reachable until they would have fired
+    private static ScheduledThreadPoolExecutor newScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RestClient scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    // The timers waiting to fire, of all the clients
+    static int getScheduledTimerCount() {
+        return scheduler.getQueue().size();
+    }
+
+    static boolean expired(long deadline) {
+        return deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0;
+    }
+
+    // true if there is still time to wait 'wait' ms and make another attempt
+    static boolean fits(long wait, long deadline) {
+        return deadline == NO_DEADLINE || deadline - System.nanoTime() > TimeUnit.MILLISECONDS.toNanos(wait);
+    }
+
+    // When the watchdog of a call has to cancel it: at the deadline, or earlier at its adaptive timeout
+    static long expiry(long start, long deadline, long timeout) {
+        return timeout > 0 ? Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(timeout)) : deadline;
+    }
+
+    // How long a call may wait for a permit or a slot, in ns: the max wait in ms, cut by the deadline
+    static long maxWait(long maxWait, long deadline) {
+        long wait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        return deadline == NO_DEADLINE ? wait : Math.max(0, Math.min(wait, deadline - System.nanoTime()));
+    }
+
+    // Cancels the call at its expiry (deadline or adaptive timeout), reading of the response included; null if the
+    // call has neither
+    static ScheduledFuture<?> watchdog(final Call call, long expiry) {
+        if (expiry == NO_DEADLINE)
+            return null;
+        return scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        }, expiry - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null)
+            timer.cancel(false);
+    }
+}
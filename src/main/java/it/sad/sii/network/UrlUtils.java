@@ -1,9 +1,9 @@
 package it.sad.sii.network;
 
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -12,29 +12,106 @@ import java.util.Map;
  */
 public class UrlUtils {
 
-    //http://stackoverflow.com/a/13592567/863564
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Parses a query string in a single pass, decoding keys and values as {@link java.net.URLDecoder} does with UTF-8.
+     * A key or value is copied only if it contains escapes ("%xx" or "+").
+     *
+     * @param queryString e.g. "line=201&stop=a%20b&stop=c", without the leading "?"
+     * @return all the values of each key, in order; the value of a key without "=" is null, empty pairs are skipped
+     * @throws IllegalArgumentException if an escape is invalid
+     */
     public static Map<String, List<String>> splitQuery(String queryString) throws UnsupportedEncodingException {
-        final Map<String, List<String>> query_pairs = new LinkedHashMap<String, List<String>>();
-        final String[] pairs = queryString.split("&");
-        for (String pair : pairs) {
-            final int idx = pair.indexOf("=");
-            final String key = idx > 0 ? URLDecoder.decode(pair.substring(0, idx), "UTF-8") : pair;
-            if (!query_pairs.containsKey(key)) {
-                query_pairs.put(key, new LinkedList<String>());
+        final Map<String, List<String>> queryPairs = new LinkedHashMap<String, List<String>>();
+        int length = queryString.length();
+        for (int start = 0; start <= length; ) {
+            int end = queryString.indexOf('&', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                int idx = indexOf(queryString, '=', start, end);
+                String key = decode(queryString, start, idx < 0 ? end : idx);
+                String value = idx < 0 ? null : decode(queryString, idx + 1, end);
+                List<String> values = queryPairs.get(key);
+                if (values == null) {
+                    // most of the keys have a single value
+                    values = new ArrayList<String>(1);
+                    queryPairs.put(key, values);
+                }
+                values.add(value);
             }
-            final String value = idx > 0 && pair.length() > idx + 1 ? URLDecoder.decode(pair.substring(idx + 1), "UTF-8") : null;
-            query_pairs.get(key).add(value);
+            start = end + 1;
         }
-        return query_pairs;
+        return queryPairs;
     }
 
+    /**
+     * Like {@link #splitQuery(String)}, keeping only the last value of each key; the value of a key without "=" is
+     * the empty string.
+     */
     public static Map<String, String> splitQuerySingle(String queryString) throws UnsupportedEncodingException {
-        Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-        String[] pairs = queryString.split("&");
-        for (String pair : pairs) {
-            int idx = pair.indexOf("=");
-            query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+        Map<String, String> queryPairs = new LinkedHashMap<String, String>();
+        int length = queryString.length();
+        for (int start = 0; start <= length; ) {
+            int end = queryString.indexOf('&', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                int idx = indexOf(queryString, '=', start, end);
+                queryPairs.put(decode(queryString, start, idx < 0 ? end : idx),
+                               idx < 0 ? "" : decode(queryString, idx + 1, end));
+            }
+            start = end + 1;
+        }
+        return queryPairs;
+    }
+
+    private static int indexOf(String s, char c, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    // Decodes s[start, end), without copying it if it has no escapes
+    static String decode(String s, int start, int end) {
+        int i = start;
+        while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+')
+            ++i;
+        if (i == end)
+            return s.substring(start, end);
+
+        StringBuilder decoded = new StringBuilder(end - start);
+        decoded.append(s, start, i);
+        byte[] bytes = null;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '+') {
+                decoded.append(' ');
+                ++i;
+            } else if (c == '%') {
+                // A run of escapes is a sequence of UTF-8 bytes
+                if (bytes == null)
+                    bytes = new byte[(end - i) / 3];
+                int count = 0;
+                while (i < end && s.charAt(i) == '%') {
+                    if (i + 2 >= end)
+                        throw new IllegalArgumentException("Incomplete escape at " + i + ": " + s);
+                    int hi = Character.digit(s.charAt(i + 1), 16);
+                    int lo = Character.digit(s.charAt(i + 2), 16);
+                    if (hi < 0 || lo < 0)
+                        throw new IllegalArgumentException("Invalid escape at " + i + ": " + s);
+                    bytes[count++] = (byte)((hi << 4) | lo);
+                    i += 3;
+                }
+                decoded.append(new String(bytes, 0, count, UTF_8));
+            } else {
+                decoded.append(c);
+                ++i;
+            }
         }
-        return query_pairs;
+        return decoded.toString();
     }
 }
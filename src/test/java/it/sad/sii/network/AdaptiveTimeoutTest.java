@@ -0,0 +1,93 @@
+package it.sad.sii.network;
+
+import com.github.rholder.retry.RetryException;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdaptiveTimeoutTest extends LocalServerTest {
+
+    @Before
+    public void setUp() {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 60000);
+        client.enableAdaptiveTimeouts(3, 100, 3000);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("sleep=")) {
+            try {
+                Thread.sleep(Long.parseLong(query.substring(6)));
+            } catch (InterruptedException ignored) {}
+        }
+        respond(exchange, 200, null);
+    }
+
+    private RestRequest request(String path, int sleep) {
+        return new RestRequest(client, GET, path, Collections.singletonMap("sleep", String.valueOf(sleep)));
+    }
+
+    @Test
+    public void testTimeoutFollowsTheEndpoint() throws Exception {
+        // the ceiling until there are enough samples
+        assertEquals(3000, client.getAdaptiveTimeout(request("fast", 0)));
+        for (int i = 0; i < 40; ++i)
+            client.doRequest(request("fast", 0));
+        // local calls: 3 * p99 is below the floor
+        assertEquals(100, client.getAdaptiveTimeout(request("fast", 0)));
+
+        long start = System.nanoTime();
+        try {
+            client.doRequest(request("fast", 1000));
+            fail("The adaptive timeout should have expired");
+        } catch (SocketTimeoutException e) {
+            assertTrue(e.getMessage().contains("100 ms"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+
+        // another endpoint has its own timeout
+        assertEquals(200, client.doRequest(request("slow", 300)).getCode());
+        assertEquals(3000, client.getAdaptiveTimeout(request("slow", 0)));
+    }
+
+    @Test
+    public void testTimeoutsAreRetried() throws Exception {
+        for (int i = 0; i < 40; ++i)
+            client.doRequest(request("fast", 0));
+        client.enableRetryCircuitBreaker(2, 0, 60000);
+
+        RestResponse response = client.doRequestAsync(request("fast", 1000)).get(5, TimeUnit.SECONDS);
+        assertTrue(response.getException() instanceof RetryException);
+    }
+
+    @Test
+    public void testIdleEndpointsAreDropped() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 50);
+        for (int i = 0; i < 40; ++i)
+            client.doRequest(request("fast", 0));
+        assertTrue(client.getAdaptiveTimeout(request("fast", 0)) < 3000);
+
+        // a new endpoint drops the latencies of the idle one: it starts again from the ceiling
+        Thread.sleep(100);
+        client.doRequest(request("other", 0));
+        assertEquals(3000, client.getAdaptiveTimeout(request("fast", 0)));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        client.disableAdaptiveTimeouts();
+        assertEquals(0, client.getAdaptiveTimeout(request("fast", 0)));
+        assertEquals(200, client.doRequest(request("fast", 200)).getCode());
+    }
+}
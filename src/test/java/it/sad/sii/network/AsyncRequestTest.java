@@ -0,0 +1,132 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncRequestTest extends LocalServerTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // the requests answered with 503 before the server recovers
+    private volatile int failures = 0;
+    private final CountDownLatch received = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        int request = requests.incrementAndGet();
+        received.countDown();
+        if (exchange.getRequestURI().getPath().equals("/slow")) {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        if (request <= failures)
+            respond(exchange, 503, null);
+        else
+            respond(exchange, 200, "ok");
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        ListenableFuture<RestResponse> future = new RestRequest(client, GET, "lines").doRequestAsync();
+
+        RestResponse response = future.get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getCode());
+        assertEquals("ok", response.getData());
+        assertEquals("ok", client.getAsync("lines").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        client.enableRetryCircuitBreaker(3, 10, 60000);
+        failures = 2;
+
+        RestResponse response = new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getCode());
+        assertEquals(3, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testBreakerOpenThenProbe() throws Exception {
+        client.enableRetryCircuitBreaker(2, 0, 200);
+        failures = 2;
+
+        RestResponse exhausted = new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertFalse(exhausted.isOk());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // rejected without calling the server
+        RestResponse rejected = new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertTrue(rejected.getException() instanceof CircuitBreakerException);
+        assertEquals(2, requests.get());
+
+        // the probe succeeds and closes the breaker
+        Thread.sleep(300);
+        RestResponse probe = new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(200, probe.getCode());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testProbeWithAnErrorOpensTheBreakerAgain() throws Exception {
+        client.enableRetryCircuitBreaker(2, 0, 200);
+        failures = 3;
+
+        new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the probe gets a 503: the server has not recovered yet
+        Thread.sleep(300);
+        RestResponse probe = new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(503, probe.getCode());
+        assertEquals(3, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the next probe succeeds
+        Thread.sleep(300);
+        assertEquals(200, new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS).getCode());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testCancelCallInFlight() throws Exception {
+        ListenableFuture<RestResponse> future = new RestRequest(client, GET, "slow").doRequestAsync();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        release.countDown();
+
+        // the client is still usable
+        assertEquals(200, new RestRequest(client, GET, "lines").doRequestAsync().get(5, TimeUnit.SECONDS).getCode());
+    }
+
+    @Test
+    public void testCancelPendingRetry() throws Exception {
+        client.enableRetryCircuitBreaker(3, 500, 60000);
+        failures = 1;
+
+        ListenableFuture<RestResponse> future = new RestRequest(client, GET, "lines").doRequestAsync();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        // cancelled while waiting for the retry
+        Thread.sleep(100);
+        assertTrue(future.cancel(false));
+
+        Thread.sleep(600);
+        assertEquals(1, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+}
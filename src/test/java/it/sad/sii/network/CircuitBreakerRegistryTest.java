@@ -0,0 +1,75 @@
+package it.sad.sii.network;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CircuitBreakerRegistryTest {
+
+    private static final URI SERVER_URI = URI.create("https://example.org/api/");
+
+    private static String endpoint(String action) throws Exception {
+        RestClient client = new RestClient(SERVER_URI.toString());
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(3), 100, 60000);
+        return client.endpointOf(new RestRequest(client, RestRequest.HTTPVerb.GET, action));
+    }
+
+    @Test
+    public void testPathPrefix() {
+        assertEquals("/reports", EndpointClassifiers.pathPrefix("/reports/export/2017", 1));
+        assertEquals("/reports/export", EndpointClassifiers.pathPrefix("/reports/export/2017", 2));
+        assertEquals("/reports", EndpointClassifiers.pathPrefix("/reports", 2));
+        assertEquals("/", EndpointClassifiers.pathPrefix("", 1));
+    }
+
+    @Test
+    public void testSingleBreaker() {
+        CircuitBreakerRegistry registry = new CircuitBreakerRegistry(60000, 1, null);
+
+        assertSame(registry.get("/api/reports/export"), registry.get("/api/vehicles"));
+        assertSame(registry.get(null), registry.get("/api/vehicles"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testOneFailingEndpointDoesNotBlockTheOthers() throws Exception {
+        CircuitBreakerRegistry registry = new CircuitBreakerRegistry(60000, 1, null, 100, 60000);
+
+        CircuitBreaker export = registry.get(endpoint("reports/export?id=1"));
+        assertSame(export, registry.get(endpoint("reports/export/2017")));
+
+        CircuitBreaker vehicles = registry.get(endpoint("vehicles/12"));
+        assertNotSame(export, vehicles);
+
+        export.onFailure();
+        assertEquals(CircuitBreaker.Permission.REJECTED, export.acquirePermission());
+        assertEquals(CircuitBreaker.Permission.SMART, vehicles.acquirePermission());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, registry.getState());
+    }
+
+    @Test
+    public void testBoundedSize() {
+        CircuitBreakerRegistry registry = new CircuitBreakerRegistry(60000, 1, null, 10, 60000);
+
+        for (int i = 0; i < 100; ++i)
+            registry.get("/api/vehicles/" + i);
+
+        assertEquals(10, registry.size());
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        CircuitBreakerRegistry registry = new CircuitBreakerRegistry(60000, 1, null, 10, 1);
+
+        registry.get("/api/vehicles/1");
+        registry.get("/api/vehicles/2");
+        Thread.sleep(5);
+        registry.get("/api/vehicles/3");
+
+        assertEquals(1, registry.size());
+    }
+}
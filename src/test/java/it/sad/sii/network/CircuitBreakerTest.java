@@ -0,0 +1,87 @@
+package it.sad.sii.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testClosedLetsEverythingThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1000, 1);
+
+        for (int i = 0; i < 10; ++i)
+            assertEquals(CircuitBreaker.Permission.SMART, breaker.acquirePermission());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOpenRejectsUntilOpenTimeExpires() {
+        CircuitBreaker breaker = new CircuitBreaker(60000, 1);
+        breaker.onFailure();
+
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.Permission.REJECTED, breaker.acquirePermission());
+    }
+
+    @Test
+    public void testHalfOpenProbes() {
+        CircuitBreaker breaker = new CircuitBreaker(0, 2);
+        breaker.onFailure();
+
+        assertEquals(CircuitBreaker.Permission.PROBE, breaker.acquirePermission());
+        assertEquals(RestClient.RetryCircuitBreakerState.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.Permission.PROBE, breaker.acquirePermission());
+
+        // failing probe opens the breaker again
+        breaker.onProbeFailure();
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, breaker.getState());
+
+        // successful probe closes it
+        assertEquals(CircuitBreaker.Permission.PROBE, breaker.acquirePermission());
+        breaker.onProbeSuccess();
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, breaker.getState());
+        assertEquals(CircuitBreaker.Permission.SMART, breaker.acquirePermission());
+    }
+
+    @Test
+    public void testConcurrentThreadsGetOnlyTheConfiguredProbes() throws Exception {
+        final int threads = 32;
+        // Open time of 0: the first thread moves the breaker to HALF_OPEN without sleeping
+        final CircuitBreaker breaker = new CircuitBreaker(0, 3);
+        breaker.onFailure();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<CircuitBreaker.Permission>> results = new ArrayList<Future<CircuitBreaker.Permission>>();
+        for (int i = 0; i < threads; ++i) {
+            results.add(executor.submit(new Callable<CircuitBreaker.Permission>() {
+                @Override
+                public CircuitBreaker.Permission call() throws Exception {
+                    start.await();
+                    return breaker.acquirePermission();
+                }
+            }));
+        }
+        start.countDown();
+
+        int probes = 0;
+        for (Future<CircuitBreaker.Permission> result : results) {
+            if (result.get() == CircuitBreaker.Permission.PROBE)
+                ++probes;
+        }
+        executor.shutdown();
+
+        assertEquals(3, probes);
+        assertEquals(RestClient.RetryCircuitBreakerState.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.Permission.REJECTED, breaker.acquirePermission());
+    }
+}
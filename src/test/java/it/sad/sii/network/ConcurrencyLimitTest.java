@@ -0,0 +1,173 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimitTest extends LocalServerTest {
+
+    // latency of the server in ms, and the code it answers with
+    private final AtomicInteger latency = new AtomicInteger();
+    private final AtomicInteger code = new AtomicInteger(200);
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(latency.get());
+        } catch (InterruptedException ignored) {}
+        respond(exchange, code.get(), exchange.getRequestURI().getPath().endsWith("/stream") ? "[1, 2, 3]" : null);
+    }
+
+    private List<ListenableFuture<RestResponse>> sendAsync(int count, String action) {
+        List<ListenableFuture<RestResponse>> futures = new ArrayList<ListenableFuture<RestResponse>>();
+        for (int i = 0; i < count; ++i)
+            futures.add(client.doRequestAsync(new RestRequest(client, GET, action)));
+        return futures;
+    }
+
+    @Test
+    public void testRejectsOverTheLimit() throws Exception {
+        client.enableConcurrencyLimit(2, 2, 2, 0);
+        latency.set(300);
+
+        int rejected = 0;
+        for (ListenableFuture<RestResponse> future : sendAsync(5, "vehicles")) {
+            try {
+                assertEquals(200, future.get().getCode());
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConcurrencyLimitException);
+                assertEquals(2, ((ConcurrencyLimitException)e.getCause()).getLimit());
+                ++rejected;
+            }
+        }
+        assertEquals(3, rejected);
+        assertEquals(3, client.getConcurrencyLimitRejectedCount());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void testStreamHoldsItsSlotUntilClosed() throws Exception {
+        client.enableConcurrencyLimit(1, 1, 1, 0);
+
+        JsonIterator<Integer> elements = client.stream("stream", null, Integer.class);
+        assertEquals(1, client.getInFlightCount());
+        try {
+            client.download("vehicles", null, new ByteArrayOutputStream());
+            fail();
+        } catch (ConcurrencyLimitException expected) {
+        }
+        assertEquals(1, (int)elements.next());
+        elements.close();
+        assertEquals(0, client.getInFlightCount());
+
+        // a download gives its slot back once copied
+        client.download("vehicles", null, new ByteArrayOutputStream());
+        assertEquals(0, client.getInFlightCount());
+        assertEquals(1, client.getConcurrencyLimitRejectedCount());
+    }
+
+    @Test
+    public void testWaitsForASlot() throws Exception {
+        client.enableConcurrencyLimit(2, 2, 2, 1500);
+        latency.set(200);
+
+        long start = System.nanoTime();
+        for (ListenableFuture<RestResponse> future : sendAsync(4, "vehicles"))
+            assertEquals(200, future.get().getCode());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 390);
+
+        // also blocking callers wait, and give up after the max wait
+        client.enableConcurrencyLimit(1, 1, 1, 100);
+        ListenableFuture<RestResponse> busy = client.doRequestAsync(new RestRequest(client, GET, "vehicles"));
+        try {
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+            fail();
+        } catch (ConcurrencyLimitException e) {
+            assertEquals(1, client.getConcurrencyLimitRejectedCount());
+        }
+        assertEquals(200, busy.get().getCode());
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsFlat() throws Exception {
+        client.enableConcurrencyLimit(2, 1, 20, 1000);
+        latency.set(50);
+
+        for (int i = 0; i < 5; ++i) {
+            for (ListenableFuture<RestResponse> future : sendAsync(4, "vehicles"))
+                assertEquals(200, future.get().getCode());
+        }
+        assertTrue(client.getConcurrencyLimit() > 2);
+        assertEquals(0, client.getConcurrencyLimitRejectedCount());
+    }
+
+    @Test
+    public void testLimitShrinksWhenLatencyRises() throws Exception {
+        client.enableConcurrencyLimit(20, 1, 20, 0);
+        latency.set(10);
+        for (int i = 0; i < 3; ++i)
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+        int limit = client.getConcurrencyLimit();
+
+        // about 18 calls queueing: down by one at each call
+        latency.set(100);
+        for (int i = 0; i < 5; ++i)
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertEquals(limit - 5, client.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testPerEndpointBackOffOnOverload() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 60000);
+        client.enableConcurrencyLimit(20, 1, 20, 0);
+        code.set(503);
+
+        RestRequest vehicles = new RestRequest(client, GET, "vehicles");
+        for (int i = 0; i < 10; ++i)
+            assertEquals(503, client.doRequest(vehicles).getCode());
+        // 20 * 0.9^10
+        assertEquals(6, client.getConcurrencyLimit(vehicles));
+        assertEquals(20, client.getConcurrencyLimit(new RestRequest(client, GET, "stops")));
+        assertEquals(26, client.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testIdleEndpointsAreDropped() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 50);
+        client.enableConcurrencyLimit(20, 1, 20, 0);
+        code.set(503);
+
+        RestRequest vehicles = new RestRequest(client, GET, "vehicles");
+        for (int i = 0; i < 10; ++i)
+            assertEquals(503, client.doRequest(vehicles).getCode());
+        assertEquals(6, client.getConcurrencyLimit(vehicles));
+
+        // a call in flight keeps the limiter of its endpoint
+        code.set(200);
+        latency.set(300);
+        ListenableFuture<RestResponse> slow = client.doRequestAsync(vehicles);
+        Thread.sleep(100);
+        assertEquals(20, client.getConcurrencyLimit(new RestRequest(client, GET, "stops")));
+        assertEquals(6, client.getConcurrencyLimit(vehicles));
+
+        // once idle, a new endpoint drops it: the limit starts again from the initial one
+        assertEquals(200, slow.get().getCode());
+        Thread.sleep(100);
+        assertEquals(20, client.getConcurrencyLimit(new RestRequest(client, GET, "lines")));
+        assertEquals(20, client.getConcurrencyLimit(vehicles));
+    }
+}
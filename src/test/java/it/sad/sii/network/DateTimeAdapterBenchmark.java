@@ -0,0 +1,63 @@
+package it.sad.sii.network;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.joda.time.DateTime;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Decodes a list of timestamps with {@link DateTimeDeserializer} and with {@link DateTimeTypeAdapter}.
+ * <p>
+ * Not a unit test: run its main method by hand, with the test classpath.
+ */
+public class DateTimeAdapterBenchmark {
+
+    private static final int VALUES = 200000;
+    private static final int ROUNDS = 10;
+
+    static final class Sample {
+        int id;
+        DateTime time;
+    }
+
+    public static void main(String[] args) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < VALUES; ++i) {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"id\":").append(i).append(",\"time\":\"2017-03-")
+                .append(String.format("%02d %02d:%02d:%02d", 1 + i % 28, i % 24, i % 60, (i * 7) % 60))
+                .append("\"}");
+        }
+        json.append(']');
+        String payload = json.toString();
+        Type type = new TypeToken<List<Sample>>() {}.getType();
+
+        Gson deserializer = new GsonBuilder().registerTypeAdapter(DateTime.class, new DateTimeDeserializer()).create();
+        Gson adapter = new GsonBuilder().registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter()).create();
+
+        // warm-up
+        run("DateTimeDeserializer", deserializer, payload, type, 3, false);
+        run("DateTimeTypeAdapter", adapter, payload, type, 3, false);
+
+        run("DateTimeDeserializer", deserializer, payload, type, ROUNDS, true);
+        run("DateTimeTypeAdapter", adapter, payload, type, ROUNDS, true);
+    }
+
+    private static void run(String name, Gson gson, String payload, Type type, int rounds, boolean print) {
+        long best = Long.MAX_VALUE;
+        int checksum = 0;
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            List<Sample> samples = gson.fromJson(payload, type);
+            best = Math.min(best, System.nanoTime() - start);
+            checksum += samples.get(i).time.getSecondOfMinute();
+        }
+        if (print)
+            System.out.printf("%-22s %8.1f ms for %d timestamps (best of %d, checksum %d)%n", name, best / 1e6,
+                              VALUES, rounds, checksum);
+    }
+}
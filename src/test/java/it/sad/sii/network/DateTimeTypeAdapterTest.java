@@ -0,0 +1,59 @@
+package it.sad.sii.network;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DateTimeTypeAdapterTest {
+
+    private static final Gson ADAPTER = new GsonBuilder()
+            .registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter()).create();
+    private static final Gson DESERIALIZER = new GsonBuilder()
+            .registerTypeAdapter(DateTime.class, new DateTimeDeserializer()).create();
+
+    static final class Event {
+        String name;
+        DateTime time;
+    }
+
+    @Test
+    public void testSameResultAsDateTimeDeserializer() {
+        String[] values = { "2017-03-01 12:30:00", "1999-12-31 23:59:59", "2000-02-29 00:00:00",
+                            "0001-01-01 00:00:00", "2017-3-1 8:05:00" };
+        for (String value : values) {
+            String json = "{\"name\":\"a\",\"time\":\"" + value + "\"}";
+            assertEquals(value, DESERIALIZER.fromJson(json, Event.class).time, ADAPTER.fromJson(json, Event.class).time);
+        }
+    }
+
+    @Test
+    public void testEmptyAndNull() {
+        assertNull(ADAPTER.fromJson("{\"time\":\"\"}", Event.class).time);
+        assertNull(ADAPTER.fromJson("{\"time\":null}", Event.class).time);
+    }
+
+    @Test
+    public void testWrite() {
+        Event event = new Event();
+        event.time = new DateTime(2017, 3, 1, 8, 5, 9);
+        assertEquals(DESERIALIZER.toJson(event), ADAPTER.toJson(event));
+
+        // round trip
+        assertEquals(event.time, ADAPTER.fromJson(ADAPTER.toJson(event), Event.class).time);
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testInvalidField() {
+        ADAPTER.fromJson("{\"time\":\"2017-13-01 00:00:00\"}", Event.class);
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testInvalidText() {
+        ADAPTER.fromJson("{\"time\":\"yesterday\"}", Event.class);
+    }
+}
@@ -0,0 +1,119 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeadlineTest extends LocalServerTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (exchange.getRequestURI().getPath().equals("/slow")) {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException ignored) {}
+        }
+        respond(exchange, exchange.getRequestURI().getPath().equals("/down") ? 503 : 200, null);
+    }
+
+    @Test
+    public void testSimpleModeCallIsCancelled() throws Exception {
+        client.setRequestDeadline(300);
+        long start = System.nanoTime();
+        try {
+            client.doRequest(new RestRequest(client, GET, "slow"));
+            fail("The deadline should have expired");
+        } catch (DeadlineExceededException e) {
+            assertEquals(300, e.getDeadline());
+        }
+        assertTrue(elapsed(start) < 1500);
+    }
+
+    @Test
+    public void testBackoffPastTheDeadlineIsSkipped() throws Exception {
+        // waits of 200 ms, then 400 ms, ...: only the first one fits in 500 ms
+        client.enableRetryCircuitBreaker(5, 1000, 60000);
+        client.setRequestDeadline(500);
+
+        long start = System.nanoTime();
+        RestResponse response = client.doRequest(new RestRequest(client, GET, "down"));
+        assertEquals(503, response.getCode());
+        assertEquals(2, requests.get());
+        assertTrue(elapsed(start) < 500);
+        // giving up for the deadline counts as a failure for the circuit breaker
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testAsyncBackoffPastTheDeadlineIsSkipped() throws Exception {
+        client.enableRetryCircuitBreaker(5, 1000, 60000);
+        client.setRequestDeadline(500);
+
+        RestResponse response = client.doRequestAsync(new RestRequest(client, GET, "down")).get(5, TimeUnit.SECONDS);
+        assertEquals(503, response.getCode());
+        assertEquals(2, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testRequestDeadlineSpansTheAttempts() throws Exception {
+        client.enableRetryCircuitBreaker(5, 0, 60000);
+
+        long start = System.nanoTime();
+        RestResponse response = client.doRequest(new RestRequest(client, GET, "slow").withDeadline(300));
+        assertTrue(response.getException() instanceof DeadlineExceededException);
+        assertEquals(1, requests.get());
+        assertTrue(elapsed(start) < 1500);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        client.enableRetryCircuitBreaker(5, 0, 60000);
+        client.setRequestDeadline(300);
+
+        long start = System.nanoTime();
+        RestResponse response = client.doRequestAsync(new RestRequest(client, GET, "slow")).get(5, TimeUnit.SECONDS);
+        assertTrue(response.getException() instanceof DeadlineExceededException);
+        assertTrue(elapsed(start) < 1500);
+
+        client.disableRetryCircuitBreaker();
+        try {
+            client.doRequestAsync(new RestRequest(client, GET, "slow")).get(5, TimeUnit.SECONDS);
+            fail("The deadline should have expired");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+    }
+
+    @Test
+    public void testNoDeadline() throws Exception {
+        client.enableRetryCircuitBreaker(2, 0, 60000);
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "fast")).getCode());
+        assertEquals(0, client.getRequestDeadline());
+    }
+
+    @Test
+    public void testCompletedCallsLeaveNoWatchdog() throws Exception {
+        client.setRequestDeadline(30000);
+        int timers = RestClient.getScheduledTimerCount();
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(200, client.doRequest(new RestRequest(client, GET, "fast")).getCode());
+            assertEquals(200, client.doRequestAsync(new RestRequest(client, GET, "fast")).get().getCode());
+        }
+        // the watchdogs were cancelled, and are not kept until their deadline
+        assertTrue(RestClient.getScheduledTimerCount() <= timers + 5);
+    }
+
+}
@@ -0,0 +1,83 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class DownloadTest extends LocalServerTest {
+
+    private static final byte[] DUMP = new byte[3 * 1024 * 1024 + 17];
+
+    static {
+        new Random(42).nextBytes(DUMP);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getPath().startsWith("/missing")) {
+            respond(exchange, 404, "no such export");
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, DUMP.length);
+        exchange.getResponseBody().write(DUMP);
+        exchange.close();
+    }
+
+    @Test
+    public void testDownloadToPath() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("dump.bin");
+        Files.write(target, new byte[] { 1, 2, 3 });
+
+        assertEquals(DUMP.length, client.download("dump", null, target));
+        assertArrayEquals(DUMP, Files.readAllBytes(target));
+        // no leftovers
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testDownloadToChannel() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("dump.bin");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertEquals(DUMP.length, client.download("dump", null, channel));
+        }
+        assertArrayEquals(DUMP, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownloadToStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(DUMP.length, client.download("dump", null, out));
+        assertArrayEquals(DUMP, out.toByteArray());
+    }
+
+    @Test
+    public void testNotSuccessful() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("dump.bin");
+        try {
+            client.download("missing", null, target);
+            fail("The download should have failed");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("no such export", e.getMessage());
+        }
+        assertFalse(Files.exists(target));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
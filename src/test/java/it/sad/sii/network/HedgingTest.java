@@ -0,0 +1,150 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static it.sad.sii.network.RestRequest.HTTPVerb.PUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingTest extends LocalServerTest {
+
+    private static final Map<String, String> NONE = Collections.emptyMap();
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // the first 'stalls' requests take 1 s
+    private final AtomicInteger stalls = new AtomicInteger();
+    // calls being served, and the most at the same time
+    private final AtomicInteger serving = new AtomicInteger();
+    private final AtomicInteger maxServing = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int current = serving.incrementAndGet();
+        while (maxServing.get() < current)
+            maxServing.set(current);
+        if (stalls.getAndDecrement() > 0) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ignored) {}
+        }
+        serving.decrementAndGet();
+        respond(exchange, 200, "{}");
+    }
+
+    @Test
+    public void testSlowCallIsHedged() throws Exception {
+        client.enableHedging(100, new RetryBudget(0.1f, 10));
+        stalls.set(1);
+
+        long start = System.nanoTime();
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertTrue(elapsed(start) < 700);
+        assertEquals(2, requests.get());
+        assertEquals(1, client.getHedgeCount());
+        assertEquals(1, client.getHedgeWinCount());
+
+        // fast calls are not hedged
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertEquals(3, requests.get());
+        assertEquals(1, client.getHedgeCount());
+    }
+
+    @Test
+    public void testBlockingCallersAreNotBoundByTheDispatcher() throws Exception {
+        client.enableHedging(100, new RetryBudget(0.5f, 20));
+        // more than the 5 calls per host of the dispatcher
+        final int callers = 12;
+        stalls.set(callers);
+
+        ExecutorService threads = Executors.newFixedThreadPool(callers);
+        List<Future<RestResponse>> responses = new ArrayList<Future<RestResponse>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < callers; ++i) {
+            responses.add(threads.submit(new Callable<RestResponse>() {
+                @Override
+                public RestResponse call() throws Exception {
+                    return client.doRequest(new RestRequest(client, GET, "vehicles"));
+                }
+            }));
+        }
+        for (Future<RestResponse> response : responses)
+            assertEquals(200, response.get().getCode());
+        threads.shutdown();
+
+        // the first calls all ran at the same time, not 5 at a time
+        assertTrue(maxServing.get() >= callers);
+        assertTrue(elapsed(start) < 1700);
+    }
+
+    @Test
+    public void testAsyncWithRetries() throws Exception {
+        client.enableRetryCircuitBreaker(2, 0, 60000);
+        client.enableHedging(100, new RetryBudget(0.1f, 10));
+        stalls.set(1);
+
+        long start = System.nanoTime();
+        RestResponse response =
+                client.doRequestAsync(new RestRequest(client, GET, "vehicles")).get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.getCode());
+        assertTrue(elapsed(start) < 700);
+        assertEquals(1, client.getHedgeWinCount());
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        client.enableHedging(100, new RetryBudget(0.001f, 1));
+        stalls.set(1);
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertEquals(1, client.getHedgeCount());
+
+        // the budget is empty: the slow call is left alone
+        stalls.set(1);
+        long start = System.nanoTime();
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertTrue(elapsed(start) >= 900);
+        assertEquals(1, client.getHedgeCount());
+    }
+
+    @Test
+    public void testOnlyIdempotentRequests() throws Exception {
+        client.enableHedging(100, new RetryBudget(0.1f, 10));
+        stalls.set(1);
+        client.doRequest(RestRequest.withBody(client, PUT, "vehicles/1", NONE, NONE, RestBody.json("{}")));
+        assertEquals(1, requests.get());
+        assertEquals(0, client.getHedgeCount());
+
+        stalls.set(1);
+        client.doRequest(
+                RestRequest.withBody(client, PUT, "vehicles/1", NONE, NONE, RestBody.json("{}")).idempotent());
+        assertEquals(1, client.getHedgeCount());
+    }
+
+    @Test
+    public void testPercentileDelay() throws Exception {
+        client.enableHedging(0.95, 50, 5000, new RetryBudget(0.5f, 10));
+        for (int i = 0; i < 40; ++i)
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+
+        // local calls: the p95 is below the minimum delay
+        stalls.set(1);
+        long start = System.nanoTime();
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertTrue(elapsed(start) < 700);
+        assertEquals(1, client.getHedgeWinCount());
+    }
+}
@@ -0,0 +1,110 @@
+package it.sad.sii.network;
+
+import com.google.gson.JsonSyntaxException;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class JsonIteratorTest extends LocalServerTest {
+
+    private static final int ELEMENTS = 100000;
+
+    static final class Stop {
+        int id;
+        String name;
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/missing")) {
+            respond(exchange, 404, null);
+            return;
+        }
+
+        boolean ndjson = path.startsWith("/ndjson");
+        exchange.getResponseHeaders().add("Content-Type", ndjson ? "application/x-ndjson" : "application/json");
+        // chunked: the client gets the first elements before the server wrote the last ones
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            if (!ndjson)
+                out.write('[');
+            for (int i = 0; i < ELEMENTS; ++i) {
+                if (i > 0 && !ndjson)
+                    out.write(',');
+                String element = path.startsWith("/broken") && i == 10 ? "{\"id\":" :
+                                 "{\"id\":" + i + ",\"name\":\"Stop " + i + "\"}";
+                out.write(element.getBytes("UTF-8"));
+                if (ndjson)
+                    out.write('\n');
+            }
+            if (!ndjson)
+                out.write(']');
+        } catch (IOException ignored) {
+            // the client closed the iterator early
+        }
+        exchange.close();
+    }
+
+    @Test
+    public void testArray() throws Exception {
+        int count = 0;
+        try (JsonIterator<Stop> stops = client.stream("stops", null, Stop.class)) {
+            while (stops.hasNext()) {
+                Stop stop = stops.next();
+                assertEquals(count, stop.id);
+                ++count;
+            }
+        }
+        assertEquals(ELEMENTS, count);
+    }
+
+    @Test
+    public void testNdjson() throws Exception {
+        int count = 0;
+        try (JsonIterator<Stop> stops = client.stream("ndjson", null, Stop.class)) {
+            while (stops.hasNext()) {
+                assertEquals("Stop " + count, stops.next().name);
+                ++count;
+            }
+        }
+        assertEquals(ELEMENTS, count);
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        JsonIterator<Stop> stops = client.stream("stops", null, Stop.class);
+        assertEquals(0, stops.next().id);
+        assertEquals(1, stops.next().id);
+        stops.close();
+        assertFalse(stops.hasNext());
+
+        // the client is still usable
+        try (JsonIterator<Stop> again = client.stream("stops", null, Stop.class)) {
+            assertEquals(0, again.next().id);
+        }
+    }
+
+    @Test
+    public void testBrokenElement() throws Exception {
+        JsonIterator<Stop> stops = client.stream("broken", null, Stop.class);
+        try {
+            for (int i = 0; i < 20; ++i)
+                stops.next();
+            fail("The 11th element is broken");
+        } catch (JsonSyntaxException expected) {}
+        assertFalse(stops.hasNext());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNotSuccessful() throws Exception {
+        client.stream("missing", null, Stop.class);
+    }
+}
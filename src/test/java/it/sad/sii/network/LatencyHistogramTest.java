@@ -0,0 +1,45 @@
+package it.sad.sii.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long micros = 0; micros < 1000000; micros += 7) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros < LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || micros >= LatencyHistogram.upperBound(bucket - 1));
+            // a bucket is at most 1/8 of its values wide
+            assertTrue(LatencyHistogram.upperBound(bucket) <= Math.max(micros + 1, micros * 9 / 8 + 1));
+        }
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), LatencyHistogram.bucket(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram(0.99, 100000);
+        assertEquals(-1, histogram.getPercentile());
+        // 1 to 1000 ms
+        for (int i = 1; i <= 1000; ++i)
+            histogram.recordMicros(i * 1000L);
+        // refreshed at the 992nd sample
+        long p99 = histogram.getPercentile();
+        assertTrue(p99 >= 983000 && p99 <= 990000 * 9 / 8);
+    }
+
+    @Test
+    public void testDecay() {
+        LatencyHistogram histogram = new LatencyHistogram(0.5, 1000);
+        for (int i = 0; i < 999; ++i)
+            histogram.recordMicros(100000);
+        // halved at the 1000th sample: after enough new ones, the median follows them
+        for (int i = 0; i < 2000; ++i)
+            histogram.recordMicros(1000);
+        assertTrue(histogram.getCount() < 1000);
+        assertTrue(histogram.getPercentile() <= 1125);
+    }
+}
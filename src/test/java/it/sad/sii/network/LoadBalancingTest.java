@@ -0,0 +1,209 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.Request;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LoadBalancingTest extends LocalServerTest {
+
+    private static final int REPLICAS = 3;
+
+    private final List<String> urls = new ArrayList<String>();
+    private final AtomicInteger[] requests = new AtomicInteger[REPLICAS];
+    private final AtomicBoolean[] down = new AtomicBoolean[REPLICAS];
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < REPLICAS; ++i) {
+            final AtomicInteger count = requests[i] = new AtomicInteger();
+            final AtomicBoolean failing = down[i] = new AtomicBoolean();
+            HttpServer replica = startServer(new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    count.incrementAndGet();
+                    respond(exchange, failing.get() ? 503 : 200, null);
+                }
+            });
+            urls.add(urlOf(replica) + "api/");
+        }
+    }
+
+    private static void send(RestClient client, int count) throws Exception {
+        for (int i = 0; i < count; ++i)
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+    }
+
+    @Test
+    public void testRequestsAreSpread() throws Exception {
+        client = new RestClient(urls);
+        send(client, 90);
+        for (AtomicInteger count : requests)
+            assertTrue(count.get() > 10);
+    }
+
+    @Test
+    public void testRetriesGoToAnotherReplica() throws Exception {
+        client = new RestClient(urls.subList(0, 2));
+        client.enableRetryCircuitBreaker(2, 0, 60000);
+        client.setReplicaEjection(1000, 60000);
+        down[0].set(true);
+
+        for (int i = 0; i < 20; ++i)
+            assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        // async too
+        for (int i = 0; i < 20; ++i)
+            assertEquals(200, client.doRequestAsync(new RestRequest(client, GET, "vehicles")).get().getCode());
+        assertTrue(requests[0].get() > 0);
+    }
+
+    @Test
+    public void testEjectionAndProbe() throws Exception {
+        client = new RestClient(urls);
+        // long enough for the requests below to run before the ejection is over, even on a slow machine
+        client.setReplicaEjection(2, 1000);
+        down[1].set(true);
+
+        send(client, 60);
+        assertEquals(Collections.singletonList(urls.get(1)), client.getEjectedReplicas());
+        int failed = requests[1].get();
+        send(client, 30);
+        assertEquals(failed, requests[1].get());
+
+        // back up: after the ejection time a probe brings it back
+        down[1].set(false);
+        Thread.sleep(1100);
+        send(client, 60);
+        assertTrue(client.getEjectedReplicas().isEmpty());
+        assertTrue(requests[1].get() > failed + 1);
+    }
+
+    @Test
+    public void testOnlyTheProbeClearsTheProbe() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(urls.subList(0, 2));
+        balancer.setEjection(1, 200);
+        long chosen = System.nanoTime();
+        LoadBalancer.Replica ejected = balancer.choose(null, chosen);
+        LoadBalancer.Replica other = balancer.choose(ejected, chosen);
+        balancer.onStart(ejected);
+        balancer.onComplete(ejected, chosen, true, false, 0);
+        assertEquals(Collections.singletonList(ejected.getUrl()), balancer.getEjected());
+
+        // after the ejection time a probe goes to the ejected replica, then a call that avoids the other one
+        Thread.sleep(250);
+        long probe = System.nanoTime();
+        assertSame(ejected, balancer.choose(null, probe));
+        long cancelled = System.nanoTime();
+        assertSame(ejected, balancer.choose(other, cancelled));
+
+        // cancelling the second call leaves the probe in flight: the next calls do not probe again
+        balancer.onStart(ejected);
+        balancer.onComplete(ejected, cancelled, true, true, 0);
+        assertSame(other, balancer.choose(null, System.nanoTime()));
+
+        // the end of the probe does
+        balancer.onStart(ejected);
+        balancer.onComplete(ejected, probe, true, true, 0);
+        assertSame(ejected, balancer.choose(null, System.nanoTime()));
+    }
+
+    @Test
+    public void testCallsInFlightEjectOnce() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(urls.subList(0, 2));
+        balancer.setEjection(1, 200);
+        LoadBalancer.Replica ejected = balancer.choose(null, System.nanoTime());
+
+        // five calls in flight on the same replica, all failing: the first one ejects it, the others do not count
+        long[] calls = new long[5];
+        for (int i = 0; i < calls.length; ++i) {
+            calls[i] = System.nanoTime();
+            balancer.onStart(ejected);
+        }
+        for (long call : calls)
+            balancer.onComplete(ejected, call, true, false, 0);
+        assertEquals(Collections.singletonList(ejected.getUrl()), balancer.getEjected());
+
+        // a single ejection period: the probe comes after 200 ms, not after 200 << 4
+        Thread.sleep(250);
+        long probe = System.nanoTime();
+        assertSame(ejected, balancer.choose(null, probe));
+
+        // the failure of the probe does escalate: 400 ms now
+        balancer.onStart(ejected);
+        balancer.onComplete(ejected, probe, true, false, 0);
+        Thread.sleep(250);
+        assertTrue(balancer.choose(null, System.nanoTime()) != ejected);
+    }
+
+    @Test
+    public void testProbeAnsweredWithoutACallIsGivenBack() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(urls.subList(0, 2));
+        balancer.setEjection(1, 200);
+        long chosen = System.nanoTime();
+        LoadBalancer.Replica ejected = balancer.choose(null, chosen);
+        balancer.onStart(ejected);
+        balancer.onComplete(ejected, chosen, true, false, 0);
+
+        // e.g. the probe is answered by the response cache: the next call probes
+        Thread.sleep(250);
+        long probe = System.nanoTime();
+        assertSame(ejected, balancer.choose(null, probe));
+        balancer.onSkipped(ejected, probe);
+        assertSame(ejected, balancer.choose(null, System.nanoTime()));
+    }
+
+    @Test
+    public void testRewriteKeepsTheBasePathOfTheReplica() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(Arrays.asList("https://API.example.org:443/v1/",
+                                                               "https://replica.example.org:8443/mirror/v1/"));
+        LoadBalancer.Replica replica = balancer.choose(null, System.nanoTime());
+        if (!replica.getUrl().contains("mirror"))
+            replica = balancer.choose(replica, System.nanoTime());
+
+        Request request = new Request.Builder().url("https://api.example.org/v1/vehicles?id=1").build();
+        assertEquals("https://replica.example.org:8443/mirror/v1/vehicles?id=1",
+                     balancer.rewrite(request, replica).url().toString());
+    }
+
+    @Test
+    public void testPrimaryWithUpperCaseHost() throws Exception {
+        final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer mirror = startServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                paths.add(exchange.getRequestURI().getPath());
+                respond(exchange, 200, null);
+            }
+        });
+        String primary = urls.get(0).replace("localhost", "LOCALHOST");
+        client = new RestClient(Arrays.asList(primary, urlOf(mirror) + "mirror/api/"));
+        send(client, 30);
+
+        assertTrue(paths.size() > 0);
+        for (String path : paths)
+            assertEquals("/mirror/api/vehicles", path);
+    }
+
+    @Test
+    public void testSingleUrlIsNotBalanced() throws Exception {
+        client = new RestClient(Arrays.asList(urls.get(2)));
+        send(client, 5);
+        assertEquals(5, requests[2].get());
+        assertTrue(client.getEjectedReplicas().isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class of the tests against a local server: before each test an HttpServer is started on a free port of
+ * localhost, answering all the requests with {@link #handle}, and {@link #client} points to it. The servers are
+ * stopped after the test.
+ * <p>
+ * Requests are served by a pool of threads, so that a handler can sleep while the others are answered.
+ */
+public abstract class LocalServerTest {
+
+    protected HttpServer server;
+    // with the trailing slash
+    protected String serverUrl;
+    protected RestClient client;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+
+    @Before
+    public void startServer() throws Exception {
+        server = startServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalServerTest.this.handle(exchange);
+            }
+        });
+        serverUrl = urlOf(server);
+        client = new RestClient(serverUrl);
+    }
+
+    @After
+    public void stopServers() {
+        for (HttpServer started : servers)
+            started.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Answers a request to the server; 404 unless overridden
+    protected void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 404, null);
+    }
+
+    // One more server with its own handler, e.g. a replica, stopped as well after the test
+    protected HttpServer startServer(HttpHandler handler) throws IOException {
+        HttpServer started = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        started.setExecutor(executor);
+        started.createContext("/", handler);
+        started.start();
+        servers.add(started);
+        return started;
+    }
+
+    protected static String urlOf(HttpServer server) {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    // Sends the response and closes the exchange; a null body for none
+    protected static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(code, -1);
+        } else {
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+    protected static long elapsed(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,79 @@
+package it.sad.sii.network;
+
+import it.sad.sii.network.RestRequest.HTTPVerb;
+import okhttp3.Request;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Builds the OkHttp request of a polling endpoint from a {@link RestRequest} and from a {@link PreparedRestRequest},
+ * measuring the time and the bytes allocated per request.
+ * <p>
+ * Not a unit test: run its main method by hand, with the test classpath (the allocations are measured on HotSpot).
+ */
+public class PreparedRequestBenchmark {
+
+    private static final int REQUESTS = 500000;
+    private static final int ROUNDS = 5;
+
+    private interface Builder {
+        Request build(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final RestClient client = new RestClient("https://sii.example.org/api/v1/", "sii", "secret", 10);
+        final Map<String, String> params = Collections.singletonMap("fields", "position");
+        final PreparedRestRequest prepared = new PreparedRestRequest(client, HTTPVerb.GET, "vehicles/{id}/position");
+
+        Builder plain = new Builder() {
+            @Override
+            public Request build(int i) throws Exception {
+                return client.buildRequest(
+                        new RestRequest(client, HTTPVerb.GET, "vehicles/" + (i & 1023) + "/position", params));
+            }
+        };
+        Builder compiled = new Builder() {
+            @Override
+            public Request build(int i) throws Exception {
+                return client.buildRequest(
+                        prepared.request(Collections.singletonMap("id", String.valueOf(i & 1023)), params, null));
+            }
+        };
+        // both must build the same url
+        if (!plain.build(7).url().equals(compiled.build(7).url()))
+            throw new IllegalStateException("Different urls");
+
+        // warm-up
+        run("RestRequest", plain, 3, false);
+        run("PreparedRestRequest", compiled, 3, false);
+
+        run("RestRequest", plain, ROUNDS, true);
+        run("PreparedRestRequest", compiled, ROUNDS, true);
+    }
+
+    private static void run(String name, Builder builder, int rounds, boolean print) throws Exception {
+        long best = Long.MAX_VALUE;
+        long bytes = Long.MAX_VALUE;
+        int checksum = 0;
+        for (int r = 0; r < rounds; ++r) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; ++i)
+                checksum += builder.build(i).url().pathSize();
+            best = Math.min(best, System.nanoTime() - start);
+            bytes = Math.min(bytes, allocatedBytes() - allocated);
+        }
+        if (print)
+            System.out.printf("%-20s %7.0f ns/request %7d bytes/request (best of %d, checksum %d)%n", name,
+                              (double)best / REQUESTS, bytes / REQUESTS, rounds, checksum);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
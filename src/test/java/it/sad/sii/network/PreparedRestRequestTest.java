@@ -0,0 +1,92 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import it.sad.sii.network.RestRequest.HTTPVerb;
+import okhttp3.Credentials;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PreparedRestRequestTest extends LocalServerTest {
+
+    // raw path and query of the requests received
+    private final List<String> uris = new CopyOnWriteArrayList<String>();
+    private volatile com.sun.net.httpserver.Headers requestHeaders;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new RestClient(serverUrl + "api/");
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        uris.add(exchange.getRequestURI().getRawPath() +
+                 (exchange.getRequestURI().getRawQuery() != null ? "?" +
+                         exchange.getRequestURI().getRawQuery() : ""));
+        requestHeaders = exchange.getRequestHeaders();
+        respond(exchange, 200, "{}");
+    }
+
+    @Test
+    public void testVariables() throws Exception {
+        PreparedRestRequest position = new PreparedRestRequest(client, HTTPVerb.GET, "vehicles/{id}/position");
+        assertEquals(Arrays.asList("id"), position.getVariables());
+
+        assertEquals(200, position.doRequest("42").getCode());
+        position.doRequest("a b/c");
+        assertEquals("/api/vehicles/42/position", uris.get(0));
+        assertEquals("/api/vehicles/a%20b%2Fc/position", uris.get(1));
+    }
+
+    @Test
+    public void testSameUrlAsRestRequest() throws Exception {
+        PreparedRestRequest stops = new PreparedRestRequest(client, HTTPVerb.GET, "lines/{line}/stops-{dir}.json");
+        Map<String, String> variables = new HashMap<String, String>();
+        variables.put("line", "201");
+        variables.put("dir", "up");
+        Map<String, String> params = Collections.singletonMap("at", "2017-03-01 10:00");
+
+        RestRequest prepared = stops.request(variables, params);
+        RestRequest plain = new RestRequest(client, HTTPVerb.GET, "lines/201/stops-up.json", params);
+        assertEquals(client.buildRequest(plain).url(), client.buildRequest(prepared).url());
+
+        client.doRequest(prepared);
+        assertEquals("/api/lines/201/stops-up.json?at=2017-03-01%2010:00", uris.get(0));
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        RestClient authenticated = new RestClient(serverUrl + "api/", "sii", "secret", 10);
+        PreparedRestRequest position = new PreparedRestRequest(authenticated, HTTPVerb.GET, "vehicles/{id}/position",
+                                                               Collections.singletonMap("X-Client", "monitor"));
+        position.doRequest("42");
+
+        assertEquals(Credentials.basic("sii", "secret"), requestHeaders.getFirst("Authorization"));
+        assertEquals("application/json", requestHeaders.getFirst("Accept"));
+        assertEquals("OkHttp RestClient", requestHeaders.getFirst("User-Agent"));
+        assertEquals("monitor", requestHeaders.getFirst("X-Client"));
+
+        new PreparedRestRequest(client, HTTPVerb.GET, "vehicles").doRequest();
+        assertNull(requestHeaders.getFirst("Authorization"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue() throws Exception {
+        new PreparedRestRequest(client, HTTPVerb.GET, "vehicles/{id}/position").request();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVariableInQuery() throws Exception {
+        new PreparedRestRequest(client, HTTPVerb.GET, "vehicles?id={id}");
+    }
+}
@@ -0,0 +1,84 @@
+package it.sad.sii.network;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses typical query strings with the former split/URLDecoder implementation of
+ * {@link UrlUtils#splitQuerySingle(String)} and with the current single-pass one, measuring the time and the bytes
+ * allocated per query string.
+ * <p>
+ * Not a unit test: run its main method by hand, with the test classpath (the allocations are measured on HotSpot).
+ */
+public class QueryParserBenchmark {
+
+    private static final String[] QUERIES = {
+            "line=201&direction=1&from=2017-03-01+10%3A00&to=2017-03-01+12%3A00",
+            "stop=12&stop=13&stop=14&fields=position,delay",
+            "q=Bolzano%2FBozen&lang=de&limit=20",
+    };
+    private static final int ROUNDS = 5;
+    private static final int QUERIES_PER_ROUND = 1000000;
+
+    private interface Parser {
+        Map<String, String> parse(String query) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Parser split = new Parser() {
+            @Override
+            public Map<String, String> parse(String query) throws Exception {
+                Map<String, String> queryPairs = new LinkedHashMap<String, String>();
+                for (String pair : query.split("&")) {
+                    int idx = pair.indexOf("=");
+                    queryPairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
+                                   URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+                return queryPairs;
+            }
+        };
+        Parser singlePass = new Parser() {
+            @Override
+            public Map<String, String> parse(String query) throws Exception {
+                return UrlUtils.splitQuerySingle(query);
+            }
+        };
+        for (String query : QUERIES) {
+            if (!split.parse(query).equals(singlePass.parse(query)))
+                throw new IllegalStateException("Different results for " + query);
+        }
+
+        // warm-up
+        run("split + URLDecoder", split, 3, false);
+        run("single pass", singlePass, 3, false);
+
+        run("split + URLDecoder", split, ROUNDS, true);
+        run("single pass", singlePass, ROUNDS, true);
+    }
+
+    private static void run(String name, Parser parser, int rounds, boolean print) throws Exception {
+        long best = Long.MAX_VALUE;
+        long bytes = Long.MAX_VALUE;
+        int checksum = 0;
+        for (int r = 0; r < rounds; ++r) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES_PER_ROUND; ++i)
+                checksum += parser.parse(QUERIES[i % QUERIES.length]).size();
+            best = Math.min(best, System.nanoTime() - start);
+            bytes = Math.min(bytes, allocatedBytes() - allocated);
+        }
+        if (print)
+            System.out.printf("%-20s %6.0f ns/query %6d bytes/query (best of %d, checksum %d)%n", name,
+                              (double)best / QUERIES_PER_ROUND, bytes / QUERIES_PER_ROUND, rounds, checksum);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
@@ -0,0 +1,289 @@
+package it.sad.sii.network;
+
+import com.github.rholder.retry.RetryException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimitTest extends LocalServerTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger code = new AtomicInteger(200);
+    private final AtomicReference<String> retryAfter = new AtomicReference<String>("1");
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (code.get() == 429)
+            exchange.getResponseHeaders().add("Retry-After", retryAfter.get());
+        respond(exchange, code.get(), null);
+    }
+
+    @Test
+    public void testBurstThenRate() {
+        RateLimiter limiter = new RateLimiter(10, 3);
+
+        // starts full
+        assertEquals(3, limiter.getAvailablePermits());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(0, limiter.reserve(0));
+        assertEquals(-1, limiter.reserve(0));
+
+        // the next permit in 100 ms
+        long wait = limiter.reserve(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50) && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, limiter.getAvailablePermits());
+
+        assertEquals(4, limiter.getGrantedCount());
+        assertEquals(1, limiter.getDelayedCount());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testRefillsUpToTheBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000, 5);
+        for (int i = 0; i < 5; ++i)
+            limiter.reserve(0);
+        Thread.sleep(50);
+        assertEquals(5, limiter.getAvailablePermits());
+    }
+
+    @Test
+    public void testThrottledEmptiesTheBucket() {
+        RateLimiter limiter = new RateLimiter(100, 10);
+        limiter.onThrottled(TimeUnit.SECONDS.toNanos(1));
+
+        assertEquals(0, limiter.getAvailablePermits());
+        assertEquals(-1, limiter.reserve(TimeUnit.MILLISECONDS.toNanos(500)));
+        assertTrue(limiter.reserve(TimeUnit.SECONDS.toNanos(2)) > TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(1, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        client.enableRateLimit(new RateLimiter(5, 2), 0);
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        try {
+            client.doRequest(new RestRequest(client, GET, "vehicles"));
+            fail();
+        } catch (RateLimitException e) {
+            assertEquals(5, e.getPermitsPerSecond(), 0);
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testStreamAndDownloadTakeAPermit() throws Exception {
+        client.enableRateLimit(new RateLimiter(1, 1), 0);
+        client.download("vehicles", null, new ByteArrayOutputStream());
+        try {
+            client.download("vehicles", null, new ByteArrayOutputStream());
+            fail();
+        } catch (RateLimitException expected) {
+        }
+        try {
+            client.stream("vehicles", null, Object.class);
+            fail();
+        } catch (RateLimitException expected) {
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testBlockingAndAsyncCallersWait() throws Exception {
+        client.enableRateLimit(new RateLimiter(20, 1), 1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; ++i)
+            assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertTrue(elapsed(start) >= 190);
+
+        start = System.nanoTime();
+        List<ListenableFuture<RestResponse>> futures = new ArrayList<ListenableFuture<RestResponse>>();
+        for (int i = 0; i < 5; ++i)
+            futures.add(client.doRequestAsync(new RestRequest(client, GET, "vehicles")));
+        for (ListenableFuture<RestResponse> future : futures)
+            assertEquals(200, future.get().getCode());
+        assertTrue(elapsed(start) >= 190);
+        assertEquals(10, client.getRateLimiter().getGrantedCount());
+    }
+
+    @Test
+    public void testRejectionsAreNotRetried() throws Exception {
+        client.enableRetryCircuitBreaker(3, 0, 60000);
+        client.enableRateLimit(new RateLimiter(1, 1), 0);
+
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        RestResponse response = client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertTrue(response.getException().getCause() instanceof RateLimitException);
+        response = client.doRequestAsync(new RestRequest(client, GET, "vehicles")).get();
+        assertTrue(response.getException().getCause() instanceof RateLimitException);
+
+        assertEquals(1, requests.get());
+        assertEquals(2, client.getRateLimiter().getRejectedCount());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testProbeCancelledWhileWaitingForAPermit() throws Exception {
+        client.enableRetryCircuitBreaker(1, 0, 200);
+        client.enableRateLimit(new RateLimiter(5, 1), 1000);
+        code.set(503);
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the probe waits for the next permit, and is cancelled meanwhile
+        Thread.sleep(300);
+        client.getRateLimiter().reserve(0);
+        ListenableFuture<RestResponse> probe = client.doRequestAsync(new RestRequest(client, GET, "vehicles"));
+        assertTrue(probe.cancel(false));
+        Thread.sleep(300);
+        assertEquals(1, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.HALF_OPEN, client.getRetryCircuitBreakerState());
+
+        // the probe was given back: the next request probes and closes the breaker
+        code.set(200);
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testProbeRejectedByTheRateLimit() throws Exception {
+        client.enableRetryCircuitBreaker(1, 0, 1000);
+        client.enableRateLimit(new RateLimiter(5, 1), 0);
+        code.set(503);
+        client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the probe finds no permit: the server did not fail, the breaker does not open again
+        Thread.sleep(1100);
+        client.getRateLimiter().reserve(0);
+        RestResponse rejected = client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertTrue(rejected.getException() instanceof RateLimitException);
+        assertEquals(RestClient.RetryCircuitBreakerState.HALF_OPEN, client.getRetryCircuitBreakerState());
+
+        Thread.sleep(250);
+        code.set(200);
+        assertEquals(200, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testThrottledResponsesAreGivenBack() throws Exception {
+        client.enableRetryCircuitBreaker(3, 5000, 60000);
+        client.enableRateLimit(new RateLimiter(2, 1), 0);
+        code.set(429);
+
+        // the Retry-After is longer than the max wait for a permit: not retried
+        long start = System.nanoTime();
+        assertEquals(429, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertTrue(elapsed(start) < 500);
+        assertEquals(1, requests.get());
+
+        // the Retry-After is short, but the limiter refuses the retry: the caller gets the 429 all the same
+        retryAfter.set("0");
+        Thread.sleep(1100);
+        assertEquals(429, client.doRequestAsync(new RestRequest(client, GET, "vehicles")).get().getCode());
+        Thread.sleep(600);
+        assertEquals(429, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertEquals(3, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testThrottledResponsesAreRetriedAfterTheRetryAfter() throws Exception {
+        client.enableRetryCircuitBreaker(2, 5000, 60000);
+        code.set(429);
+
+        // without a rate limit, a Retry-After within the max time between retries is waited for
+        long start = System.nanoTime();
+        RestResponse response = client.doRequest(new RestRequest(client, GET, "vehicles"));
+        assertTrue(response.getException() instanceof RetryException);
+        assertTrue(elapsed(start) >= 1000);
+        assertEquals(2, requests.get());
+
+        // and a Retry-After without time for it is not
+        client.enableRetryCircuitBreaker(2, 500, 60000);
+        assertEquals(429, client.doRequest(new RestRequest(client, GET, "vehicles")).getCode());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testPerEndpointLimitsAndThrottling() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 60000);
+        RateLimiter shared = new RateLimiter(1000, 100);
+        client.enableRateLimit(shared, 100, 10, 0);
+        RestRequest vehicles = new RestRequest(client, GET, "vehicles");
+        RestRequest stops = new RestRequest(client, GET, "stops");
+
+        // a 429 with Retry-After empties the buckets of the endpoint, and the shared one
+        code.set(429);
+        assertEquals(429, client.doRequest(vehicles).getCode());
+        code.set(200);
+        try {
+            client.doRequest(vehicles);
+            fail();
+        } catch (RateLimitException e) {
+            assertEquals(1000, e.getPermitsPerSecond(), 0);
+        }
+        assertEquals(1, client.getRateLimiter(vehicles).getThrottledCount());
+        assertEquals(0, client.getRateLimiter(stops).getThrottledCount());
+        assertSame(shared, client.getRateLimiter());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testEndpointsAreBoundedByTheClassifier() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 1, 60000);
+        client.enableRateLimit(new RateLimiter(1000, 100), 100, 10, 0);
+        assertEquals(1, client.getMaxEndpoints());
+        RestRequest vehicles = new RestRequest(client, GET, "vehicles");
+        RestRequest stops = new RestRequest(client, GET, "stops");
+        RestRequest lines = new RestRequest(client, GET, "lines");
+        client.doRequest(vehicles);
+        client.doRequest(stops);
+        client.doRequest(lines);
+
+        // past the max endpoints, the endpoints share a single limiter
+        assertNotSame(client.getRateLimiter(vehicles), client.getRateLimiter(stops));
+        assertSame(client.getRateLimiter(stops), client.getRateLimiter(lines));
+    }
+
+    @Test
+    public void testIdleEndpointsAreDropped() throws Exception {
+        client.setEndpointClassifier(EndpointClassifiers.byPathPrefix(1), 10, 50);
+        client.enableRateLimit(null, 100, 10, 0);
+        RestRequest vehicles = new RestRequest(client, GET, "vehicles");
+
+        // a throttled bucket is kept until it is full again
+        code.set(429);
+        assertEquals(429, client.doRequest(vehicles).getCode());
+        RateLimiter throttled = client.getRateLimiter(vehicles);
+        Thread.sleep(100);
+        client.getRateLimiter(new RestRequest(client, GET, "stops"));
+        assertSame(throttled, client.getRateLimiter(vehicles));
+
+        // then a new endpoint drops it
+        Thread.sleep(1000);
+        client.getRateLimiter(new RestRequest(client, GET, "lines"));
+        assertNotSame(throttled, client.getRateLimiter(vehicles));
+        assertEquals(0, client.getRateLimiter(vehicles).getThrottledCount());
+    }
+}
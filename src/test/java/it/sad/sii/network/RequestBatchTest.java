@@ -0,0 +1,150 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestBatchTest extends LocalServerTest {
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final AtomicInteger callsReceived = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        callsReceived.incrementAndGet();
+        int current = running.incrementAndGet();
+        while (true) {
+            int max = maxRunning.get();
+            if (current <= max || maxRunning.compareAndSet(max, current))
+                break;
+        }
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException ignored) {}
+        running.decrementAndGet();
+
+        // /item/N answers N, /fail/N answers 404, /down/N answers 503
+        String path = exchange.getRequestURI().getPath();
+        int code = path.startsWith("/fail") ? 404 : (path.startsWith("/down") ? 503 : 200);
+        respond(exchange, code, path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    private List<RestRequest> requests(int count, int failing) {
+        List<RestRequest> requests = new ArrayList<RestRequest>();
+        for (int i = 0; i < count; ++i) {
+            String action = (i == failing ? "fail/" : "item/") + i;
+            requests.add(new RestRequest(client, RestRequest.HTTPVerb.GET, action));
+        }
+        return requests;
+    }
+
+    @Test
+    public void testResponsesInOrderWithBoundedConcurrency() throws Exception {
+        final AtomicInteger notified = new AtomicInteger();
+        List<RestResponse> responses = client.doRequests(requests(20, -1), 3, true, new BatchListener() {
+            @Override
+            public void onResponse(int index, RestRequest request, RestResponse response) {
+                assertEquals("item/" + index, request.getAction());
+                notified.incrementAndGet();
+            }
+        }).get();
+
+        assertEquals(20, responses.size());
+        for (int i = 0; i < 20; ++i)
+            assertEquals(Integer.toString(i), responses.get(i).getData());
+        assertEquals(20, notified.get());
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testThrowingListenerDoesNotStopTheBatch() throws Exception {
+        List<RestResponse> responses = client.doRequests(requests(6, -1), 2, true, new BatchListener() {
+            @Override
+            public void onResponse(int index, RestRequest request, RestResponse response) {
+                throw new IllegalStateException("Listener failed on " + index);
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(6, responses.size());
+        for (int i = 0; i < 6; ++i)
+            assertEquals(Integer.toString(i), responses.get(i).getData());
+    }
+
+    @Test
+    public void testCollectErrors() throws Exception {
+        List<RestResponse> responses = client.doRequests(requests(10, 4), 2, false).get();
+
+        assertEquals(10, callsReceived.get());
+        assertEquals(404, responses.get(4).getCode());
+        assertTrue(responses.get(5).isOk());
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        try {
+            client.doRequests(requests(50, 0), 2, true).get();
+            fail("The batch should have failed");
+        } catch (ExecutionException e) {
+            BatchException batchException = (BatchException)e.getCause();
+            assertEquals(0, batchException.getIndex());
+            assertEquals(404, batchException.getResponse().getCode());
+        }
+        Thread.sleep(100);
+        assertTrue(callsReceived.get() < 50);
+    }
+
+    @Test
+    public void testRejectedByCircuitBreaker() throws Exception {
+        client.enableRetryCircuitBreaker(1, 0, 60000);
+        // open the circuit breaker: the whole batch is rejected without calls
+        new RestRequest(client, RestRequest.HTTPVerb.GET, "down/0").doRequest();
+
+        List<RestResponse> responses = client.doRequests(requests(5, -1), 2, false).get();
+        for (RestResponse response : responses)
+            assertFalse(response.isOk());
+        assertEquals(1, callsReceived.get());
+    }
+
+    @Test
+    public void testRequestThatThrowsFailsAlone() throws Exception {
+        client.setEndpointClassifier(new EndpointClassifier() {
+            @Override
+            public String classify(RestRequest.HTTPVerb verb, URI uri) {
+                if (uri.getPath().endsWith("/1"))
+                    throw new IllegalStateException("Unknown endpoint");
+                return uri.getPath();
+            }
+        }, 10, 60000);
+
+        List<RestResponse> responses = client.doRequests(requests(3, -1), 1, false).get();
+        assertTrue(responses.get(0).isOk());
+        assertTrue(responses.get(1).getException() instanceof IllegalStateException);
+        assertTrue(responses.get(2).isOk());
+        assertEquals(2, callsReceived.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullRequest() {
+        client.doRequests(Arrays.asList(new RestRequest(client, RestRequest.HTTPVerb.GET, "item/0"), null), 1, true);
+    }
+
+    @Test
+    public void testEmptyBatch() throws Exception {
+        assertEquals(0, client.doRequests(Collections.<RestRequest>emptyList(), 1, true).get().size());
+    }
+}
@@ -0,0 +1,124 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCoalescingTest extends LocalServerTest {
+
+    private static final String BODY = "{\"lines\":[1,2,3]}";
+
+    private final AtomicInteger callsReceived = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        client.setRequestCoalescing(true);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        callsReceived.incrementAndGet();
+        try {
+            // hold the responses until all the clients have sent their request
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {}
+        respond(exchange, 200, BODY);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void testIdenticalRequestsShareOneCall() throws Exception {
+        final int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < threads; ++i) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return client.get("lines");
+                }
+            }));
+        }
+        ListenableFuture<String> async = client.getAsync("lines");
+
+        // wait until the leader's call reached the server and everybody else joined it
+        while (client.getCoalescedRequestCount() < threads)
+            Thread.sleep(5);
+        release.countDown();
+
+        for (Future<String> result : results)
+            assertEquals(BODY, result.get());
+        assertEquals(BODY, async.get());
+        assertEquals(1, callsReceived.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testHeaderNamesAreCaseInsensitive() {
+        String url = "http://localhost/lines";
+        Map<String, String> lower = new HashMap<String, String>();
+        lower.put("accept", "application/json");
+        lower.put("x-tenant", "1");
+        Map<String, String> mixed = new LinkedHashMap<String, String>();
+        mixed.put("X-Tenant", "1");
+        mixed.put("Accept", "application/json");
+
+        RequestCoalescer.Key key = new RequestCoalescer.Key(url, lower);
+        assertEquals(key, new RequestCoalescer.Key(url, mixed));
+        assertEquals(key.hashCode(), new RequestCoalescer.Key(url, mixed).hashCode());
+
+        mixed.put("X-Tenant", "2");
+        assertFalse(key.equals(new RequestCoalescer.Key(url, mixed)));
+        assertEquals(new RequestCoalescer.Key(url, null), new RequestCoalescer.Key(url, new HashMap<String, String>()));
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCoalesced() throws Exception {
+        release.countDown();
+        List<ListenableFuture<RestResponse>> results = new ArrayList<ListenableFuture<RestResponse>>();
+        results.add(new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequestAsync());
+        results.add(new RestRequest(client, RestRequest.HTTPVerb.GET, "lines", "a=1", null).doRequestAsync());
+        results.add(new RestRequest(client, RestRequest.HTTPVerb.GET, "lines", Collections.<String, String>emptyMap(),
+                                    null, Collections.singletonMap("Accept-Language", "it")).doRequestAsync());
+
+        for (ListenableFuture<RestResponse> result : results)
+            assertTrue(result.get().isOk());
+        assertEquals(3, callsReceived.get());
+    }
+
+    @Test
+    public void testCompletedRequestIsNotReused() throws Exception {
+        release.countDown();
+        client.get("lines");
+        client.get("lines");
+
+        assertEquals(2, callsReceived.get());
+        assertEquals(0, client.getCoalescedRequestCount());
+    }
+}
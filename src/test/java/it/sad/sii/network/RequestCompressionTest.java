@@ -0,0 +1,98 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestCompressionTest extends LocalServerTest {
+
+    private static final Map<String, String> NONE = Collections.emptyMap();
+
+    // body received (decompressed) and its Content-Encoding
+    private final List<String> bodies = new CopyOnWriteArrayList<String>();
+    private final List<String> encodings = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(encoding))
+            in = new GZIPInputStream(in);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+            body.write(buffer, 0, n);
+        bodies.add(body.toString("UTF-8"));
+        encodings.add(encoding);
+
+        respond(exchange, failures.getAndDecrement() > 0 ? 503 : 200, null);
+    }
+
+    private static String batch(int lines) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < lines; ++i)
+            json.append(i > 0 ? "," : "").append("{\"line\":\"201\",\"stop\":").append(i).append('}');
+        return json.append(']').toString();
+    }
+
+    @Test
+    public void testThreshold() throws Exception {
+        client.enableRequestCompression(1024);
+        String small = batch(2);
+        String large = batch(5000);
+
+        client.postResponse("batch", small);
+        client.postResponse("batch", large);
+
+        assertEquals(small, bodies.get(0));
+        assertNull(encodings.get(0));
+        assertEquals(large, bodies.get(1));
+        assertEquals("gzip", encodings.get(1));
+
+        CompressionStats stats = client.getRequestCompressionStats();
+        assertEquals(1, stats.getRequestCount());
+        assertEquals(large.length(), stats.getUncompressedBytes());
+        assertTrue(stats.getCompressionRatio() < 0.2);
+    }
+
+    @Test
+    public void testPerBodyOverride() throws Exception {
+        String small = batch(2);
+        client.postBody("batch", NONE, RestBody.json(small).withCompression(true), NONE);
+        assertEquals(small, bodies.get(0));
+        assertEquals("gzip", encodings.get(0));
+
+        client.enableRequestCompression(0);
+        client.postBody("batch", NONE, RestBody.json(small).withCompression(false), NONE);
+        assertNull(encodings.get(1));
+    }
+
+    @Test
+    public void testRetriesAreCompressedAgain() throws Exception {
+        client.enableRequestCompression(0);
+        client.enableRetryCircuitBreaker(3, 0, 60000);
+        failures.set(2);
+
+        String large = batch(1000);
+        assertEquals(200, client.postResponse("batch", large).getCode());
+        assertEquals(3, bodies.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(large, bodies.get(i));
+            assertEquals("gzip", encodings.get(i));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest extends LocalServerTest {
+
+    private static final String BODY = "{\"lines\":[1,2,3]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger bodiesSent = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean down = false;
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (down) {
+            respond(exchange, 503, null);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        boolean notModified = "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+        if (path.startsWith("/short")) {
+            // the 304 does not repeat the freshness of the response
+            if (!notModified)
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=1");
+        } else if (path.startsWith("/fresh"))
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+        else if (path.startsWith("/nostore"))
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+        else
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        if (path.endsWith("/language"))
+            exchange.getResponseHeaders().add("Vary", "Accept-Language");
+        else if (path.endsWith("/anything"))
+            exchange.getResponseHeaders().add("Vary", "*");
+
+        if (notModified) {
+            respond(exchange, 304, null);
+        } else {
+            bodiesSent.incrementAndGet();
+            String language = exchange.getRequestHeaders().getFirst("Accept-Language");
+            respond(exchange, 200, path.endsWith("/language") ? language : BODY);
+        }
+    }
+
+    @Test
+    public void testFreshResponseIsServedFromCache() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+
+        assertEquals(BODY, client.get("fresh"));
+        assertEquals(BODY, client.get("fresh"));
+        assertEquals(BODY, client.get("fresh"));
+
+        assertEquals(1, bodiesSent.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testStaleResponseIsRevalidated() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+
+        assertEquals(BODY, client.get("revalidate"));
+        assertEquals(BODY, client.get("revalidate"));
+        assertEquals(BODY, client.getAsync("revalidate").get());
+
+        assertEquals(1, bodiesSent.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void testProbeOfTheCircuitBreakerSkipsTheCache() throws Exception {
+        client.setResponseCache(new ResponseCache(1024 * 1024));
+        client.enableRetryCircuitBreaker(1, 0, 200);
+        assertEquals(BODY, client.get("fresh"));
+
+        down = true;
+        assertFalse(client.doRequest(new RestRequest(client, GET, "revalidate")).isOk());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the probe goes to the server even if the cache has a fresh response: the server is still down
+        Thread.sleep(300);
+        assertEquals(503, client.doRequest(new RestRequest(client, GET, "fresh")).getCode());
+        assertEquals(3, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the server is back: the probe revalidates the response and closes the breaker
+        down = false;
+        Thread.sleep(300);
+        assertEquals(BODY, client.get("fresh"));
+        assertEquals(4, requests.get());
+        assertEquals(1, bodiesSent.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+
+    @Test
+    public void testFreshResponseIsServedWhileTheBreakerIsOpen() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+        client.enableRetryCircuitBreaker(1, 0, 60000);
+        assertEquals(BODY, client.get("fresh"));
+
+        down = true;
+        assertFalse(client.doRequest(new RestRequest(client, GET, "revalidate")).isOk());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // the breaker rejects the requests, but the cache answers the fresh one without the server
+        assertEquals(BODY, client.get("fresh"));
+        assertEquals(BODY, client.getAsync("fresh").get());
+        assertEquals(2, cache.getHitCount());
+        assertFalse(client.doRequest(new RestRequest(client, GET, "revalidate")).isOk());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testNotModifiedKeepsTheStoredFreshness() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+        assertEquals(BODY, client.get("short"));
+
+        // expired: revalidated with a 304 without Cache-Control, then fresh again for the max-age of the response
+        Thread.sleep(1100);
+        assertEquals(BODY, client.get("short"));
+        assertEquals(BODY, client.get("short"));
+        assertEquals(2, requests.get());
+        assertEquals(1, bodiesSent.get());
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+
+        client.get("nostore");
+        client.get("nostore");
+
+        assertEquals(2, bodiesSent.get());
+        assertEquals(0, cache.getMemorySize());
+    }
+
+    @Test
+    public void testRequestHeadersArePartOfTheKey() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+        client.setResponseCache(cache);
+
+        assertEquals("de", getInLanguage(client, "de"));
+        assertEquals("it", getInLanguage(client, "it"));
+        assertEquals("de", getInLanguage(client, "de"));
+        assertEquals("it", getInLanguage(client, "it"));
+
+        assertEquals(2, bodiesSent.get());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testVaryAll() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        client.setResponseCache(cache);
+
+        client.get("fresh/anything");
+        client.get("fresh/anything");
+
+        assertEquals(2, bodiesSent.get());
+        assertEquals(0, cache.getMemorySize());
+    }
+
+    @Test
+    public void testConcurrentWritesOfTheSameResponse() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+        client.setResponseCache(cache);
+
+        // every response is stored again, by all the threads at once
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; ++i) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; ++j)
+                            client.get("revalidate");
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, errors.get());
+
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        assertEquals(files[0].length(), cache.getDiskSize());
+        ResponseCache reopened = new ResponseCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+        client.setResponseCache(reopened);
+        assertEquals(BODY, client.get("revalidate"));
+        assertEquals(1, reopened.getRevalidationCount());
+    }
+
+    private static String getInLanguage(RestClient client, String language) throws Exception {
+        RestRequest request = new RestRequest(client, GET, "fresh/language", Collections.<String, String>emptyMap(),
+                                              null, Collections.singletonMap("Accept-Language", language));
+        return client.doRequest(request).getData();
+    }
+
+    @Test
+    public void testMemoryIsBounded() throws Exception {
+        ResponseCache cache = new ResponseCache(500);
+        client.setResponseCache(cache);
+
+        for (int i = 0; i < 10; ++i)
+            client.get("fresh/" + i);
+
+        assertTrue(cache.getMemorySize() <= 500);
+        // the least recently used responses were evicted
+        client.get("fresh/0");
+        assertEquals(11, bodiesSent.get());
+    }
+
+    @Test
+    public void testTrimmingSparesTheWritesInProgress() throws Exception {
+        File leftover = folder.newFile("leftover.tmp");
+        assertTrue(leftover.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        ResponseCache cache = new ResponseCache(1024 * 1024, folder.getRoot(), 100);
+        client.setResponseCache(cache);
+        // the leftover of a writer that died is deleted, the temp file of another writer is not
+        assertFalse(leftover.exists());
+        File writing = folder.newFile("writing.tmp");
+        Files.write(writing.toPath(), new byte[1000]);
+
+        for (int i = 0; i < 5; ++i)
+            client.get("fresh/" + i);
+
+        assertTrue(writing.exists());
+        assertTrue(cache.getDiskSize() <= 100);
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        client.setResponseCache(new ResponseCache(1024 * 1024, folder.getRoot(), 1024 * 1024));
+        client.get("fresh");
+
+        // a new cache on the same directory, e.g. after a restart
+        ResponseCache cache = new ResponseCache(1024 * 1024, folder.getRoot(), 1024 * 1024);
+        client.setResponseCache(cache);
+        assertEquals(BODY, client.get("fresh"));
+
+        assertEquals(1, bodiesSent.get());
+        assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,128 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class RestBodyTest extends LocalServerTest {
+
+    private static final Map<String, String> NONE = Collections.emptyMap();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<byte[]> bodies = new CopyOnWriteArrayList<byte[]>();
+    private volatile String contentType;
+    // the first 'failures' requests get a 503
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+            body.write(buffer, 0, n);
+        bodies.add(body.toByteArray());
+        contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+        respond(exchange, failures.getAndDecrement() > 0 ? 503 : 200, null);
+    }
+
+    @Test
+    public void testNullArgumentsPickTheStringContent() throws Exception {
+        // the call sites written before the RestBody requests still compile, and send no body
+        RestRequest request = new RestRequest(client, RestRequest.HTTPVerb.POST, "upload", null, null, null);
+        assertNull(request.getBody());
+        RestRequest withParams = new RestRequest(client, RestRequest.HTTPVerb.POST, "upload", NONE, null, null);
+        assertNull(withParams.getBody());
+    }
+
+    @Test
+    public void testBinaryBodies() throws Exception {
+        byte[] bytes = { 0, 1, 2, (byte)0xff, 4 };
+        client.postBody("upload", NONE, RestBody.of(bytes, "application/octet-stream"), NONE);
+        assertArrayEquals(bytes, bodies.get(0));
+        assertEquals("application/octet-stream", contentType);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(2);
+        client.putBody("upload", NONE, RestBody.of(buffer, "application/octet-stream"), NONE);
+        assertArrayEquals(new byte[] { 2, (byte)0xff, 4 }, bodies.get(1));
+        assertEquals(2, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] { 7, 8, 9 }).flip();
+        client.putBody("upload", NONE, RestBody.of(direct, "application/octet-stream"), NONE);
+        assertArrayEquals(new byte[] { 7, 8, 9 }, bodies.get(2));
+    }
+
+    @Test
+    public void testTextBody() throws Exception {
+        client.postBody("upload", NONE, RestBody.of("città;42", "text/csv"), NONE);
+        assertArrayEquals("città;42".getBytes("UTF-8"), bodies.get(0));
+        assertEquals("text/csv; charset=utf-8", contentType);
+    }
+
+    @Test
+    public void testFileBody() throws Exception {
+        byte[] bytes = new byte[2 * 1024 * 1024];
+        new Random(7).nextBytes(bytes);
+        Path file = folder.newFile("export.zip").toPath();
+        Files.write(file, bytes);
+
+        RestResponse response = client.putBody("upload", NONE, RestBody.of(file, "application/zip"), NONE);
+        assertEquals(200, response.getCode());
+        assertArrayEquals(bytes, bodies.get(0));
+    }
+
+    @Test
+    public void testRetriesSendTheSameBody() throws Exception {
+        client.enableRetryCircuitBreaker(3, 0, 60000);
+        failures.set(2);
+
+        RestResponse response = client.postResponse("upload", "{\"line\":\"201\"}");
+        assertEquals(200, response.getCode());
+        assertEquals(3, bodies.size());
+        for (byte[] body : bodies)
+            assertArrayEquals("{\"line\":\"201\"}".getBytes("UTF-8"), body);
+        assertEquals("application/json; charset=utf-8", contentType);
+    }
+
+    @Test
+    public void testStreamBodyIsNotRetried() throws Exception {
+        client.enableRetryCircuitBreaker(3, 0, 60000);
+        failures.set(10);
+
+        byte[] bytes = { 1, 2, 3 };
+        RestBody body = RestBody.of(new ByteArrayInputStream(bytes), bytes.length, "application/octet-stream");
+        assertFalse(body.isReplayable());
+
+        RestResponse response = client.postBody("upload", NONE, body, NONE);
+        assertEquals(503, response.getCode());
+        assertEquals(1, bodies.size());
+        assertArrayEquals(bytes, bodies.get(0));
+        // not a failure of the server: the circuit breaker stays closed
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+}
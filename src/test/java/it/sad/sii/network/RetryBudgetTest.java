@@ -0,0 +1,79 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTest extends LocalServerTest {
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        respond(exchange, 503, null);
+    }
+
+    @Test
+    public void testBurstThenRatio() {
+        RetryBudget budget = new RetryBudget(0.25f, 2);
+
+        // starts full
+        assertEquals(2, budget.getAvailableRetries());
+        assertTrue(budget.tryRetry());
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+
+        // one retry every 4 requests
+        for (int i = 0; i < 3; ++i)
+            budget.onRequest();
+        assertFalse(budget.tryRetry());
+        budget.onRequest();
+        assertTrue(budget.tryRetry());
+
+        assertEquals(3, budget.getRetriesPermitted());
+        assertEquals(2, budget.getRetriesDropped());
+    }
+
+    @Test
+    public void testCapacity() {
+        RetryBudget budget = new RetryBudget(1, 3);
+
+        for (int i = 0; i < 100; ++i)
+            budget.onRequest();
+        assertEquals(3, budget.getAvailableRetries());
+    }
+
+    @Test
+    public void testPolicyWithoutBudgetAlwaysRetries() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, RetryBackoff.EXPONENTIAL);
+
+        for (int i = 0; i < 100; ++i)
+            assertTrue(policy.tryRetry());
+    }
+
+    @Test
+    public void testRetryRefusedByTheBudgetOpensTheCircuitBreaker() throws Exception {
+        client.enableRetryCircuitBreaker(5, 0, 60000);
+        // an empty budget, and no way to refill it in this test
+        RetryBudget budget = new RetryBudget(0.001f, 1);
+        assertTrue(budget.tryRetry());
+        client.setRetryBudget(budget);
+
+        assertEquals(503, client.doRequest(new RestRequest(client, GET, "down")).getCode());
+        assertEquals(1, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        client.enableRetryCircuitBreaker(5, 0, 60000);
+        assertEquals(503, client.doRequestAsync(new RestRequest(client, GET, "down")).get().getCode());
+        assertEquals(2, requests.get());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+    }
+}
@@ -0,0 +1,59 @@
+package it.sad.sii.network;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testExponentialWait() {
+        RetryPolicy policy = new RetryPolicy(5, 1000, RetryBackoff.EXPONENTIAL);
+
+        assertEquals(200, policy.computeWait(1, 0));
+        assertEquals(400, policy.computeWait(2, 200));
+        assertEquals(800, policy.computeWait(3, 400));
+        assertEquals(1000, policy.computeWait(4, 800));
+        assertEquals(1000, policy.computeWait(100, 1000));
+    }
+
+    @Test
+    public void testFullJitterWait() {
+        RetryPolicy policy = new RetryPolicy(5, 1000, RetryBackoff.FULL_JITTER);
+
+        for (int i = 0; i < 1000; ++i) {
+            long wait = policy.computeWait(2, 0);
+            assertTrue(wait >= 0 && wait <= 400);
+        }
+    }
+
+    @Test
+    public void testDecorrelatedJitterWait() {
+        RetryPolicy policy = new RetryPolicy(5, 1000, RetryBackoff.DECORRELATED_JITTER);
+
+        long previousWait = 0;
+        for (int i = 1; i < 1000; ++i) {
+            long wait = policy.computeWait(i, previousWait);
+            assertTrue(wait >= RetryPolicy.BASE_WAIT && wait <= Math.max(RetryPolicy.BASE_WAIT, previousWait * 3));
+            assertTrue(wait <= 1000);
+            previousWait = wait;
+        }
+    }
+
+    @Test
+    public void testShouldRetry() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, RetryBackoff.EXPONENTIAL);
+
+        assertFalse(policy.shouldRetry(new RestResponse(200, "")));
+        assertFalse(policy.shouldRetry(new RestResponse(404, "")));
+        assertTrue(policy.shouldRetry(new RestResponse(503, "")));
+        assertTrue(policy.shouldRetry(new IOException()));
+        assertTrue(policy.shouldRetry(new IllegalStateException()));
+        assertFalse(policy.shouldRetry(new URISyntaxException("x", "y")));
+    }
+}
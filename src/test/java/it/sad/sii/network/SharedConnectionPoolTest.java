@@ -0,0 +1,128 @@
+package it.sad.sii.network;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SharedConnectionPoolTest extends LocalServerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getPath().equals("/slow")) {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        respond(exchange, 200, "ok");
+    }
+
+    private static KeyStore load(String resource) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = SharedConnectionPoolTest.class.getClassLoader().getResourceAsStream(resource);
+        try {
+            keyStore.load(in, "password".toCharArray());
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    private static Set<String> issuers(SharedConnectionPool.TrustedSocketFactory trusted) {
+        Set<String> issuers = new HashSet<String>();
+        for (X509Certificate certificate : trusted.trustManager.getAcceptedIssuers())
+            issuers.add(certificate.getSubjectX500Principal().getName());
+        return issuers;
+    }
+
+    private static Set<String> certificates(KeyStore keyStore) throws Exception {
+        Set<String> certificates = new HashSet<String>();
+        for (String alias : Collections.list(keyStore.aliases()))
+            certificates.add(((X509Certificate)keyStore.getCertificate(alias)).getSubjectX500Principal().getName());
+        return certificates;
+    }
+
+    @Test
+    public void testClientsShareConnectionsAndDispatcher() throws Exception {
+        SharedConnectionPool pool = new SharedConnectionPool(5, 60000, 64, 1);
+        RestClient first = pool.newClient(serverUrl, "user", "secret", 5000);
+        RestClient second = pool.newClient(serverUrl, null, null, 5000);
+        assertSame(first.getOkHttpClient().connectionPool(), second.getOkHttpClient().connectionPool());
+        assertSame(first.getOkHttpClient().dispatcher(), second.getOkHttpClient().dispatcher());
+
+        // the second client reuses the keep-alive connection of the first one
+        assertEquals(200, first.doRequest(new RestRequest(first, GET, "lines")).getCode());
+        assertEquals(200, second.doRequest(new RestRequest(second, GET, "lines")).getCode());
+        assertEquals(1, pool.getConnectionCount());
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        // one call per host in flight: the call of the second client waits for the one of the first
+        List<ListenableFuture<RestResponse>> futures = new ArrayList<ListenableFuture<RestResponse>>();
+        futures.add(first.doRequestAsync(new RestRequest(first, GET, "slow")));
+        futures.add(second.doRequestAsync(new RestRequest(second, GET, "slow")));
+        assertEquals(1, pool.getRunningCallsCount());
+        assertEquals(1, pool.getQueuedCallsCount());
+        release.countDown();
+        for (ListenableFuture<RestResponse> future : futures)
+            assertEquals(200, future.get(5, TimeUnit.SECONDS).getCode());
+
+        pool.evictAll();
+        assertEquals(0, pool.getConnectionCount());
+    }
+
+    @Test
+    public void testSameTruststoreSharesTheSocketFactory() throws Exception {
+        SharedConnectionPool pool = new SharedConnectionPool(5, 60000, 64, 5);
+        KeyStore truststore = load("truststore.jks");
+
+        SharedConnectionPool.TrustedSocketFactory trusted = pool.getSocketFactory(truststore);
+        assertSame(trusted, pool.getSocketFactory(truststore));
+        RestClient first = pool.newClient(serverUrl, null, null, 5000, truststore);
+        RestClient second = pool.newClient(serverUrl, null, null, 5000, truststore);
+        SSLSocketFactory socketFactory = first.getOkHttpClient().sslSocketFactory();
+        assertSame(trusted.socketFactory, socketFactory);
+        assertSame(socketFactory, second.getOkHttpClient().sslSocketFactory());
+    }
+
+    @Test
+    public void testDifferentTruststoresDoNotShare() throws Exception {
+        SharedConnectionPool pool = new SharedConnectionPool(5, 60000, 64, 5);
+        KeyStore truststore = load("truststore.jks");
+        KeyStore other = load("keystore.jks");
+        // the same certificates, but another instance: the factories are keyed by instance
+        KeyStore copy = load("truststore.jks");
+
+        SharedConnectionPool.TrustedSocketFactory trusted = pool.getSocketFactory(truststore);
+        SharedConnectionPool.TrustedSocketFactory otherTrusted = pool.getSocketFactory(other);
+        assertNotSame(trusted, otherTrusted);
+        assertNotSame(trusted, pool.getSocketFactory(copy));
+        assertEquals(certificates(truststore), issuers(trusted));
+        assertEquals(certificates(other), issuers(otherTrusted));
+
+        RestClient first = pool.newClient(serverUrl, null, null, 5000, truststore);
+        RestClient second = pool.newClient(serverUrl, null, null, 5000, other);
+        assertNotSame(first.getOkHttpClient().sslSocketFactory(), second.getOkHttpClient().sslSocketFactory());
+        // they still share the connections
+        assertSame(first.getOkHttpClient().connectionPool(), second.getOkHttpClient().connectionPool());
+    }
+}
@@ -0,0 +1,95 @@
+package it.sad.sii.network;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingWindowPolicyTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(5000);
+
+    @Test
+    public void testCountBasedFailureRate() {
+        SlidingWindowPolicy.Window window = SlidingWindowPolicy.countBased(10, 5, 40, 100, 1000).newWindow();
+
+        // not enough calls yet
+        assertFalse(window.record(true, FAST));
+        assertFalse(window.record(true, FAST));
+        assertFalse(window.record(false, FAST));
+        assertFalse(window.record(false, FAST));
+        // 2 failures out of 5 calls = 40%
+        assertTrue(window.record(false, FAST));
+    }
+
+    @Test
+    public void testCountBasedEvictsOldOutcomes() {
+        SlidingWindowPolicy.Window window = SlidingWindowPolicy.countBased(4, 4, 50, 100, 1000).newWindow();
+
+        window.record(true, FAST);
+        window.record(true, FAST);
+        window.record(false, FAST);
+        // 2 failures out of 4
+        assertTrue(window.record(false, FAST));
+        // the first failure leaves the window: 1 failure out of 4
+        assertFalse(window.record(false, FAST));
+        // a new failure replaces the second one: still 1 failure out of 4
+        assertFalse(window.record(true, FAST));
+        // a new failure replaces a success: 2 failures out of 4
+        assertTrue(window.record(true, FAST));
+    }
+
+    @Test
+    public void testCountBasedSlowCallRate() {
+        SlidingWindowPolicy.Window window = SlidingWindowPolicy.countBased(10, 4, 100, 50, 1000).newWindow();
+
+        assertFalse(window.record(false, SLOW));
+        assertFalse(window.record(false, FAST));
+        assertFalse(window.record(false, FAST));
+        assertTrue(window.record(false, SLOW));
+    }
+
+    @Test
+    public void testReset() {
+        SlidingWindowPolicy.Window window = SlidingWindowPolicy.countBased(4, 2, 50, 100, 1000).newWindow();
+
+        window.record(true, FAST);
+        assertTrue(window.record(true, FAST));
+        window.reset();
+        // the window starts again from scratch: 1 failure out of 3
+        assertFalse(window.record(false, FAST));
+        assertFalse(window.record(false, FAST));
+        assertFalse(window.record(true, FAST));
+    }
+
+    @Test
+    public void testTimeBased() {
+        SlidingWindowPolicy.Window window = SlidingWindowPolicy.timeBased(60, 3, 50, 100, 1000).newWindow();
+
+        assertFalse(window.record(true, FAST));
+        assertFalse(window.record(false, FAST));
+        assertTrue(window.record(true, FAST));
+    }
+
+    @Test
+    public void testCircuitBreakerOpensOnFailureRate() {
+        CircuitBreaker breaker =
+                new CircuitBreaker(60000, 1, SlidingWindowPolicy.countBased(10, 4, 50, 100, 1000));
+
+        breaker.onAttempt(false, FAST);
+        breaker.onAttempt(true, FAST);
+        breaker.onAttempt(false, FAST);
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, breaker.getState());
+        breaker.onAttempt(true, FAST);
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, breaker.getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        SlidingWindowPolicy.countBased(10, 5, 0, 50, 1000);
+    }
+}
@@ -0,0 +1,122 @@
+package it.sad.sii.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StaleFallbackTest extends LocalServerTest {
+
+    private static final String BODY = "{\"lines\":[1,2,3]}";
+
+    private volatile boolean failing = false;
+
+    @Before
+    public void setUp() {
+        client.enableRetryCircuitBreaker(2, 0, 60000);
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (failing)
+            respond(exchange, 503, null);
+        else
+            respond(exchange, 200, BODY);
+    }
+
+    @Test
+    public void testStaleResponseWhenRetriesAreExhaustedAndBreakerIsOpen() throws Exception {
+        client.enableStaleFallback(1024 * 1024, 60000);
+        RestResponse fresh = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequest();
+        assertTrue(fresh.isOk());
+        assertFalse(fresh.isStale());
+
+        failing = true;
+        // retries exhausted
+        RestResponse response = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequest();
+        assertTrue(response.isOk());
+        assertTrue(response.isStale());
+        assertEquals(BODY, response.getData());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+
+        // circuit breaker open, also asynchronously
+        assertEquals(BODY, client.get("lines"));
+        assertTrue(new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequestAsync().get().isStale());
+        assertEquals(3, client.getStaleResponseCount());
+    }
+
+    @Test
+    public void testStaleResponseWhenTheRetryBudgetRefusesARetry() throws Exception {
+        client.enableStaleFallback(1024 * 1024, 60000);
+        client.get("lines");
+        // an empty budget, and no way to refill it in this test
+        RetryBudget budget = new RetryBudget(0.001f, 1);
+        assertTrue(budget.tryRetry());
+        client.setRetryBudget(budget);
+
+        failing = true;
+        RestResponse response = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequest();
+        assertTrue(response.isStale());
+        assertEquals(BODY, response.getData());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+        assertEquals(1, client.getStaleResponseCount());
+    }
+
+    @Test
+    public void testStaleResponseWhenTheDeadlineRefusesARetry() throws Exception {
+        client.enableStaleFallback(1024 * 1024, 60000);
+        client.get("lines");
+        // the first wait of 200 ms does not fit in 100 ms
+        client.enableRetryCircuitBreaker(3, 1000, 60000);
+        client.setRequestDeadline(100);
+
+        failing = true;
+        RestResponse response = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequestAsync().get();
+        assertTrue(response.isStale());
+        assertEquals(BODY, response.getData());
+        assertEquals(RestClient.RetryCircuitBreakerState.OPEN, client.getRetryCircuitBreakerState());
+        assertEquals(1, client.getStaleResponseCount());
+    }
+
+    @Test
+    public void testNoStaleResponseForOtherRequests() throws Exception {
+        client.enableStaleFallback(1024 * 1024, 60000);
+        client.get("lines");
+
+        failing = true;
+        RestResponse otherUrl = new RestRequest(client, RestRequest.HTTPVerb.GET, "other").doRequest();
+        assertFalse(otherUrl.isOk());
+        RestResponse post = new RestRequest(client, RestRequest.HTTPVerb.POST, "lines", "{}").doRequest();
+        assertFalse(post.isOk());
+        assertEquals(0, client.getStaleResponseCount());
+    }
+
+    @Test
+    public void testTooOldResponseIsNotServed() throws Exception {
+        client.enableStaleFallback(1024 * 1024, 1);
+        client.get("lines");
+        Thread.sleep(10);
+
+        failing = true;
+        RestResponse response = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequest();
+        assertFalse(response.isOk());
+        assertFalse(response.isStale());
+    }
+
+    @Test
+    public void testStoreIsBoundedBySize() {
+        StaleResponseStore store = new StaleResponseStore(500, 60000);
+        for (int i = 0; i < 10; ++i)
+            store.put("http://localhost/lines/" + i, new RestResponse(200, BODY));
+
+        assertTrue(store.getSize() <= 500);
+        // the oldest responses were dropped first
+        assertEquals(null, store.get("http://localhost/lines/0"));
+        assertTrue(store.get("http://localhost/lines/9").isStale());
+    }
+}
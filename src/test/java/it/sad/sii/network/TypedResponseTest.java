@@ -0,0 +1,84 @@
+package it.sad.sii.network;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TypedResponseTest extends LocalServerTest {
+
+    private static final String LINES =
+            "[{\"id\":1,\"name\":\"201\",\"updated\":\"2017-03-01 12:30:00\"}," +
+            "{\"id\":2,\"name\":\"10A\",\"updated\":\"\"}]";
+
+    static final class Line {
+        int id;
+        String name;
+        DateTime updated;
+    }
+
+    private static final Type LINE_LIST = new TypeToken<List<Line>>() {}.getType();
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        respond(exchange, 200, path.startsWith("/broken") ? "[{\"id\":" : LINES);
+    }
+
+    private static void assertLines(List<Line> lines) {
+        assertEquals(2, lines.size());
+        assertEquals("201", lines.get(0).name);
+        assertEquals(new DateTime(2017, 3, 1, 12, 30, 0), lines.get(0).updated);
+        assertNull(lines.get(1).updated);
+    }
+
+    @Test
+    public void testDecodedWhileReading() throws Exception {
+        List<Line> lines = client.get("lines", null, LINE_LIST);
+        assertLines(lines);
+
+        Line[] array = client.get("lines", null, Line[].class);
+        assertEquals(2, array[1].id);
+
+        List<Line> async = client.<List<Line>>getAsync("lines", null, LINE_LIST).get();
+        assertLines(async);
+    }
+
+    @Test
+    public void testDecodedFromTheString() throws Exception {
+        // cached responses keep their String
+        client.setResponseCache(new ResponseCache(1024 * 1024));
+        List<Line> lines = client.get("lines", null, LINE_LIST);
+        assertLines(lines);
+
+        RestResponse response = new RestRequest(client, RestRequest.HTTPVerb.GET, "lines").doRequest();
+        assertLines(response.<List<Line>>as(LINE_LIST));
+    }
+
+    @Test
+    public void testSmartModeDecodes() throws Exception {
+        client.enableRetryCircuitBreaker(3, 10, 1000);
+        assertLines(client.<List<Line>>get("lines", null, LINE_LIST));
+    }
+
+    @Test
+    public void testBrokenBody() throws Exception {
+        client.enableRetryCircuitBreaker(3, 10, 1000);
+        try {
+            client.get("broken", null, LINE_LIST);
+            fail("The body should not be decoded");
+        } catch (JsonParseException expected) {}
+        // a body that does not match is not a failure of the server
+        assertEquals(RestClient.RetryCircuitBreakerState.CLOSED, client.getRetryCircuitBreakerState());
+    }
+}
@@ -0,0 +1,69 @@
+package it.sad.sii.network;
+
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.junit.Test;
+
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static it.sad.sii.network.RestRequest.HTTPVerb.GET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UrlUtilsTest {
+
+    @Test
+    public void testSplitQuery() throws Exception {
+        Map<String, List<String>> query = UrlUtils.splitQuery("line=201&stop=a%20b&stop=c+d&&flag&empty=");
+        assertEquals(Arrays.asList("line", "stop", "flag", "empty"), Arrays.asList(query.keySet().toArray()));
+        assertEquals(Collections.singletonList("201"), query.get("line"));
+        assertEquals(Arrays.asList("a b", "c d"), query.get("stop"));
+        assertNull(query.get("flag").get(0));
+        assertEquals("", query.get("empty").get(0));
+    }
+
+    @Test
+    public void testSplitQuerySingle() throws Exception {
+        Map<String, String> query = UrlUtils.splitQuerySingle("stop=1&stop=2&flag&na%C3%AFve=caf%C3%A9");
+        assertEquals("2", query.get("stop"));
+        assertEquals("", query.get("flag"));
+        assertEquals("café", query.get("naïve"));
+        assertEquals(0, UrlUtils.splitQuerySingle("").size());
+    }
+
+    @Test
+    public void testDecodeLikeUrlDecoder() throws Exception {
+        for (String s : new String[] { "plain", "a+b", "%2F%2f", "100%25", "%E2%82%AC+%F0%9F%9A%8C", "x%3Dy%26z" })
+            assertEquals(URLDecoder.decode(s, "UTF-8"), UrlUtils.decode(s, 0, s.length()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncompleteEscape() throws Exception {
+        UrlUtils.splitQuery("stop=12%2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidEscape() throws Exception {
+        UrlUtils.splitQuery("stop=%zz");
+    }
+
+    @Test
+    public void testRepeatedParamsAreSent() throws Exception {
+        RestClient client = new RestClient("http://localhost/api/");
+        RestRequest request = new RestRequest(client, GET, "stops", "line=201&stop=12&stop=13", null);
+        assertEquals("13", request.getParams().get("stop"));
+        assertEquals(Arrays.asList("12", "13"), request.getParamValues().get("stop"));
+        assertEquals("line=201&stop=12&stop=13", client.buildRequest(request).url().encodedQuery());
+
+        ListMultimap<String, String> params = LinkedListMultimap.create();
+        params.put("stop", "a b");
+        params.put("stop", "c");
+        request = RestRequest.withRepeatedParams(client, GET, "stops", params, null,
+                                                 Collections.<String, String>emptyMap());
+        assertEquals("stop=a%20b&stop=c", client.buildRequest(request).url().encodedQuery());
+    }
+}